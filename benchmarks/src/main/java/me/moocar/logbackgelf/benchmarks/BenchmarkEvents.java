@@ -0,0 +1,79 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds the logging events and payloads that the benchmarks are parameterised over
+ */
+final class BenchmarkEvents {
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @return an ASCII message of exactly size characters, with some variety so that it doesn't compress to nothing
+     */
+    static String message(int size) {
+        String words = "The quick brown fox jumps over the lazy dog, request 4711 took 27ms on worker-3. ";
+        StringBuilder builder = new StringBuilder(size);
+        while (builder.length() < size) {
+            builder.append(words, 0, Math.min(words.length(), size - builder.length()));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return mdcSize entries with short keys and values, like request and user IDs
+     */
+    static Map<String, String> mdc(int mdcSize) {
+        Map<String, String> mdc = new HashMap<String, String>();
+        for (int i = 0; i < mdcSize; i++) {
+            mdc.put("key" + i, "value-" + i + "-3f9a2c71");
+        }
+        return mdc;
+    }
+
+    /**
+     * @return an exception thrown depth frames below this method, or null if depth is 0
+     */
+    static Throwable exception(int depth) {
+        if (depth == 0) {
+            return null;
+        }
+        try {
+            recurse(depth);
+            throw new AssertionError();
+        } catch (IllegalStateException e) {
+            return e;
+        }
+    }
+
+    private static void recurse(int depth) {
+        if (depth <= 1) {
+            throw new IllegalStateException("Benchmark exception", new IllegalArgumentException("Cause"));
+        }
+        recurse(depth - 1);
+    }
+
+    /**
+     * Creates an event with everything the layout may ask for already filled in, so that the same event can be laid out
+     * over and over without any lazy initialisation showing up in the results
+     */
+    static LoggingEvent event(LoggerContext context, int messageSize, int mdcSize, int exceptionDepth) {
+        Logger logger = context.getLogger("me.moocar.logbackgelf.benchmarks.Benchmark");
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message(messageSize),
+                exception(exceptionDepth), null);
+        event.setMDCPropertyMap(mdc(mdcSize));
+        event.setCallerData(new StackTraceElement[]{
+                new StackTraceElement("me.moocar.logbackgelf.benchmarks.Benchmark", "run", "Benchmark.java", 42)});
+        event.getThreadName();
+        event.getFormattedMessage();
+        return event;
+    }
+}
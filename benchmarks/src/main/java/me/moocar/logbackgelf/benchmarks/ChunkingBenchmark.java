@@ -0,0 +1,79 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import me.moocar.logbackgelf.CounterMessageIdGenerator;
+import me.moocar.logbackgelf.GelfChunkingOutputStream;
+import me.moocar.logbackgelf.GelfDatagramChannelOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes an already encoded message to the UDP output streams and flushes it, which chunks it if it's bigger than
+ * maxPacketSize and sends it to a loopback sink. nio picks GelfDatagramChannelOutputStream over
+ * GelfChunkingOutputStream.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChunkingBenchmark {
+
+    @Param({"512", "1420", "8192"})
+    public int maxPacketSize;
+
+    @Param({"256", "8192", "65536"})
+    public int messageSize;
+
+    @Param({"false", "true"})
+    public boolean nio;
+
+    private UdpSink sink;
+    private OutputStream stream;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws IOException {
+        sink = new UdpSink();
+        InetAddress address = InetAddress.getLoopbackAddress();
+        if (nio) {
+            GelfDatagramChannelOutputStream channelStream = new GelfDatagramChannelOutputStream(address,
+                    sink.getPort(), maxPacketSize, new CounterMessageIdGenerator(), 0, false);
+            channelStream.start();
+            stream = channelStream;
+        } else {
+            GelfChunkingOutputStream socketStream = new GelfChunkingOutputStream(address, sink.getPort(),
+                    maxPacketSize, new CounterMessageIdGenerator());
+            socketStream.start();
+            stream = socketStream;
+        }
+        message = BenchmarkEvents.message(messageSize).getBytes("UTF-8");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        stream.close();
+        sink.close();
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        stream.write(message, 0, message.length);
+        stream.flush();
+    }
+}
@@ -0,0 +1,90 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import me.moocar.logbackgelf.CompressionEncoder;
+import me.moocar.logbackgelf.CompressionFormat;
+import me.moocar.logbackgelf.GelfEncoder;
+import me.moocar.logbackgelf.GelfLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one event with compression off (GelfEncoder) and on (CompressionEncoder, which GZIPEncoder is the GZIP
+ * flavour of). The encoded bytes are discarded, so this is the cost of layout plus compression on the sending thread.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncoderBenchmark {
+
+    /**
+     * "none", or a CompressionFormat
+     */
+    @Param({"none", "GZIP", "ZLIB"})
+    public String compression;
+
+    @Param({"256", "4096", "65536"})
+    public int messageSize;
+
+    @Param({"0", "32"})
+    public int exceptionDepth;
+
+    private LoggerContext context;
+    private LayoutWrappingEncoder<ILoggingEvent> encoder;
+    private ILoggingEvent event;
+    private NullOutputStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new LoggerContext();
+        GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+        layout.setContext(context);
+        layout.setHost("benchmark.example.com");
+        layout.start();
+        if ("none".equals(compression)) {
+            encoder = new GelfEncoder<ILoggingEvent>();
+        } else {
+            CompressionEncoder<ILoggingEvent> compressionEncoder = new CompressionEncoder<ILoggingEvent>();
+            compressionEncoder.setFormat(CompressionFormat.valueOf(compression));
+            // Always compress, so that the results show what compression costs
+            compressionEncoder.setOnlyIfFewerPackets(false);
+            encoder = compressionEncoder;
+        }
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+        out = new NullOutputStream();
+        encoder.init(out);
+        event = BenchmarkEvents.event(context, messageSize, 4, exceptionDepth);
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.stop();
+        context.stop();
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        encoder.doEncode(event);
+        return out.count;
+    }
+}
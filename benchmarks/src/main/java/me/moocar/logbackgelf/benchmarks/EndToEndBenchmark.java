@@ -0,0 +1,161 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import me.moocar.logbackgelf.GelfEncoder;
+import me.moocar.logbackgelf.GelfLayout;
+import me.moocar.logbackgelf.GelfTCPAppender;
+import me.moocar.logbackgelf.GelfUDPAppender;
+import me.moocar.logbackgelf.GZIPEncoder;
+import me.moocar.logbackgelf.QueueFullPolicy;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MDC;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs through a logback Logger to a configured appender that sends to an in-process loopback sink, so the results
+ * include everything on the logging thread: logback's own overhead, layout, compression and the send (or, for the
+ * asynchronous appenders, the hand-off to the sending thread). ChunkingBenchmark covers maxPacketSize.
+ *
+ * The async UDP appender blocks when its queue is full, so its throughput is limited by the sending thread. The TCP
+ * appender drops instead, and the number dropped is reported as the "dropped" secondary result.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    @Param({"udp", "udp-nio", "udp-async", "tcp"})
+    public String transport;
+
+    @Param({"256", "4096"})
+    public int messageSize;
+
+    @Param({"8"})
+    public int mdcSize;
+
+    /**
+     * Ignored by tcp, which doesn't support compression
+     */
+    @Param({"false", "true"})
+    public boolean compress;
+
+    private LoggerContext context;
+    private Logger logger;
+    private Appender<ILoggingEvent> appender;
+    private Closeable sink;
+    private String message;
+
+    /**
+     * Counts the messages the TCP appender dropped in each iteration, so they show up in the results
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drops {
+
+        private GelfTCPAppender<ILoggingEvent> appender;
+        private long droppedBefore;
+
+        @Setup(Level.Iteration)
+        public void setUp(EndToEndBenchmark benchmark) {
+            if (benchmark.appender instanceof GelfTCPAppender) {
+                appender = (GelfTCPAppender<ILoggingEvent>) benchmark.appender;
+                droppedBefore = appender.getDroppedMessages();
+            }
+        }
+
+        public long dropped() {
+            return appender == null ? 0 : appender.getDroppedMessages() - droppedBefore;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new LoggerContext();
+        GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+        layout.setContext(context);
+        layout.setHost("benchmark.example.com");
+        layout.setIncludeFullMDC(true);
+        layout.start();
+
+        if ("tcp".equals(transport)) {
+            TcpSink tcpSink = new TcpSink();
+            sink = tcpSink;
+            GelfTCPAppender<ILoggingEvent> tcpAppender = new GelfTCPAppender<ILoggingEvent>();
+            tcpAppender.setEncoder(encoder(layout, false));
+            tcpAppender.setRemoteHost("127.0.0.1");
+            tcpAppender.setPort(tcpSink.getPort());
+            appender = tcpAppender;
+        } else {
+            UdpSink udpSink = new UdpSink();
+            sink = udpSink;
+            GelfUDPAppender<ILoggingEvent> udpAppender = new GelfUDPAppender<ILoggingEvent>();
+            udpAppender.setEncoder(encoder(layout, compress));
+            udpAppender.setRemoteHost("127.0.0.1");
+            udpAppender.setPort(udpSink.getPort());
+            udpAppender.setNio("udp-nio".equals(transport));
+            udpAppender.setAsync("udp-async".equals(transport));
+            udpAppender.setQueueFullPolicy(QueueFullPolicy.BLOCK);
+            appender = udpAppender;
+        }
+        appender.setContext(context);
+        appender.setName("benchmark");
+        appender.start();
+        if (!appender.isStarted()) {
+            throw new IllegalStateException("The appender didn't start: " + context.getStatusManager().getCopyOfStatusList());
+        }
+
+        logger = context.getLogger("me.moocar.logbackgelf.benchmarks.EndToEnd");
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        for (Map.Entry<String, String> entry : BenchmarkEvents.mdc(mdcSize).entrySet()) {
+            MDC.put(entry.getKey(), entry.getValue());
+        }
+        message = BenchmarkEvents.message(messageSize);
+    }
+
+    private LayoutWrappingEncoder<ILoggingEvent> encoder(GelfLayout<ILoggingEvent> layout, boolean compress) {
+        LayoutWrappingEncoder<ILoggingEvent> encoder = compress ? new GZIPEncoder<ILoggingEvent>()
+                : new GelfEncoder<ILoggingEvent>();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+        return encoder;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        MDC.clear();
+        appender.stop();
+        context.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    public void log(Drops drops) {
+        logger.info(message);
+    }
+}
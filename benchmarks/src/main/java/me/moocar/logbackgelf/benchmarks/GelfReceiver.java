@@ -0,0 +1,409 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A GELF server on the loopback interface, for load tests. It receives UDP and TCP messages, reassembles chunked UDP
+ * messages, decompresses GZIP and ZLIB ones, and counts what it got. It doesn't parse the JSON: a message counts as
+ * received if it decodes to something that starts with '{' and ends with '}'.
+ *
+ * Chunks are reassembled by message ID on the UDP thread. A message whose chunks haven't all arrived within 5
+ * seconds, as the GELF spec allows, is counted as incomplete. Chunks for a message ID that was completed recently are
+ * counted as duplicate message IDs: either a chunk was sent twice, or two messages got the same ID.
+ *
+ * Packets the UDP thread can't keep up with are dropped by the OS, and show up as loss, so the receive buffer is made
+ * as big as the OS allows.
+ */
+final class GelfReceiver implements Closeable {
+
+    private static final int MAX_PACKET_SIZE = 65536;
+    private static final int MAX_CHUNKS = 128;
+    private static final int CHUNK_HEADER_LENGTH = 12;
+    private static final long REASSEMBLY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    // How many completed message IDs are remembered, to spot duplicates
+    private static final int RECENT_IDS = 65536;
+
+    private final DatagramSocket udpSocket;
+    private final ServerSocket tcpSocket;
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong messageBytes = new AtomicLong();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong chunkedMessages = new AtomicLong();
+    private final AtomicLong duplicateMessageIds = new AtomicLong();
+    private final AtomicLong incompleteMessages = new AtomicLong();
+    private final AtomicLong invalidChunks = new AtomicLong();
+    private final AtomicLong invalidMessages = new AtomicLong();
+    private volatile long lastMessageNanos = System.nanoTime();
+
+    GelfReceiver() throws IOException {
+        udpSocket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        udpSocket.setReceiveBufferSize(64 * 1024 * 1024);
+        tcpSocket = new ServerSocket();
+        tcpSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread udp = new Thread(new UdpReader(), "gelf-receiver-udp");
+        udp.setDaemon(true);
+        udp.start();
+        Thread acceptor = new Thread("gelf-receiver-tcp") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        read(tcpSocket.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getUdpPort() {
+        return udpSocket.getLocalPort();
+    }
+
+    int getTcpPort() {
+        return tcpSocket.getLocalPort();
+    }
+
+    /**
+     * Waits until no message has arrived for quietMillis, or until timeoutMillis have passed
+     */
+    void awaitQuiet(long quietMillis, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (System.nanoTime() - lastMessageNanos < TimeUnit.MILLISECONDS.toNanos(quietMillis)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return the number of complete messages received
+     */
+    long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * @return the number of bytes of decompressed JSON received
+     */
+    long getMessageBytes() {
+        return messageBytes.get();
+    }
+
+    long getPackets() {
+        return packets.get();
+    }
+
+    long getChunkedMessages() {
+        return chunkedMessages.get();
+    }
+
+    long getDuplicateMessageIds() {
+        return duplicateMessageIds.get();
+    }
+
+    /**
+     * @return the number of chunked messages that were never completed. Only counted once they time out
+     */
+    long getIncompleteMessages() {
+        return incompleteMessages.get();
+    }
+
+    /**
+     * @return the number of chunks with a bad header, or that disagree with earlier chunks about their count
+     */
+    long getInvalidChunks() {
+        return invalidChunks.get();
+    }
+
+    /**
+     * @return the number of messages that couldn't be decompressed, or weren't a JSON object
+     */
+    long getInvalidMessages() {
+        return invalidMessages.get();
+    }
+
+    /**
+     * Sets every counter back to zero, e.g. between load steps
+     */
+    void reset() {
+        messages.set(0);
+        messageBytes.set(0);
+        packets.set(0);
+        chunkedMessages.set(0);
+        duplicateMessageIds.set(0);
+        incompleteMessages.set(0);
+        invalidChunks.set(0);
+        invalidMessages.set(0);
+    }
+
+    public void close() throws IOException {
+        udpSocket.close();
+        tcpSocket.close();
+    }
+
+    private void read(final Socket socket) {
+        Thread reader = new Thread("gelf-receiver-tcp-reader") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[MAX_PACKET_SIZE];
+                ByteArrayOutputStream message = new ByteArrayOutputStream();
+                try {
+                    InputStream in = socket.getInputStream();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        int start = 0;
+                        for (int i = 0; i < read; i++) {
+                            if (buffer[i] == 0) {
+                                message.write(buffer, start, i - start);
+                                received(message.toByteArray());
+                                message.reset();
+                                start = i + 1;
+                            }
+                        }
+                        message.write(buffer, start, read - start);
+                    }
+                } catch (IOException e) {
+                    // Closed
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                        // Already closed
+                    }
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void received(byte[] json) {
+        if (json.length < 2 || json[0] != '{' || json[json.length - 1] != '}') {
+            invalidMessages.incrementAndGet();
+            return;
+        }
+        messages.incrementAndGet();
+        messageBytes.addAndGet(json.length);
+        lastMessageNanos = System.nanoTime();
+    }
+
+    /**
+     * Owns the UDP socket, the messages being reassembled and the Inflaters
+     */
+    private final class UdpReader implements Runnable {
+
+        private final Map<Long, Assembly> assemblies = new HashMap<Long, Assembly>();
+        private final Map<Long, Boolean> recentIds = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > RECENT_IDS;
+            }
+        };
+        private final Inflater zlib = new Inflater();
+        private final Inflater raw = new Inflater(true);
+        private byte[] output = new byte[MAX_PACKET_SIZE];
+        private long lastExpiry = System.nanoTime();
+
+        public void run() {
+            DatagramPacket packet = new DatagramPacket(new byte[MAX_PACKET_SIZE], MAX_PACKET_SIZE);
+            try {
+                while (true) {
+                    udpSocket.receive(packet);
+                    packets.incrementAndGet();
+                    byte[] data = packet.getData();
+                    int length = packet.getLength();
+                    if (length >= 2 && data[0] == 0x1e && data[1] == 0x0f) {
+                        chunk(data, length);
+                    } else {
+                        payload(data, 0, length);
+                    }
+                    expire();
+                }
+            } catch (IOException e) {
+                // Closed
+            } finally {
+                zlib.end();
+                raw.end();
+            }
+        }
+
+        private void chunk(byte[] data, int length) {
+            if (length < CHUNK_HEADER_LENGTH) {
+                invalidChunks.incrementAndGet();
+                return;
+            }
+            long id = 0;
+            for (int i = 2; i < 10; i++) {
+                id = (id << 8) | (data[i] & 0xff);
+            }
+            int number = data[10] & 0xff;
+            int count = data[11] & 0xff;
+            if (count == 0 || count > MAX_CHUNKS || number >= count) {
+                invalidChunks.incrementAndGet();
+                return;
+            }
+            if (recentIds.containsKey(id)) {
+                duplicateMessageIds.incrementAndGet();
+                return;
+            }
+            Assembly assembly = assemblies.get(id);
+            if (assembly == null) {
+                assembly = new Assembly(count);
+                assemblies.put(id, assembly);
+            } else if (assembly.chunks.length != count) {
+                invalidChunks.incrementAndGet();
+                return;
+            }
+            if (assembly.chunks[number] != null) {
+                duplicateMessageIds.incrementAndGet();
+                return;
+            }
+            byte[] chunk = new byte[length - CHUNK_HEADER_LENGTH];
+            System.arraycopy(data, CHUNK_HEADER_LENGTH, chunk, 0, chunk.length);
+            assembly.chunks[number] = chunk;
+            assembly.length += chunk.length;
+            if (++assembly.received == count) {
+                assemblies.remove(id);
+                recentIds.put(id, Boolean.TRUE);
+                chunkedMessages.incrementAndGet();
+                byte[] message = new byte[assembly.length];
+                int offset = 0;
+                for (byte[] part : assembly.chunks) {
+                    System.arraycopy(part, 0, message, offset, part.length);
+                    offset += part.length;
+                }
+                payload(message, 0, message.length);
+            }
+        }
+
+        private void expire() {
+            long now = System.nanoTime();
+            if (now - lastExpiry < TimeUnit.SECONDS.toNanos(1)) {
+                return;
+            }
+            lastExpiry = now;
+            Iterator<Assembly> iterator = assemblies.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next().started > REASSEMBLY_TIMEOUT_NANOS) {
+                    iterator.remove();
+                    incompleteMessages.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Decompresses the message if it's GZIP or ZLIB, and counts it
+         */
+        private void payload(byte[] data, int offset, int length) {
+            try {
+                if (length >= 2 && data[offset] == (byte) 0x1f && data[offset + 1] == (byte) 0x8b) {
+                    int start = gzipHeaderLength(data, offset, length);
+                    if (start < 0) {
+                        invalidMessages.incrementAndGet();
+                        return;
+                    }
+                    // The 8 byte trailer isn't checked
+                    received(inflate(raw, data, offset + start, length - start));
+                } else if (length >= 2 && (data[offset] & 0x0f) == 8 &&
+                        (((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff)) % 31 == 0) {
+                    received(inflate(zlib, data, offset, length));
+                } else {
+                    byte[] json = new byte[length];
+                    System.arraycopy(data, offset, json, 0, length);
+                    received(json);
+                }
+            } catch (DataFormatException e) {
+                invalidMessages.incrementAndGet();
+            }
+        }
+
+        private byte[] inflate(Inflater inflater, byte[] data, int offset, int length) throws DataFormatException {
+            inflater.reset();
+            inflater.setInput(data, offset, length);
+            int size = 0;
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    byte[] bigger = new byte[output.length * 2];
+                    System.arraycopy(output, 0, bigger, 0, size);
+                    output = bigger;
+                }
+                int inflated = inflater.inflate(output, size, output.length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated");
+                }
+                size += inflated;
+            }
+            byte[] json = new byte[size];
+            System.arraycopy(output, 0, json, 0, size);
+            return json;
+        }
+
+        /**
+         * @return the length of the GZIP header at offset, or -1 if it's truncated
+         */
+        private int gzipHeaderLength(byte[] data, int offset, int length) {
+            if (length < 10) {
+                return -1;
+            }
+            int flags = data[offset + 3] & 0xff;
+            int position = 10;
+            if ((flags & 4) != 0) {
+                // FEXTRA
+                if (length < position + 2) {
+                    return -1;
+                }
+                position += 2 + ((data[offset + position] & 0xff) | ((data[offset + position + 1] & 0xff) << 8));
+            }
+            for (int flag = 8; flag <= 16; flag <<= 1) {
+                // FNAME and FCOMMENT are zero terminated
+                if ((flags & flag) != 0) {
+                    while (position < length && data[offset + position] != 0) {
+                        position++;
+                    }
+                    position++;
+                }
+            }
+            if ((flags & 2) != 0) {
+                // FHCRC
+                position += 2;
+            }
+            return position <= length ? position : -1;
+        }
+    }
+
+    /**
+     * The chunks of a message received so far
+     */
+    private static final class Assembly {
+
+        private final byte[][] chunks;
+        private final long started = System.nanoTime();
+        private int received = 0;
+        private int length = 0;
+
+        Assembly(int count) {
+            this.chunks = new byte[count][];
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import me.moocar.logbackgelf.GelfEncoder;
+import me.moocar.logbackgelf.GelfLayout;
+import me.moocar.logbackgelf.GelfUDPAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads logging through one synchronous UDP appender, over the number of lanes it sends on. With one lane every
+ * send happens under the appender's lock, so total throughput stays flat as threads are added; with more lanes it
+ * should grow until the lanes or the cores run out. Compare the results of each thread count across lanes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LanesBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int lanes;
+
+    @Param({"256"})
+    public int messageSize;
+
+    private LoggerContext context;
+    private Logger logger;
+    private GelfUDPAppender<ILoggingEvent> appender;
+    private UdpSink sink;
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException {
+        context = new LoggerContext();
+        GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+        layout.setContext(context);
+        layout.setHost("benchmark.example.com");
+        layout.start();
+        GelfEncoder<ILoggingEvent> encoder = new GelfEncoder<ILoggingEvent>();
+        encoder.setContext(context);
+        encoder.setLayout(layout);
+        encoder.start();
+
+        sink = new UdpSink();
+        appender = new GelfUDPAppender<ILoggingEvent>();
+        appender.setContext(context);
+        appender.setName("benchmark");
+        appender.setEncoder(encoder);
+        appender.setRemoteHost("127.0.0.1");
+        appender.setPort(sink.getPort());
+        appender.setLanes(lanes);
+        appender.setJmx(false);
+        appender.start();
+        if (!appender.isStarted()) {
+            throw new IllegalStateException("The appender didn't start: " + context.getStatusManager().getCopyOfStatusList());
+        }
+
+        logger = context.getLogger("me.moocar.logbackgelf.benchmarks.Lanes");
+        logger.setAdditive(false);
+        logger.addAppender(appender);
+        message = BenchmarkEvents.message(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        appender.stop();
+        context.stop();
+        sink.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01() {
+        logger.info(message);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04() {
+        logger.info(message);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16() {
+        logger.info(message);
+    }
+}
@@ -0,0 +1,79 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import me.moocar.logbackgelf.GelfLayout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lays out one event as a GELF JSON String (what LayoutWrappingEncoder and most callers use), and as UTF-8 bytes
+ * written straight to a stream (what GelfEncoder and the appenders use).
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LayoutBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int messageSize;
+
+    @Param({"0", "8", "32"})
+    public int mdcSize;
+
+    @Param({"0", "32"})
+    public int exceptionDepth;
+
+    @Param({"false", "true"})
+    public boolean includeFullMDC;
+
+    private LoggerContext context;
+    private GelfLayout<ILoggingEvent> layout;
+    private ILoggingEvent event;
+    private NullOutputStream out;
+
+    @Setup
+    public void setUp() {
+        context = new LoggerContext();
+        layout = new GelfLayout<ILoggingEvent>();
+        layout.setContext(context);
+        layout.setHost("benchmark.example.com");
+        layout.setIncludeFullMDC(includeFullMDC);
+        layout.start();
+        event = BenchmarkEvents.event(context, messageSize, mdcSize, exceptionDepth);
+        out = new NullOutputStream();
+    }
+
+    @TearDown
+    public void tearDown() {
+        layout.stop();
+        context.stop();
+    }
+
+    @Benchmark
+    public String doLayout() {
+        return layout.doLayout(event);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        layout.encode(event, out);
+        return out.count;
+    }
+}
@@ -0,0 +1,454 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.status.Status;
+import me.moocar.logbackgelf.GelfEncoder;
+import me.moocar.logbackgelf.GelfLayout;
+import me.moocar.logbackgelf.GelfMetrics;
+import me.moocar.logbackgelf.GelfUDPAppender;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a corpus of log events through a GelfUDPAppender at a target rate, into a {@link GelfReceiver}, and reports
+ * how many events per second went out and how many messages were lost on the way. Given several rates, it runs one
+ * step per rate and reports the highest whose loss stayed within --max-loss, to find the sustainable rate of a
+ * configuration before rolling it out.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar me.moocar.logbackgelf.benchmarks.LoadReplay \
+ *     --config logback.xml --appender GELF --corpus events.tsv --rate 10000,20000,40000 --duration 30
+ * </pre>
+ *
+ * The appender is the one named --appender in the logback --config file, with its endpoints replaced by the
+ * receiver's, so every other setting (compression, nio, async, lanes, throttle, ...) is the one being rolled out.
+ * Without --config, a plain synchronous appender is used.
+ *
+ * The corpus has one event per line: level, logger and message, separated by tabs, followed by any number of
+ * key=value MDC entries, also tab separated. \t, \n and \\ in the message are unescaped. Lines starting with # are
+ * skipped. Without --corpus, a mix of short and long messages, some with an exception, is used.
+ */
+public class LoadReplay {
+
+    private static final String FQCN = Logger.class.getName();
+    // A step that appends less than this fraction of its target rate fell behind, so its rate isn't sustainable
+    private static final double MIN_ACHIEVED_RATE = 0.95;
+
+    private final Map<String, String> options;
+    private final List<CorpusEvent> corpus;
+    private final LoggerContext context = new LoggerContext();
+
+    private LoadReplay(Map<String, String> options) throws IOException {
+        this.options = options;
+        String corpusFile = options.get("corpus");
+        this.corpus = corpusFile == null ? syntheticCorpus() : readCorpus(new File(corpusFile));
+        if (corpus.isEmpty()) {
+            throw new IllegalArgumentException("The corpus " + corpusFile + " has no events");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(1);
+            return;
+        }
+        if (options.containsKey("help")) {
+            usage();
+            return;
+        }
+        new LoadReplay(options).run();
+    }
+
+    private static void usage() {
+        System.err.println("Usage: LoadReplay [--config logback.xml --appender NAME] [--corpus events.tsv]\n"
+                + "                  [--rate 10000[,20000...]] [--duration 10] [--threads 1] [--max-loss 0.1]\n"
+                + "  --rate      Target events per second. Several rates run one step each\n"
+                + "  --duration  Seconds per step\n"
+                + "  --threads   Threads sharing the rate\n"
+                + "  --max-loss  The most loss, in percent, for a step's rate to count as sustainable");
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if ("help".equals(name)) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("--" + name + " needs a value");
+            }
+        }
+        return options;
+    }
+
+    private void run() throws Exception {
+        int duration = Integer.parseInt(option("duration", "10"));
+        int threads = Integer.parseInt(option("threads", "1"));
+        double maxLoss = Double.parseDouble(option("max-loss", "0.1"));
+        List<Integer> rates = new ArrayList<Integer>();
+        for (String rate : option("rate", "10000").split(",")) {
+            rates.add(Integer.valueOf(rate.trim()));
+        }
+
+        GelfReceiver receiver = new GelfReceiver();
+        try {
+            GelfUDPAppender<ILoggingEvent> appender = appender(receiver.getUdpPort());
+            System.out.println("Replaying " + corpus.size() + " events through appender " + appender.getName()
+                    + " for " + duration + "s per step on " + threads + " thread(s)");
+            int sustainable = 0;
+            for (int rate : rates) {
+                Step step = step(appender, receiver, rate, duration, threads);
+                step.print();
+                if (step.lossPercent() <= maxLoss && !step.fellBehind()) {
+                    sustainable = Math.max(sustainable, rate);
+                }
+            }
+            if (sustainable > 0) {
+                System.out.println("Sustainable: " + sustainable + " events/s with at most " + maxLoss + "% loss");
+            } else {
+                System.out.println("No rate was sustainable with at most " + maxLoss + "% loss");
+            }
+        } finally {
+            context.stop();
+            receiver.close();
+        }
+    }
+
+    private Step step(GelfUDPAppender<ILoggingEvent> appender, GelfReceiver receiver, int rate, int duration,
+                      int threads) throws InterruptedException {
+        appender.start();
+        if (!appender.isStarted()) {
+            throw new IllegalStateException("The appender didn't start: " + errors());
+        }
+        receiver.reset();
+        appender.getMetrics().reset();
+
+        final long durationNanos = TimeUnit.SECONDS.toNanos(duration);
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(threads) / rate;
+        final AtomicLong appended = new AtomicLong();
+        final long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            Thread worker = new Thread(new Worker(appender, start, durationNanos, intervalNanos, offset, appended),
+                    "load-replay-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        // Sends whatever the async queue still holds
+        appender.stop();
+        receiver.awaitQuiet(500, 10000);
+        return new Step(rate, appended.get(), elapsed, appender.getMetrics(), receiver);
+    }
+
+    /**
+     * Appends corpus events one interval apart from start, in turn with the other workers, until duration is up
+     */
+    private final class Worker implements Runnable {
+
+        private final Appender<ILoggingEvent> appender;
+        private final long start;
+        private final long durationNanos;
+        private final long intervalNanos;
+        private final int offset;
+        private final AtomicLong appended;
+
+        Worker(Appender<ILoggingEvent> appender, long start, long durationNanos, long intervalNanos, int offset,
+               AtomicLong appended) {
+            this.appender = appender;
+            this.start = start;
+            this.durationNanos = durationNanos;
+            this.intervalNanos = intervalNanos;
+            this.offset = offset;
+            this.appended = appended;
+        }
+
+        public void run() {
+            long count = 0;
+            int index = offset % corpus.size();
+            while (true) {
+                long due = start + count * intervalNanos;
+                long now = System.nanoTime();
+                if (now - start >= durationNanos) {
+                    break;
+                }
+                if (due - now > 0) {
+                    LockSupport.parkNanos(due - now);
+                    continue;
+                }
+                appender.doAppend(corpus.get(index).event(context));
+                index = (index + 1) % corpus.size();
+                count++;
+            }
+            appended.addAndGet(count);
+        }
+    }
+
+    /**
+     * The results of one rate
+     */
+    private static final class Step {
+
+        private final int rate;
+        private final long appended;
+        private final long elapsedNanos;
+        private final long appenderDropped;
+        private final Map<String, Long> dropsByReason;
+        private final long sent;
+        private final long received;
+        private final long receivedBytes;
+        private final long packets;
+        private final long chunked;
+        private final long duplicateIds;
+        private final long incomplete;
+        private final long invalid;
+
+        Step(int rate, long appended, long elapsedNanos, GelfMetrics metrics, GelfReceiver receiver) {
+            this.rate = rate;
+            this.appended = appended;
+            this.elapsedNanos = elapsedNanos;
+            this.appenderDropped = metrics.getDroppedMessages();
+            this.dropsByReason = metrics.getDroppedMessagesByReason();
+            this.sent = metrics.getSentMessages();
+            this.received = receiver.getMessages();
+            this.receivedBytes = receiver.getMessageBytes();
+            this.packets = receiver.getPackets();
+            this.chunked = receiver.getChunkedMessages();
+            this.duplicateIds = receiver.getDuplicateMessageIds();
+            this.incomplete = receiver.getIncompleteMessages();
+            this.invalid = receiver.getInvalidChunks() + receiver.getInvalidMessages();
+        }
+
+        double achievedRate() {
+            return appended / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @return whether the appender couldn't take events as fast as the target rate
+         */
+        boolean fellBehind() {
+            return achievedRate() < rate * MIN_ACHIEVED_RATE;
+        }
+
+        /**
+         * @return the percentage of appended events that didn't arrive, whether the appender dropped them or the
+         * network lost them
+         */
+        double lossPercent() {
+            return appended == 0 ? 0 : 100.0 * (appended - received) / appended;
+        }
+
+        void print() {
+            System.out.println();
+            System.out.println(String.format("Target %d events/s: appended %d in %.1fs (%.0f events/s%s)", rate,
+                    appended, elapsedNanos / 1e9, achievedRate(), fellBehind() ? ", fell behind" : ""));
+            System.out.println(String.format("  Received %d messages, %d bytes: %.3f%% loss", received,
+                    receivedBytes, lossPercent()));
+            System.out.println(String.format("  Appender sent %d and dropped %d %s; %d lost after sending", sent,
+                    appenderDropped, nonZero(dropsByReason), Math.max(0, sent - received)));
+            System.out.println(String.format("  Receiver: %d packets, %d chunked messages, %d duplicate message IDs, "
+                    + "%d incomplete, %d invalid", packets, chunked, duplicateIds, incomplete, invalid));
+        }
+
+        private static Map<String, Long> nonZero(Map<String, Long> counts) {
+            Iterator<Long> values = counts.values().iterator();
+            while (values.hasNext()) {
+                if (values.next() == 0) {
+                    values.remove();
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * @return the configured appender, pointed at port on the loopback interface, and stopped
+     */
+    @SuppressWarnings("unchecked")
+    private GelfUDPAppender<ILoggingEvent> appender(int port) throws JoranException {
+        GelfUDPAppender<ILoggingEvent> appender;
+        String config = options.get("config");
+        if (config != null) {
+            JoranConfigurator configurator = new JoranConfigurator();
+            configurator.setContext(context);
+            configurator.doConfigure(new File(config));
+            String name = options.get("appender");
+            Appender<ILoggingEvent> configured = null;
+            for (Logger logger : context.getLoggerList()) {
+                Iterator<Appender<ILoggingEvent>> appenders = logger.iteratorForAppenders();
+                while (appenders.hasNext()) {
+                    Appender<ILoggingEvent> candidate = appenders.next();
+                    if (candidate instanceof GelfUDPAppender && (name == null || name.equals(candidate.getName()))) {
+                        configured = candidate;
+                    }
+                }
+            }
+            if (configured == null) {
+                throw new IllegalArgumentException("No GelfUDPAppender " + (name == null ? "" : "named " + name + " ")
+                        + "is attached to a logger in " + config + ". " + errors());
+            }
+            appender = (GelfUDPAppender<ILoggingEvent>) configured;
+            appender.stop();
+            // Only this appender gets events, so that nothing else slows the replay down
+            for (Logger logger : context.getLoggerList()) {
+                logger.detachAndStopAllAppenders();
+            }
+        } else {
+            GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+            layout.setContext(context);
+            layout.start();
+            GelfEncoder<ILoggingEvent> encoder = new GelfEncoder<ILoggingEvent>();
+            encoder.setContext(context);
+            encoder.setLayout(layout);
+            encoder.start();
+            appender = new GelfUDPAppender<ILoggingEvent>();
+            appender.setContext(context);
+            appender.setName("load-replay");
+            appender.setEncoder(encoder);
+        }
+        appender.getEndpoints().clear();
+        appender.setRemoteHost("127.0.0.1");
+        appender.setPort(port);
+        return appender;
+    }
+
+    private String errors() {
+        StringBuilder errors = new StringBuilder();
+        for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+            if (status.getLevel() == Status.ERROR) {
+                errors.append(status.getMessage()).append("; ");
+            }
+        }
+        return errors.toString();
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static List<CorpusEvent> readCorpus(File file) throws IOException {
+        List<CorpusEvent> events = new ArrayList<CorpusEvent>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] columns = line.split("\t");
+                if (columns.length < 3) {
+                    throw new IOException(file + ":" + number + ": expected level, logger and message");
+                }
+                Map<String, String> mdc = new HashMap<String, String>();
+                for (int i = 3; i < columns.length; i++) {
+                    int equals = columns[i].indexOf('=');
+                    if (equals > 0) {
+                        mdc.put(columns[i].substring(0, equals), columns[i].substring(equals + 1));
+                    }
+                }
+                events.add(new CorpusEvent(Level.toLevel(columns[0], Level.INFO), columns[1], unescape(columns[2]),
+                        null, mdc));
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    private static String unescape(String message) {
+        if (message.indexOf('\\') < 0) {
+            return message;
+        }
+        StringBuilder builder = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\' && i + 1 < message.length()) {
+                char next = message.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 't' ? '\t' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static List<CorpusEvent> syntheticCorpus() {
+        List<CorpusEvent> events = new ArrayList<CorpusEvent>();
+        Map<String, String> mdc = BenchmarkEvents.mdc(4);
+        for (int i = 0; i < 100; i++) {
+            // Mostly short messages, with the odd one big enough to be chunked, and the odd exception
+            int size = i % 20 == 0 ? 16384 : i % 5 == 0 ? 1024 : 128;
+            Throwable exception = i % 10 == 3 ? BenchmarkEvents.exception(20) : null;
+            Level level = exception != null ? Level.ERROR : i % 7 == 0 ? Level.WARN : Level.INFO;
+            events.add(new CorpusEvent(level, "me.moocar.logbackgelf.benchmarks.Replay" + (i % 8),
+                    BenchmarkEvents.message(size), exception, mdc));
+        }
+        Collections.shuffle(events, new Random(42));
+        return events;
+    }
+
+    /**
+     * One event of the corpus, from which a fresh LoggingEvent is made each time it's replayed
+     */
+    private static final class CorpusEvent {
+
+        private final Level level;
+        private final String loggerName;
+        private final String message;
+        private final Throwable throwable;
+        private final Map<String, String> mdc;
+
+        CorpusEvent(Level level, String loggerName, String message, Throwable throwable, Map<String, String> mdc) {
+            this.level = level;
+            this.loggerName = loggerName;
+            this.message = message;
+            this.throwable = throwable;
+            this.mdc = mdc;
+        }
+
+        LoggingEvent event(LoggerContext context) {
+            LoggingEvent event = new LoggingEvent(FQCN, context.getLogger(loggerName), level, message, throwable,
+                    null);
+            event.setMDCPropertyMap(mdc);
+            return event;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import me.moocar.logbackgelf.CounterMessageIdGenerator;
+import me.moocar.logbackgelf.MessageIdProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the default message ID generator with the MD5 based MessageIdProvider, uncontended and with four threads
+ * sharing one instance (the way appenders share them). Run with -prof gc to see allocation per ID.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageIdBenchmark {
+
+    private MessageIdProvider md5;
+    private CounterMessageIdGenerator counter;
+
+    @Setup
+    public void setUp() throws NoSuchAlgorithmException {
+        md5 = new MessageIdProvider("benchmark.example.com");
+        counter = new CounterMessageIdGenerator();
+    }
+
+    @Benchmark
+    public long md5() {
+        return md5.nextId();
+    }
+
+    @Benchmark
+    public long counter() {
+        return counter.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long md5Shared() {
+        return md5.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long counterShared() {
+        return counter.nextId();
+    }
+}
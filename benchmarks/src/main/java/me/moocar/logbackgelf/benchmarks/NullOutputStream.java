@@ -0,0 +1,21 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything, counting the bytes so that the JIT can't eliminate the writes
+ */
+final class NullOutputStream extends OutputStream {
+
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+}
@@ -0,0 +1,75 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * A TCP server on the loopback interface that accepts connections and reads and discards everything sent to them, on
+ * a daemon thread per connection
+ */
+final class TcpSink implements Closeable {
+
+    private final ServerSocket serverSocket;
+    private volatile long bytes = 0;
+
+    TcpSink() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread("benchmark-tcp-sink") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        drain(serverSocket.accept());
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void drain(final Socket socket) {
+        Thread reader = new Thread("benchmark-tcp-sink-reader") {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[65536];
+                try {
+                    InputStream in = socket.getInputStream();
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        bytes += read;
+                    }
+                } catch (IOException e) {
+                    // Closed
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,51 @@
+package me.moocar.logbackgelf.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A UDP server on the loopback interface that receives and discards packets on a daemon thread. Packets the thread
+ * can't keep up with are dropped by the OS, which doesn't slow the sender down.
+ */
+final class UdpSink implements Closeable {
+
+    private final DatagramSocket socket;
+    private volatile long packets = 0;
+
+    UdpSink() throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        socket.setReceiveBufferSize(4 * 1024 * 1024);
+        Thread thread = new Thread("benchmark-udp-sink") {
+            @Override
+            public void run() {
+                DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) {
+                        socket.receive(packet);
+                        packets++;
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    long getPackets() {
+        return packets;
+    }
+
+    public void close() {
+        socket.close();
+    }
+}
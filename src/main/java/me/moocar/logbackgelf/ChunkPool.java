@@ -0,0 +1,60 @@
+package me.moocar.logbackgelf;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of same sized byte arrays, used for GELF chunks. Arrays are only created when a message actually
+ * needs them, and at most maxPooled are kept once they're released, so memory follows the size of the messages being
+ * sent rather than the worst case.
+ *
+ * Acquiring and releasing are lock-free, so a pool can be shared between streams.
+ */
+final class ChunkPool {
+
+    private final int chunkSize;
+    // Null slots are empty
+    private final AtomicReferenceArray<byte[]> slots;
+
+    ChunkPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.slots = new AtomicReferenceArray<byte[]>(maxPooled);
+    }
+
+    byte[] acquire() {
+        for (int i = 0; i < slots.length(); i++) {
+            byte[] chunk = slots.get(i);
+            if (chunk != null && slots.compareAndSet(i, chunk, null)) {
+                return chunk;
+            }
+        }
+        return new byte[chunkSize];
+    }
+
+    /**
+     * Returns a chunk to the pool. If the pool is already full it is left for the GC.
+     */
+    void release(byte[] chunk) {
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, chunk)) {
+                return;
+            }
+        }
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the number of chunks currently pooled
+     */
+    int pooled() {
+        int pooled = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                pooled++;
+            }
+        }
+        return pooled;
+    }
+}
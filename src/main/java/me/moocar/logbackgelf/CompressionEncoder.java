@@ -0,0 +1,297 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encoder that compresses messages with GZIP or ZLIB framing before handing them to the appender.
+ *
+ * Deflaters (and the buffers they compress into) are pooled and reused. A Deflater holds a few hundred KB of native
+ * memory that is otherwise only freed when the GC finalizes it, so at most a few are kept, and they are ended when
+ * the encoder stops.
+ *
+ * Compression is skipped, and the message sent as plain JSON, when it is smaller than minCompressSize, or when
+ * onlyIfFewerPackets is set and compressing wouldn't reduce the number of UDP packets needed. GelfUDPAppender tells
+ * the encoder its maxPacketSize. Graylog accepts compressed and uncompressed messages on the same input.
+ */
+public class CompressionEncoder<E extends ILoggingEvent> extends LayoutWrappingEncoder<E> {
+
+    private static final int MAX_POOLED_DEFLATERS = 4;
+    private static final int CHUNK_HEADER_LENGTH = 12;
+    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private CompressionFormat format = CompressionFormat.GZIP;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private int minCompressSize = 0;
+    private boolean onlyIfFewerPackets = true;
+    private int maxPacketSize = 0;
+
+    // Null slots are empty
+    private final AtomicReferenceArray<PooledDeflater> pool =
+            new AtomicReferenceArray<PooledDeflater>(MAX_POOLED_DEFLATERS);
+
+    @Override
+    public void start() {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            addError("Compression level must be between -1 and 9, but was " + level);
+            return;
+        }
+        if (format == null) {
+            addError("No compression format was configured");
+            return;
+        }
+        super.start();
+    }
+
+    /**
+     * LayoutWrappingEncoder's always returns false, which kept Deflaters from ever being pooled
+     */
+    @Override
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Ends all pooled Deflaters, releasing their native memory
+     */
+    @Override
+    public void stop() {
+        super.stop();
+        for (int i = 0; i < pool.length(); i++) {
+            PooledDeflater deflater = pool.getAndSet(i, null);
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void doEncode(E event) throws IOException {
+        if (layout instanceof GelfLayout) {
+            GelfJsonWriter json = ((GelfLayout<E>) layout).write(event);
+            compress(json.buffer(), json.size(), outputStream);
+        } else {
+            byte[] bytes = layout.doLayout(event).getBytes(GelfJsonWriter.UTF_8);
+            compress(bytes, bytes.length, outputStream);
+        }
+    }
+
+    /**
+     * Compresses a message that has already been laid out (unless compression would be skipped), writes it to out and
+     * flushes. Used by asynchronous appenders, which lay messages out on the logging thread but compress them on the
+     * sender thread.
+     */
+    public void compress(byte[] message, int length, OutputStream out) throws IOException {
+        encode(message, length, out);
+        out.flush();
+    }
+
+    /**
+     * Like compress, but doesn't flush out, so that appenders can time compressing and sending separately.
+     *
+     * @return the number of bytes written to out
+     */
+    int encode(byte[] message, int length, OutputStream out) throws IOException {
+        if (length < minCompressSize || (onlyIfFewerPackets && maxPacketSize > 0 && length <= maxPacketSize)) {
+            out.write(message, 0, length);
+            return length;
+        }
+        PooledDeflater deflater = borrow();
+        try {
+            int compressedLength = deflater.compress(message, length, format);
+            if (onlyIfFewerPackets && maxPacketSize > 0 && packets(compressedLength) >= packets(length)) {
+                out.write(message, 0, length);
+                return length;
+            }
+            out.write(deflater.output, 0, compressedLength);
+            return compressedLength;
+        } finally {
+            release(deflater);
+        }
+    }
+
+    private int packets(int length) {
+        if (length <= maxPacketSize) {
+            return 1;
+        }
+        int chunkSize = maxPacketSize - CHUNK_HEADER_LENGTH;
+        return (length + chunkSize - 1) / chunkSize;
+    }
+
+    // Package-private for tests
+    PooledDeflater borrow() {
+        for (int i = 0; i < pool.length(); i++) {
+            PooledDeflater deflater = pool.get(i);
+            if (deflater != null && pool.compareAndSet(i, deflater, null)) {
+                if (deflater.matches(level, format)) {
+                    return deflater;
+                }
+                deflater.end();
+            }
+        }
+        return new PooledDeflater(level, format);
+    }
+
+    void release(PooledDeflater deflater) {
+        if (isStarted()) {
+            for (int i = 0; i < pool.length(); i++) {
+                if (pool.get(i) == null && pool.compareAndSet(i, null, deflater)) {
+                    return;
+                }
+            }
+        }
+        deflater.end();
+    }
+
+    /**
+     * GZIP (the default) or ZLIB
+     */
+    public CompressionFormat getFormat() {
+        return format;
+    }
+
+    public void setFormat(CompressionFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * The Deflater compression level, from 0 (none) to 9 (best). Defaults to -1, Deflater's default (6)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Messages smaller than this many bytes are sent uncompressed. Defaults to 0
+     */
+    public int getMinCompressSize() {
+        return minCompressSize;
+    }
+
+    public void setMinCompressSize(int minCompressSize) {
+        this.minCompressSize = minCompressSize;
+    }
+
+    /**
+     * Whether to send a message uncompressed if compressing it wouldn't reduce the number of UDP packets (including
+     * any message that fits in one packet). Only applies once maxPacketSize is known. Defaults to true, or false for
+     * GZIPEncoder
+     */
+    public boolean isOnlyIfFewerPackets() {
+        return onlyIfFewerPackets;
+    }
+
+    public void setOnlyIfFewerPackets(boolean onlyIfFewerPackets) {
+        this.onlyIfFewerPackets = onlyIfFewerPackets;
+    }
+
+    /**
+     * The appender's maximum packet size, used by onlyIfFewerPackets. Set by GelfUDPAppender when it starts. 0 means
+     * unknown
+     */
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    /**
+     * A Deflater with its own growable output buffer and CRC. GZIP framing is written by hand around raw deflate
+     * output, so the same Deflater type serves both formats. Also used on its own by GelfHttpAppender.
+     */
+    static final class PooledDeflater {
+
+        private static final int INITIAL_OUTPUT_SIZE = 1024;
+        // Once a large message has grown the output buffer past this size, it is shrunk back before being pooled
+        private static final int MAX_RETAINED_OUTPUT_SIZE = 64 * 1024;
+
+        private final int level;
+        private final CompressionFormat format;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] output = new byte[INITIAL_OUTPUT_SIZE];
+
+        PooledDeflater(int level, CompressionFormat format) {
+            this.level = level;
+            this.format = format;
+            // GZIP uses raw deflate (nowrap) plus our own header and trailer
+            this.deflater = new Deflater(level, format == CompressionFormat.GZIP);
+        }
+
+        boolean matches(int level, CompressionFormat format) {
+            return this.level == level && this.format == format;
+        }
+
+        /**
+         * @return the number of compressed bytes in output
+         */
+        int compress(byte[] message, int length, CompressionFormat format) {
+            if (output.length > MAX_RETAINED_OUTPUT_SIZE) {
+                output = new byte[INITIAL_OUTPUT_SIZE];
+            }
+            deflater.reset();
+            deflater.setInput(message, 0, length);
+            deflater.finish();
+            int count = 0;
+            if (format == CompressionFormat.GZIP) {
+                System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+                count = GZIP_HEADER.length;
+            }
+            while (!deflater.finished()) {
+                if (count == output.length) {
+                    grow(count);
+                }
+                count += deflater.deflate(output, count, output.length - count);
+            }
+            if (format == CompressionFormat.GZIP) {
+                if (count + GZIP_TRAILER_LENGTH > output.length) {
+                    grow(count + GZIP_TRAILER_LENGTH);
+                }
+                crc.reset();
+                crc.update(message, 0, length);
+                count = writeIntLE(output, count, (int) crc.getValue());
+                count = writeIntLE(output, count, length);
+            }
+            return count;
+        }
+
+        private void grow(int minLength) {
+            byte[] bigger = new byte[Math.max(output.length << 1, minLength)];
+            System.arraycopy(output, 0, bigger, 0, output.length);
+            output = bigger;
+        }
+
+        private static int writeIntLE(byte[] bytes, int offset, int value) {
+            bytes[offset++] = (byte) value;
+            bytes[offset++] = (byte) (value >>> 8);
+            bytes[offset++] = (byte) (value >>> 16);
+            bytes[offset++] = (byte) (value >>> 24);
+            return offset;
+        }
+
+        /**
+         * @return the buffer that compress() writes into
+         */
+        byte[] output() {
+            return output;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+}
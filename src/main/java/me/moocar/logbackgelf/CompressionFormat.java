@@ -0,0 +1,18 @@
+package me.moocar.logbackgelf;
+
+/**
+ * How CompressionEncoder frames its deflated output. Graylog recognises both from their first bytes.
+ */
+public enum CompressionFormat {
+
+    /**
+     * RFC 1952 gzip: a 10 byte header, the deflated data, then a CRC32 and the uncompressed length
+     */
+    GZIP,
+
+    /**
+     * RFC 1950 zlib: a 2 byte header, the deflated data, then an Adler-32 checksum. Slightly smaller and cheaper than
+     * GZIP
+     */
+    ZLIB
+}
@@ -0,0 +1,32 @@
+package me.moocar.logbackgelf;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The default MessageIdGenerator. Each ID is a random 32 bit prefix, chosen once per generator, followed by a 32 bit
+ * counter, so IDs from one generator can't repeat until 2^32 messages have been chunked, and IDs from different JVMs
+ * are very unlikely to collide. Generating an ID is a single atomic increment and doesn't allocate.
+ *
+ * {@link #INSTANCE} is shared by all appenders in the JVM.
+ */
+public final class CounterMessageIdGenerator implements MessageIdGenerator {
+
+    public static final CounterMessageIdGenerator INSTANCE = new CounterMessageIdGenerator();
+
+    private final long prefix;
+    private final AtomicInteger counter;
+
+    public CounterMessageIdGenerator() {
+        this(new SecureRandom());
+    }
+
+    CounterMessageIdGenerator(SecureRandom random) {
+        this.prefix = ((long) random.nextInt()) << 32;
+        this.counter = new AtomicInteger(random.nextInt());
+    }
+
+    public long nextId() {
+        return prefix | (counter.getAndIncrement() & 0xffffffffL);
+    }
+}
@@ -0,0 +1,107 @@
+package me.moocar.logbackgelf;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, JVM wide pool of direct ByteBuffers in power of two size classes. Direct buffers are expensive to create
+ * and are only freed when the GC gets around to it, so transports borrow them from here rather than allocating their
+ * own for every large message.
+ *
+ * Acquiring and releasing are lock-free and don't allocate once a buffer of the right size class has been pooled.
+ * Requests bigger than the largest size class get an unpooled buffer.
+ *
+ * What the pool holds on to is bounded twice over: size classes above 1MB keep a single buffer, and the buffers held
+ * by all classes together never add up to more than maxRetainedBytes. Buffers released past either limit are left for
+ * the GC. The shared pool retains at most 16MB.
+ */
+final class DirectBufferPool {
+
+    static final DirectBufferPool SHARED = new DirectBufferPool(8, 16 * 1024 * 1024);
+
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 24;
+    // Size classes bigger than this keep one buffer
+    private static final int MAX_SHARED_SIZE_SHIFT = 20;
+
+    // One array of slots per size class, from 4KB to 16MB. Null slots are empty
+    private final List<AtomicReferenceArray<ByteBuffer>> classes;
+    private final long maxRetainedBytes;
+    // The capacity of the pooled buffers, plus that of buffers being released
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    DirectBufferPool(int buffersPerSize, long maxRetainedBytes) {
+        this.maxRetainedBytes = maxRetainedBytes;
+        classes = new ArrayList<AtomicReferenceArray<ByteBuffer>>(MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1);
+        for (int shift = MIN_SIZE_SHIFT; shift <= MAX_SIZE_SHIFT; shift++) {
+            classes.add(new AtomicReferenceArray<ByteBuffer>(shift > MAX_SHARED_SIZE_SHIFT ? 1 : buffersPerSize));
+        }
+    }
+
+    /**
+     * @return a cleared direct buffer with a capacity of at least minCapacity
+     */
+    ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass >= classes.size()) {
+            return ByteBuffer.allocateDirect(minCapacity);
+        }
+        AtomicReferenceArray<ByteBuffer> slots = classes.get(sizeClass);
+        for (int i = 0; i < slots.length(); i++) {
+            ByteBuffer buffer = slots.get(i);
+            if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+                retainedBytes.addAndGet(-buffer.capacity());
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+    }
+
+    /**
+     * Returns a buffer to the pool. If its size class is already full, or the pool holds maxRetainedBytes, it is left
+     * for the GC.
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= classes.size() || capacity != 1 << (sizeClass + MIN_SIZE_SHIFT)) {
+            return;
+        }
+        // Reserved up front, so that concurrent releases can't take the pool over its limit between them
+        if (retainedBytes.addAndGet(capacity) <= maxRetainedBytes) {
+            AtomicReferenceArray<ByteBuffer> slots = classes.get(sizeClass);
+            for (int i = 0; i < slots.length(); i++) {
+                if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+                    return;
+                }
+            }
+        }
+        retainedBytes.addAndGet(-capacity);
+    }
+
+    /**
+     * @return the total capacity of the buffers in the pool
+     */
+    long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    /**
+     * @return the size of the smallest size class that fits capacity
+     */
+    static int sizeFor(int capacity) {
+        return 1 << (sizeClass(capacity) + MIN_SIZE_SHIFT);
+    }
+
+    private static int sizeClass(int capacity) {
+        int shift = MIN_SIZE_SHIFT;
+        while (shift < 31 && (1 << shift) < capacity) {
+            shift++;
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+}
@@ -0,0 +1,351 @@
+package me.moocar.logbackgelf;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Converts a String field value (usually from the MDC) to a typed JSON value, writing it straight to a
+ * GelfJsonWriter. Converters parse without reflection or boxing, and report failure by returning false rather than
+ * throwing, so that a bad value costs no more than a good one.
+ *
+ * GelfLayout resolves each configured fieldType to a converter when it starts.
+ */
+abstract class FieldConverter {
+
+    private static final Map<String, FieldConverter> CONVERTERS;
+
+    static {
+        Map<String, FieldConverter> converters = new LinkedHashMap<String, FieldConverter>();
+        FieldConverter intConverter = new WholeNumberConverter(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        FieldConverter longConverter = new WholeNumberConverter(Long.MIN_VALUE, Long.MAX_VALUE);
+        FieldConverter floatConverter = new FloatConverter();
+        FieldConverter doubleConverter = new DoubleConverter();
+        FieldConverter booleanConverter = new BooleanConverter();
+        converters.put("int", intConverter);
+        converters.put("Integer", intConverter);
+        converters.put("long", longConverter);
+        converters.put("Long", longConverter);
+        converters.put("float", floatConverter);
+        converters.put("Float", floatConverter);
+        converters.put("double", doubleConverter);
+        converters.put("Double", doubleConverter);
+        converters.put("boolean", booleanConverter);
+        converters.put("Boolean", booleanConverter);
+        converters.put("timestamp", new TimestampConverter());
+        CONVERTERS = Collections.unmodifiableMap(converters);
+    }
+
+    /**
+     * @return the converter for a fieldType name such as "int" or "timestamp", or null if there isn't one
+     */
+    static FieldConverter forType(String type) {
+        return CONVERTERS.get(type);
+    }
+
+    static Set<String> types() {
+        return CONVERTERS.keySet();
+    }
+
+    /**
+     * Writes value to writer as this converter's type.
+     *
+     * @return false if value could not be parsed, in which case nothing has been written
+     */
+    abstract boolean write(String value, GelfJsonWriter writer);
+
+    /**
+     * int and long. Accepts the same input as Integer.parseInt/Long.parseLong
+     */
+    static final class WholeNumberConverter extends FieldConverter {
+
+        private final long min;
+        private final long max;
+
+        WholeNumberConverter(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        @Override
+        boolean write(String value, GelfJsonWriter writer) {
+            int length = value.length();
+            if (length == 0) {
+                return false;
+            }
+            int i = 0;
+            boolean negative = false;
+            char first = value.charAt(0);
+            if (first == '-' || first == '+') {
+                negative = first == '-';
+                if (++i == length) {
+                    return false;
+                }
+            }
+            // Accumulate negatively, like Long.parseLong, so that Long.MIN_VALUE doesn't overflow
+            long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+            long result = 0;
+            for (; i < length; i++) {
+                int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || result < limit / 10) {
+                    return false;
+                }
+                result *= 10;
+                if (result < limit + digit) {
+                    return false;
+                }
+                result -= digit;
+            }
+            if (!negative) {
+                result = -result;
+            }
+            if (result < min || result > max) {
+                return false;
+            }
+            writer.longValue(result);
+            return true;
+        }
+    }
+
+    static final class FloatConverter extends FieldConverter {
+
+        @Override
+        boolean write(String value, GelfJsonWriter writer) {
+            float parsed;
+            try {
+                parsed = Float.parseFloat(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            writer.floatValue(parsed);
+            return true;
+        }
+    }
+
+    /**
+     * If the value is already a plain JSON number it is copied as is, otherwise it is parsed and written the way
+     * Double.toString would
+     */
+    static final class DoubleConverter extends FieldConverter {
+
+        @Override
+        boolean write(String value, GelfJsonWriter writer) {
+            double parsed;
+            try {
+                parsed = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (!Double.isInfinite(parsed) && isJsonNumber(value)) {
+                writer.ascii(value);
+            } else {
+                writer.doubleValue(parsed);
+            }
+            return true;
+        }
+
+        /**
+         * -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+         */
+        static boolean isJsonNumber(String value) {
+            int length = value.length();
+            int i = 0;
+            if (i < length && value.charAt(i) == '-') {
+                i++;
+            }
+            if (i < length && value.charAt(i) == '0') {
+                i++;
+            } else {
+                int start = i;
+                i = skipDigits(value, i);
+                if (i == start) {
+                    return false;
+                }
+            }
+            if (i < length && value.charAt(i) == '.') {
+                int start = ++i;
+                i = skipDigits(value, i);
+                if (i == start) {
+                    return false;
+                }
+            }
+            if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+                i++;
+                if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+                    i++;
+                }
+                int start = i;
+                i = skipDigits(value, i);
+                if (i == start) {
+                    return false;
+                }
+            }
+            return i == length;
+        }
+
+        private static int skipDigits(String value, int i) {
+            while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    /**
+     * "true" or "false", ignoring case
+     */
+    static final class BooleanConverter extends FieldConverter {
+
+        @Override
+        boolean write(String value, GelfJsonWriter writer) {
+            if ("true".equalsIgnoreCase(value)) {
+                writer.booleanValue(true);
+            } else if ("false".equalsIgnoreCase(value)) {
+                writer.booleanValue(false);
+            } else {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Converts an ISO-8601 date time such as 2016-01-19T10:15:30.123+11:00 into seconds since the epoch (with
+     * millisecond decimal places), the same format as the GELF timestamp field. The time, seconds, fraction and offset
+     * are optional. Times without an offset are taken to be UTC.
+     */
+    static final class TimestampConverter extends FieldConverter {
+
+        private static final long FAILED = Long.MIN_VALUE;
+
+        @Override
+        boolean write(String value, GelfJsonWriter writer) {
+            long millis = parseMillis(value);
+            if (millis == FAILED) {
+                return false;
+            }
+            writer.timestampValue(millis);
+            return true;
+        }
+
+        static long parseMillis(String s) {
+            int length = s.length();
+            if (length < 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+                return FAILED;
+            }
+            int year = digits(s, 0, 4);
+            int month = digits(s, 5, 2);
+            int day = digits(s, 8, 2);
+            if (year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+                return FAILED;
+            }
+            long millis = daysSinceEpoch(year, month, day) * 86400000L;
+            if (length == 10) {
+                return millis;
+            }
+
+            char separator = s.charAt(10);
+            if ((separator != 'T' && separator != 't' && separator != ' ') || length < 16 || s.charAt(13) != ':') {
+                return FAILED;
+            }
+            int hour = digits(s, 11, 2);
+            int minute = digits(s, 14, 2);
+            int second = 0;
+            int millisOfSecond = 0;
+            int i = 16;
+            if (i < length && s.charAt(i) == ':') {
+                second = digits(s, i + 1, 2);
+                i += 3;
+                if (i < length && (s.charAt(i) == '.' || s.charAt(i) == ',')) {
+                    int start = ++i;
+                    while (i < length && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                        // Only milliseconds are kept. Further digits are truncated
+                        if (i - start < 3) {
+                            millisOfSecond = millisOfSecond * 10 + (s.charAt(i) - '0');
+                        }
+                        i++;
+                    }
+                    int fractionDigits = i - start;
+                    if (fractionDigits == 0 || fractionDigits > 9) {
+                        return FAILED;
+                    }
+                    for (int d = fractionDigits; d < 3; d++) {
+                        millisOfSecond *= 10;
+                    }
+                }
+            }
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+                return FAILED;
+            }
+            millis += hour * 3600000L + minute * 60000L + second * 1000L + millisOfSecond;
+
+            if (i == length) {
+                return millis;
+            }
+            char zone = s.charAt(i);
+            if ((zone == 'Z' || zone == 'z') && i + 1 == length) {
+                return millis;
+            }
+            if (zone != '+' && zone != '-') {
+                return FAILED;
+            }
+            int offsetHours = digits(s, i + 1, 2);
+            int offsetMinutes;
+            if (i + 3 == length) {
+                offsetMinutes = 0;
+            } else if (i + 6 == length && s.charAt(i + 3) == ':') {
+                offsetMinutes = digits(s, i + 4, 2);
+            } else if (i + 5 == length) {
+                offsetMinutes = digits(s, i + 3, 2);
+            } else {
+                return FAILED;
+            }
+            if (offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59) {
+                return FAILED;
+            }
+            long offsetMillis = offsetHours * 3600000L + offsetMinutes * 60000L;
+            return zone == '+' ? millis - offsetMillis : millis + offsetMillis;
+        }
+
+        /**
+         * @return the number made up of count digits starting at start, or -1 if they aren't all digits
+         */
+        private static int digits(String s, int start, int count) {
+            if (start + count > s.length()) {
+                return -1;
+            }
+            int result = 0;
+            for (int i = start; i < start + count; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                result = result * 10 + (c - '0');
+            }
+            return result;
+        }
+
+        private static int daysInMonth(int year, int month) {
+            if (month == 2) {
+                boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+                return leap ? 29 : 28;
+            }
+            return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+        }
+
+        /**
+         * Days between 1970-01-01 and the given date in the proleptic Gregorian calendar
+         */
+        private static long daysSinceEpoch(int year, int month, int day) {
+            // Count years from March so the leap day is the last day of the year
+            long y = month <= 2 ? year - 1 : year;
+            long era = y / 400;
+            long yearOfEra = y - era * 400;
+            int shiftedMonth = month > 2 ? month - 3 : month + 9;
+            long dayOfYear = (153 * shiftedMonth + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+import java.util.Map;
+
+/**
+ * An event that passes everything through to another event. Subclasses override what they change.
+ */
+abstract class ForwardingLoggingEvent implements ILoggingEvent {
+
+    protected final ILoggingEvent event;
+
+    ForwardingLoggingEvent(ILoggingEvent event) {
+        this.event = event;
+    }
+
+    public IThrowableProxy getThrowableProxy() {
+        return event.getThrowableProxy();
+    }
+
+    public String getThreadName() {
+        return event.getThreadName();
+    }
+
+    public Level getLevel() {
+        return event.getLevel();
+    }
+
+    public String getMessage() {
+        return event.getMessage();
+    }
+
+    public Object[] getArgumentArray() {
+        return event.getArgumentArray();
+    }
+
+    public String getFormattedMessage() {
+        return event.getFormattedMessage();
+    }
+
+    public String getLoggerName() {
+        return event.getLoggerName();
+    }
+
+    public LoggerContextVO getLoggerContextVO() {
+        return event.getLoggerContextVO();
+    }
+
+    public StackTraceElement[] getCallerData() {
+        return event.getCallerData();
+    }
+
+    public boolean hasCallerData() {
+        return event.hasCallerData();
+    }
+
+    public Marker getMarker() {
+        return event.getMarker();
+    }
+
+    public Map<String, String> getMDCPropertyMap() {
+        return event.getMDCPropertyMap();
+    }
+
+    @SuppressWarnings("deprecation")
+    public Map<String, String> getMdc() {
+        return event.getMdc();
+    }
+
+    public long getTimeStamp() {
+        return event.getTimeStamp();
+    }
+
+    public void prepareForDeferredProcessing() {
+        event.prepareForDeferredProcessing();
+    }
+}
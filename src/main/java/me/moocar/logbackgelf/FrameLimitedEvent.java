@@ -0,0 +1,106 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+import java.util.Arrays;
+
+/**
+ * A view of an event whose throwable (and each of its causes and suppressed throwables) shows at most maxFrames stack
+ * frames. Used to lay out a shorter full_message when a message is over GelfLayout's maxEncodedSize, so it works with
+ * any layout that renders the throwable proxy.
+ */
+final class FrameLimitedEvent extends ForwardingLoggingEvent {
+
+    private final IThrowableProxy throwableProxy;
+
+    FrameLimitedEvent(ILoggingEvent event, int maxFrames) {
+        super(event);
+        this.throwableProxy = limit(event.getThrowableProxy(), maxFrames);
+    }
+
+    /**
+     * @return the most frames shown for any throwable in the chain of throwableProxy, or 0 if it's null
+     */
+    static int frames(IThrowableProxy throwableProxy) {
+        if (throwableProxy == null) {
+            return 0;
+        }
+        StackTraceElementProxy[] stack = throwableProxy.getStackTraceElementProxyArray();
+        int frames = stack == null ? 0 : stack.length;
+        frames = Math.max(frames, frames(throwableProxy.getCause()));
+        IThrowableProxy[] suppressed = throwableProxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy proxy : suppressed) {
+                frames = Math.max(frames, frames(proxy));
+            }
+        }
+        return frames;
+    }
+
+    private static IThrowableProxy limit(IThrowableProxy throwableProxy, int maxFrames) {
+        return throwableProxy == null ? null : new FrameLimitedThrowableProxy(throwableProxy, maxFrames);
+    }
+
+    @Override
+    public IThrowableProxy getThrowableProxy() {
+        return throwableProxy;
+    }
+
+    private static final class FrameLimitedThrowableProxy implements IThrowableProxy {
+
+        private final IThrowableProxy proxy;
+        private final StackTraceElementProxy[] stack;
+        private final int commonFrames;
+        private final IThrowableProxy cause;
+        private final IThrowableProxy[] suppressed;
+
+        FrameLimitedThrowableProxy(IThrowableProxy proxy, int maxFrames) {
+            this.proxy = proxy;
+            StackTraceElementProxy[] stack = proxy.getStackTraceElementProxyArray();
+            if (stack != null && stack.length > maxFrames) {
+                // Common frames are the last ones, so they're the first to go
+                this.commonFrames = Math.max(0, proxy.getCommonFrames() - (stack.length - maxFrames));
+                this.stack = Arrays.copyOf(stack, maxFrames);
+            } else {
+                this.commonFrames = proxy.getCommonFrames();
+                this.stack = stack;
+            }
+            this.cause = limit(proxy.getCause(), maxFrames);
+            IThrowableProxy[] suppressed = proxy.getSuppressed();
+            if (suppressed != null) {
+                this.suppressed = new IThrowableProxy[suppressed.length];
+                for (int i = 0; i < suppressed.length; i++) {
+                    this.suppressed[i] = limit(suppressed[i], maxFrames);
+                }
+            } else {
+                this.suppressed = null;
+            }
+        }
+
+        public String getMessage() {
+            return proxy.getMessage();
+        }
+
+        public String getClassName() {
+            return proxy.getClassName();
+        }
+
+        public StackTraceElementProxy[] getStackTraceElementProxyArray() {
+            return stack;
+        }
+
+        public int getCommonFrames() {
+            return commonFrames;
+        }
+
+        public IThrowableProxy getCause() {
+            return cause;
+        }
+
+        public IThrowableProxy[] getSuppressed() {
+            return suppressed;
+        }
+    }
+}
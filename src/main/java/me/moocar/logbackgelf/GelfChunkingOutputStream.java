@@ -8,7 +8,8 @@ import java.net.*;
  * An OutputStream that sends bytes as UDP packets to a [GELF](https://www.graylog.org/resources/gelf/) compatible
  * remote server. Use flush() to signify the end of a message. If the total number of bytes in the message is less than
  * maxPacketSize, they will be sent in one datagram. If more, the bytes will be broken up into GELF chunks and sent all
- * at once when flush() is called.
+ * at once when flush() is called. Each message goes to the destination set by {@link #setDestination(InetSocketAddress)},
+ * which defaults to the address and port the stream was created with.
  *
  * Note that this class is NOT thread safe. A sequential process should call flush() before another starts writing.
  */
@@ -21,20 +22,29 @@ public class GelfChunkingOutputStream extends OutputStream {
     private final int MESSAGE_ID_LENGTH = 8;
     private final int SEQ_COUNT_POSITION = CHUNKED_GELF_ID_BYTES.length + MESSAGE_ID_LENGTH + 1;
 
+    // Once chunks have been released, this many are kept for the next chunked message
+    private final int DEFAULT_POOLED_CHUNKS = 16;
+
     // Bytes will be be added to this byte array until maxPacketSize is reached, at which point chunk mode will be
     // turned on, and the bytes will be replayed
     private final byte[] packetBytes;
     // Once chunk mode has been turned on (once maxPacketSize bytes have been written to this output stream), bytes will
     // be added to this 2D byte array. The first dimension is the current chunk sequence we're up to. The second
-    // dimension is the bytes in that particular chunk
+    // dimension is the bytes in that particular chunk. Chunks are borrowed from chunkPool as they're needed, and
+    // returned once the message has been sent
     private final byte[][] chunks;
+    private final ChunkPool chunkPool;
 
     private final int maxPacketSize;
-    private final MessageIdProvider messageIdProvider;
+    private final MessageIdGenerator messageIdGenerator;
 
-    private final InetAddress address;
-    private final int port;
+    private int sendBufferSize = 0;
+    // Null unless the stream belongs to an appender
+    private GelfMetrics metrics;
     private DatagramSocket socket;
+    private InetSocketAddress destination;
+    // Reused for every packet sent
+    private final DatagramPacket packet;
 
     // When in chunking mode, this is the index of the chunk that we are currently writing bytes to
     private int chunkIndex = 0;
@@ -46,7 +56,7 @@ public class GelfChunkingOutputStream extends OutputStream {
     // True when more so many bytes have been written that we've exceeded MAX_CHUNKS
     private boolean maxChunksReached = false;
     // Once chunking is turned on, this will have the messageID that should be used for all of this message's chunks
-    private byte[] messageID;
+    private long messageID;
 
     /**
      * Create a new GelfChunkingOutputStream
@@ -54,21 +64,55 @@ public class GelfChunkingOutputStream extends OutputStream {
      * @param address The address of the remove server
      * @param port The port of the remote server
      * @param maxPacketSize The maximum number of bytes allowed before chunking begins
-     * @param messageIdProvider A object that generates totally unique (for this machine) 8-byte message IDs.
+     * @param messageIdGenerator A object that generates totally unique (for this machine) 8-byte message IDs.
+     */
+    public GelfChunkingOutputStream(InetAddress address, int port, int maxPacketSize,
+                                    MessageIdGenerator messageIdGenerator) {
+        this(address, port, maxPacketSize, messageIdGenerator, null);
+    }
+
+    /**
+     * @param chunkPool Where to borrow chunks from. Its chunk size must be maxPacketSize. If null, the stream creates
+     *                  its own
      */
-    public GelfChunkingOutputStream(InetAddress address, int port, int maxPacketSize, MessageIdProvider messageIdProvider) {
-        this.address = address;
-        this.port = port;
+    GelfChunkingOutputStream(InetAddress address, int port, int maxPacketSize, MessageIdGenerator messageIdGenerator,
+                             ChunkPool chunkPool) {
+        this.destination = new InetSocketAddress(address, port);
         this.maxPacketSize = maxPacketSize;
-        this.messageIdProvider = messageIdProvider;
-        this.chunks = new byte[MAX_CHUNKS][maxPacketSize];
+        this.messageIdGenerator = messageIdGenerator;
+        this.chunks = new byte[MAX_CHUNKS][];
+        this.chunkPool = chunkPool != null ? chunkPool : new ChunkPool(maxPacketSize, DEFAULT_POOLED_CHUNKS);
         this.packetBytes = new byte[maxPacketSize];
+        this.packet = new DatagramPacket(packetBytes, 0);
     }
 
 
     public void start() throws SocketException, UnknownHostException {
         this.socket = new DatagramSocket();
-        this.socket.connect(address, port);
+        if (sendBufferSize > 0) {
+            this.socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+
+    /**
+     * Sets where the next message is sent. Must not be called part way through a message
+     */
+    public void setDestination(InetSocketAddress destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * Sets the socket's SO_SNDBUF. Must be called before start(). 0 (the default) leaves the OS default
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Sets where sends and messages dropped for being too big are recorded. Must be called before start()
+     */
+    void setMetrics(GelfMetrics metrics) {
+        this.metrics = metrics;
     }
 
     @Override
@@ -77,53 +121,77 @@ public class GelfChunkingOutputStream extends OutputStream {
             return;
         }
         if (!chunked) {
-            writeUnchunked((byte) b);
-
-        } else {
-            writeChunked((byte) b);
+            if (position < maxPacketSize) {
+                packetBytes[position++] = (byte) b;
+                return;
+            }
+            startChunking();
+        }
+        if (position == maxPacketSize && !nextChunk()) {
+            return;
         }
+        chunks[chunkIndex][position++] = (byte) b;
     }
 
-    private void writeUnchunked(byte b) throws IOException {
-        if (position < maxPacketSize) {
-            packetBytes[position++] = b;
-        } else {
-            startChunking();
-            write(b);
+    /**
+     * Copies whole spans of b at a time, splitting them across chunk boundaries as needed
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0 && !maxChunksReached) {
+            byte[] target;
+            if (!chunked) {
+                if (position == maxPacketSize) {
+                    startChunking();
+                    continue;
+                }
+                target = packetBytes;
+            } else {
+                if (position == maxPacketSize && !nextChunk()) {
+                    return;
+                }
+                target = chunks[chunkIndex];
+            }
+            int count = Math.min(len, maxPacketSize - position);
+            System.arraycopy(b, off, target, position, count);
+            position += count;
+            off += count;
+            len -= count;
         }
     }
 
     private void startChunking() throws IOException {
         chunked = true;
-        messageID = messageIdProvider.get();
+        messageID = messageIdGenerator.nextId();
         chunkIndex = -1;
         // pour the bytes back through in chunking mode. packetBytes is now ignored until flush finishes.
-        for (byte packetByte : packetBytes) {
-            write(packetByte);
-        }
-
+        write(packetBytes, 0, maxPacketSize);
     }
 
-    private void writeChunked(byte b) throws IOException {
-        if (position == maxPacketSize) {
-            if (chunkIndex == MAX_CHUNKS - 1) {
-                maxChunksReached = true;
-            } else {
-                chunkIndex++;
-                position = 0;
-                writeHeader();
-                write(b);
-            }
-        } else {
-            chunks[chunkIndex][position++] = b;
+    /**
+     * Moves on to a new chunk and writes its header.
+     *
+     * @return false if there are already MAX_CHUNKS chunks, in which case the message will be dropped
+     */
+    private boolean nextChunk() {
+        if (chunkIndex == MAX_CHUNKS - 1) {
+            maxChunksReached = true;
+            return false;
+        }
+        chunkIndex++;
+        if (chunks[chunkIndex] == null) {
+            chunks[chunkIndex] = chunkPool.acquire();
         }
+        position = 0;
+        writeHeader();
+        return true;
     }
 
     private void writeHeader() {
         chunks[chunkIndex][position++] = CHUNKED_GELF_ID_BYTES[0];
         chunks[chunkIndex][position++] = CHUNKED_GELF_ID_BYTES[1];
-        for (byte messageIDByte : messageID) {
-            chunks[chunkIndex][position++] = messageIDByte;
+        for (int shift = (MESSAGE_ID_LENGTH - 1) * 8; shift >= 0; shift -= 8) {
+            chunks[chunkIndex][position++] = (byte) (messageID >>> shift);
         }
         chunks[chunkIndex][position++] = (byte) chunkIndex;
         position++; // for the sequence count which will be added in flush
@@ -139,15 +207,22 @@ public class GelfChunkingOutputStream extends OutputStream {
 
             // Too many bytes written. Drop everything
             if (maxChunksReached) {
+                if (metrics != null) {
+                    metrics.dropped(GelfMetrics.DropReason.TOO_LARGE, 1);
+                }
                 return;
             }
 
+            long start = System.nanoTime();
             if (chunked) {
                 flushChunked();
 
             } else {
                 sendBytes(packetBytes, position);
             }
+            if (metrics != null) {
+                metrics.packetsSent(chunked ? chunkIndex + 1 : 1, System.nanoTime() - start);
+            }
 
         } finally {
             reset();
@@ -171,11 +246,28 @@ public class GelfChunkingOutputStream extends OutputStream {
     }
 
     private void sendBytes(byte[] bytes, int length) throws IOException {
-        DatagramPacket packet = new DatagramPacket(bytes, 0, length);
+        packet.setData(bytes, 0, length);
+        packet.setSocketAddress(destination);
         socket.send(packet);
     }
 
+    /**
+     * Closes the socket. Not done by close(), as logback closes an appender's old output stream when it's given a new
+     * one, which shouldn't stop the old one being used again
+     */
+    void closeSocket() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
     private void reset() {
+        if (chunked) {
+            for (int i = 0; i < chunks.length && chunks[i] != null; i++) {
+                chunkPool.release(chunks[i]);
+                chunks[i] = null;
+            }
+        }
         position = 0;
         chunkIndex = 0;
         chunked = false;
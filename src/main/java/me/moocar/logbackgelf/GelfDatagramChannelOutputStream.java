@@ -0,0 +1,231 @@
+package me.moocar.logbackgelf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An alternative to GelfChunkingOutputStream built on a DatagramChannel. Use flush() to signify the end of a message.
+ *
+ * The message is written once, into a direct buffer borrowed from a DirectBufferPool, after 12 bytes of headroom. If
+ * it is bigger than maxPacketSize, each chunk's 12 byte GELF header is written into the bytes just before its payload
+ * and the two are sent as a single view of the buffer. For the first chunk those bytes are the headroom; for the rest
+ * they are the tail of the previous chunk, which has already been sent. So payload bytes are never copied again, and
+ * nothing is allocated per packet.
+ *
+ * Each message goes to the destination set by {@link #setDestination(InetSocketAddress)}, which defaults to the
+ * address and port the stream was created with.
+ *
+ * In non-blocking mode a send that would block drops the rest of the message and is counted (see
+ * {@link #getWouldBlockCount()}), rather than holding up the sending thread.
+ *
+ * Note that this class is NOT thread safe. A sequential process should call flush() before another starts writing.
+ */
+public class GelfDatagramChannelOutputStream extends OutputStream {
+
+    // GELF specifies a maximum number of chunks. Chunks will be dropped on the server once more than MAX_CHUNKS are
+    // sent to the server for a particular message
+    private static final int MAX_CHUNKS = 128;
+    private static final int HEADER_LENGTH = 12;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final int maxPacketSize;
+    private final int maxMessageSize;
+    private final MessageIdGenerator messageIdGenerator;
+    private final int sendBufferSize;
+    private final boolean nonBlocking;
+    private final DirectBufferPool bufferPool;
+
+    private final AtomicLong wouldBlockCount = new AtomicLong();
+
+    // Null unless the stream belongs to an appender
+    private GelfMetrics metrics;
+    private DatagramChannel channel;
+    private InetSocketAddress destination;
+    // The message being written, after HEADER_LENGTH bytes of headroom. Small buffers are kept between messages, large
+    // ones go back to the pool
+    private ByteBuffer message;
+    // A second view of message, used to send slices of it without disturbing its position
+    private ByteBuffer view;
+    // True once the message is too big to send in MAX_CHUNKS chunks. Everything is dropped until the next flush
+    private boolean overflowed = false;
+
+    /**
+     * Create a new GelfDatagramChannelOutputStream
+     *
+     * @param address The address of the remove server
+     * @param port The port of the remote server
+     * @param maxPacketSize The maximum number of bytes allowed before chunking begins
+     * @param messageIdGenerator A object that generates totally unique (for this machine) 8-byte message IDs.
+     * @param sendBufferSize The socket's SO_SNDBUF, or 0 to leave the OS default
+     * @param nonBlocking Whether to drop messages rather than wait when the socket's send buffer is full
+     */
+    public GelfDatagramChannelOutputStream(InetAddress address, int port, int maxPacketSize,
+                                           MessageIdGenerator messageIdGenerator, int sendBufferSize,
+                                           boolean nonBlocking) {
+        this.destination = new InetSocketAddress(address, port);
+        this.maxPacketSize = maxPacketSize;
+        this.maxMessageSize = MAX_CHUNKS * (maxPacketSize - HEADER_LENGTH);
+        this.messageIdGenerator = messageIdGenerator;
+        this.sendBufferSize = sendBufferSize;
+        this.nonBlocking = nonBlocking;
+        this.bufferPool = DirectBufferPool.SHARED;
+    }
+
+    public void start() throws IOException {
+        channel = DatagramChannel.open();
+        if (sendBufferSize > 0) {
+            channel.socket().setSendBufferSize(sendBufferSize);
+        }
+        channel.configureBlocking(!nonBlocking);
+    }
+
+    /**
+     * Sets where the next message is sent. Must not be called part way through a message
+     */
+    public void setDestination(InetSocketAddress destination) {
+        this.destination = destination;
+    }
+
+    /**
+     * Sets where sends and dropped messages are recorded. Must be called before start()
+     */
+    void setMetrics(GelfMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (ensureRemaining(1)) {
+            message.put((byte) b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (ensureRemaining(len)) {
+            message.put(b, off, len);
+        }
+    }
+
+    /**
+     * Makes sure there is room in the message buffer for length more bytes, swapping it for a bigger one if needed.
+     *
+     * @return false if the message has become too big to send
+     */
+    private boolean ensureRemaining(int length) {
+        if (overflowed) {
+            return false;
+        }
+        int required = (message == null ? HEADER_LENGTH : message.position()) + length;
+        if (required - HEADER_LENGTH > maxMessageSize) {
+            overflowed = true;
+            return false;
+        }
+        if (message == null) {
+            setMessage(bufferPool.acquire(Math.max(INITIAL_BUFFER_SIZE, required)));
+            message.position(HEADER_LENGTH);
+        }
+        if (message.remaining() >= length) {
+            return true;
+        }
+        ByteBuffer bigger = bufferPool.acquire(Math.max(required, message.capacity() << 1));
+        message.flip();
+        bigger.put(message);
+        bufferPool.release(message);
+        setMessage(bigger);
+        return true;
+    }
+
+    private void setMessage(ByteBuffer buffer) {
+        message = buffer;
+        view = buffer == null ? null : buffer.duplicate();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (message == null) {
+            overflowed = false;
+            return;
+        }
+        try {
+            if (overflowed) {
+                if (metrics != null) {
+                    metrics.dropped(GelfMetrics.DropReason.TOO_LARGE, 1);
+                }
+            } else if (message.position() > HEADER_LENGTH) {
+                send(message.position() - HEADER_LENGTH);
+            }
+        } finally {
+            overflowed = false;
+            if (message.capacity() > INITIAL_BUFFER_SIZE) {
+                bufferPool.release(message);
+                setMessage(null);
+            } else {
+                message.clear();
+                message.position(HEADER_LENGTH);
+            }
+        }
+    }
+
+    private void send(int length) throws IOException {
+        long start = System.nanoTime();
+        int end = HEADER_LENGTH + length;
+        int packets;
+        if (length <= maxPacketSize) {
+            view.limit(end).position(HEADER_LENGTH);
+            if (channel.send(view, destination) == 0) {
+                wouldBlock();
+                return;
+            }
+            packets = 1;
+        } else {
+            int chunkSize = maxPacketSize - HEADER_LENGTH;
+            packets = (length + chunkSize - 1) / chunkSize;
+            long messageId = messageIdGenerator.nextId();
+            for (int i = 0; i < packets; i++) {
+                int header = i * chunkSize;
+                message.put(header, (byte) 0x1e).put(header + 1, (byte) 0x0f).putLong(header + 2, messageId)
+                        .put(header + 10, (byte) i).put(header + 11, (byte) packets);
+                view.limit(Math.min(end, header + maxPacketSize)).position(header);
+                if (channel.send(view, destination) == 0) {
+                    // The rest of the chunks would be useless without this one
+                    wouldBlock();
+                    return;
+                }
+            }
+        }
+        if (metrics != null) {
+            metrics.packetsSent(packets, System.nanoTime() - start);
+        }
+    }
+
+    private void wouldBlock() {
+        wouldBlockCount.incrementAndGet();
+        if (metrics != null) {
+            metrics.dropped(GelfMetrics.DropReason.WOULD_BLOCK, 1);
+        }
+    }
+
+    /**
+     * @return the number of messages dropped because the socket's send buffer was full (non-blocking mode only)
+     */
+    public long getWouldBlockCount() {
+        return wouldBlockCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (message != null) {
+            bufferPool.release(message);
+            setMessage(null);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package me.moocar.logbackgelf;
+
+/**
+ * Told about each message GelfHttpAppender gives up on, for example to write it somewhere else. Configured as the
+ * appender's dropListener.
+ *
+ * Called on the logging thread for messages dropped because the queue was full, and on a sender thread otherwise, so
+ * implementations must be thread safe. They should also be quick, as they hold up logging or sending while they run.
+ */
+public interface GelfDropListener {
+
+    /**
+     * @param message The message's GELF JSON, UTF-8 encoded and uncompressed. Only valid for the duration of the call
+     * @param length The number of bytes of message that hold the message
+     * @param reason Why it was dropped: QUEUE_FULL, SEND_FAILED or STOP_TIMEOUT
+     * @param cause The last failure while sending it, or null
+     */
+    void dropped(byte[] message, int length, GelfMetrics.DropReason reason, Exception cause);
+}
@@ -0,0 +1,27 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+
+import java.io.IOException;
+
+/**
+ * Encoder that writes GelfLayout's UTF-8 JSON bytes straight to the appender's output stream, skipping the String
+ * that LayoutWrappingEncoder would create for every event. Any other layout is encoded the same way
+ * LayoutWrappingEncoder does.
+ */
+public class GelfEncoder<E extends ILoggingEvent> extends LayoutWrappingEncoder<E> {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void doEncode(E event) throws IOException {
+        if (layout instanceof GelfLayout) {
+            ((GelfLayout<E>) layout).encode(event, outputStream);
+            if (isImmediateFlush()) {
+                outputStream.flush();
+            }
+        } else {
+            super.doEncode(event);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package me.moocar.logbackgelf;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of servers an appender sends to. Each configured endpoint is a host and port, and the host is resolved to all
+ * of its addresses of the preferred family, so a DNS name with several A records becomes several destinations.
+ *
+ * Resolving swaps in a new array of addresses, so {@link #select(int)} never blocks and never sees a half resolved
+ * set. The addresses are kept sorted, so the same key keeps mapping to the same address for as long as the set of
+ * addresses doesn't change, whatever order the DNS server returns them in. Selecting is thread safe.
+ */
+final class GelfEndpoints {
+
+    /**
+     * The key for a message that isn't routed by hash. Such messages are spread round-robin
+     */
+    static final int ROUND_ROBIN = -1;
+
+    private static final Comparator<InetSocketAddress> ADDRESS_ORDER = new Comparator<InetSocketAddress>() {
+        public int compare(InetSocketAddress a, InetSocketAddress b) {
+            byte[] x = a.getAddress().getAddress();
+            byte[] y = b.getAddress().getAddress();
+            if (x.length != y.length) {
+                return x.length - y.length;
+            }
+            for (int i = 0; i < x.length; i++) {
+                int difference = (x[i] & 0xff) - (y[i] & 0xff);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return a.getPort() - b.getPort();
+        }
+    };
+
+    private final String[] hosts;
+    private final int[] ports;
+    // The addresses of each host as of its last successful resolution
+    private final InetSocketAddress[][] resolved;
+
+    private volatile InetSocketAddress[] addresses = new InetSocketAddress[0];
+    // Shared by every thread that selects, as lanes send from the logging threads without a lock
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param endpoints Each is "host" or "host:port". IPv6 literals with a port are written "[::1]:12201"
+     * @param defaultPort The port of endpoints that don't specify one
+     */
+    GelfEndpoints(List<String> endpoints, int defaultPort) {
+        this.hosts = new String[endpoints.size()];
+        this.ports = new int[endpoints.size()];
+        this.resolved = new InetSocketAddress[endpoints.size()][];
+        for (int i = 0; i < hosts.length; i++) {
+            String endpoint = endpoints.get(i).trim();
+            int colon = endpoint.lastIndexOf(':');
+            if (endpoint.startsWith("[")) {
+                int bracket = endpoint.indexOf(']');
+                if (bracket < 0) {
+                    throw new IllegalArgumentException("Invalid endpoint: " + endpoint);
+                }
+                hosts[i] = endpoint.substring(1, bracket);
+                ports[i] = colon > bracket ? parsePort(endpoint, colon) : defaultPort;
+            } else if (colon > 0 && endpoint.indexOf(':') == colon) {
+                hosts[i] = endpoint.substring(0, colon);
+                ports[i] = parsePort(endpoint, colon);
+            } else {
+                // A bare host, or an IPv6 literal without a port
+                hosts[i] = endpoint;
+                ports[i] = defaultPort;
+            }
+        }
+    }
+
+    private static int parsePort(String endpoint, int colon) {
+        try {
+            int port = Integer.parseInt(endpoint.substring(colon + 1));
+            if (port > 0 && port <= 0xffff) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid port in endpoint: " + endpoint);
+    }
+
+    /**
+     * Looks up every host again. A host that can't be resolved keeps the addresses it had before.
+     *
+     * @return the hosts that couldn't be resolved
+     */
+    List<String> resolve() {
+        List<String> failures = new ArrayList<String>();
+        for (int i = 0; i < hosts.length; i++) {
+            try {
+                InetAddress[] all = InetAddress.getAllByName(hosts[i]);
+                // Only use addresses of the preferred family (the first one returned), as a server listening on one
+                // of a host's IPv4 addresses doesn't necessarily listen on its IPv6 ones, or vice versa
+                List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>(all.length);
+                for (InetAddress address : all) {
+                    if (address.getClass() == all[0].getClass()) {
+                        addresses.add(new InetSocketAddress(address, ports[i]));
+                    }
+                }
+                resolved[i] = addresses.toArray(new InetSocketAddress[addresses.size()]);
+            } catch (UnknownHostException e) {
+                failures.add(hosts[i]);
+            }
+        }
+        Set<InetSocketAddress> unique = new LinkedHashSet<InetSocketAddress>();
+        for (InetSocketAddress[] addresses : resolved) {
+            if (addresses != null) {
+                unique.addAll(Arrays.asList(addresses));
+            }
+        }
+        InetSocketAddress[] sorted = unique.toArray(new InetSocketAddress[unique.size()]);
+        Arrays.sort(sorted, ADDRESS_ORDER);
+        if (!Arrays.equals(sorted, addresses)) {
+            addresses = sorted;
+        }
+        return failures;
+    }
+
+    /**
+     * Picks the destination of a message. Messages with the same non-negative key go to the same address while the
+     * set of addresses stays the same. ROUND_ROBIN spreads messages evenly.
+     *
+     * @return the address, or null if nothing has been resolved
+     */
+    InetSocketAddress select(int key) {
+        InetSocketAddress[] addresses = this.addresses;
+        if (addresses.length <= 1) {
+            return addresses.length == 0 ? null : addresses[0];
+        }
+        int index;
+        if (key < 0) {
+            index = next.getAndIncrement() & Integer.MAX_VALUE;
+        } else {
+            // Mix the high bits into the low ones, which are all that the modulo below looks at for a few addresses
+            index = (key ^ (key >>> 16)) & Integer.MAX_VALUE;
+        }
+        return addresses[index % addresses.length];
+    }
+
+    /**
+     * @return the current addresses, in the order select() uses
+     */
+    List<InetSocketAddress> addresses() {
+        return Arrays.asList(addresses.clone());
+    }
+
+    /**
+     * @return a key that routes messages with this value together
+     */
+    static int keyFor(String value) {
+        return value.hashCode() & Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,875 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.classic.util.LevelToSyslogSeverity;
+import ch.qos.logback.core.Layout;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable, precompiled description of how GelfLayout turns an event into GELF JSON. Everything that is the same
+ * for every message (version, host and static fields) is serialized once into a UTF-8 prefix, leaving an ordered list
+ * of dynamic fields that are written per event.
+ *
+ * GelfLayout compiles a new plan each time it is started, so changes to its configuration only take effect on the
+ * next start.
+ *
+ * A message that comes out bigger than GelfLayout's maxEncodedSize is written again by
+ * {@link #writeTruncated(ILoggingEvent, GelfJsonWriter, int)}, with a {@link Truncation} telling the fields that can
+ * be shortened how much of themselves to write.
+ */
+final class GelfFieldPlan {
+
+    /**
+     * Writes one (or a few closely related) dynamic fields of an event
+     */
+    interface FieldWriter {
+
+        /**
+         * @param truncation Null, unless the message is being written again to fit maxEncodedSize
+         */
+        void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation);
+    }
+
+    private static final byte[] TRUNCATED = GelfJsonWriter.encodeName("_truncated");
+
+    private final byte[] prefix;
+    private final boolean prefixHasFields;
+    private final FieldWriter[] fields;
+
+    GelfFieldPlan(byte[] prefix, boolean prefixHasFields, List<FieldWriter> fields) {
+        this.prefix = prefix;
+        this.prefixHasFields = prefixHasFields;
+        this.fields = fields.toArray(new FieldWriter[fields.size()]);
+    }
+
+    void write(ILoggingEvent event, GelfJsonWriter writer) {
+        writer.beginObject(prefix, prefixHasFields);
+        for (FieldWriter field : fields) {
+            field.write(event, writer, null);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the event again, replacing what's in writer, trimming it until it fits in maxSize bytes. Stack frames go
+     * first, then the rest of full_message, then the end of the biggest MDC values, then short_message and finally the
+     * MDC fields altogether. A "_truncated" field holding the original size is added. A message whose static and other
+     * fields are too big on their own is left too big.
+     */
+    void writeTruncated(ILoggingEvent event, GelfJsonWriter writer, int maxSize) {
+        Truncation truncation = new Truncation(writer.size());
+        // The first pass measures the fields that can be trimmed
+        write(event, writer, truncation);
+        int frames = FrameLimitedEvent.frames(event.getThrowableProxy());
+        while (writer.size() > maxSize && frames > 0 && truncation.fullMessageSize > 0) {
+            frames /= 2;
+            truncation.maxFrames = frames;
+            write(event, writer, truncation);
+        }
+        if (writer.size() > maxSize && truncation.fullMessageSize >= 0) {
+            truncation.fullMessageBytes = Math.max(0, truncation.fullMessageSize - (writer.size() - maxSize));
+            write(event, writer, truncation);
+        }
+        if (writer.size() > maxSize && truncation.mdcValues > 0) {
+            truncation.mdcValueBytes = truncation.mdcValueCap(writer.size() - maxSize);
+            write(event, writer, truncation);
+        }
+        if (writer.size() > maxSize && truncation.shortMessageSize > 1) {
+            // GELF requires a short_message, so keep at least a character of it
+            truncation.shortMessageBytes = Math.max(1, truncation.shortMessageSize - (writer.size() - maxSize));
+            write(event, writer, truncation);
+        }
+        if (writer.size() > maxSize && truncation.mdcValues > 0) {
+            truncation.dropMdc = true;
+            write(event, writer, truncation);
+        }
+    }
+
+    private void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+        writer.reset();
+        truncation.startPass();
+        writer.beginObject(prefix, prefixHasFields);
+        for (FieldWriter field : fields) {
+            field.write(event, writer, truncation);
+        }
+        writer.name(TRUNCATED);
+        writer.longValue(truncation.originalSize);
+        writer.endObject();
+    }
+
+    /**
+     * How much of each field that can be trimmed to write when a message is written again to fit maxEncodedSize, and
+     * how big each of them came out on the last pass. Sizes are of the escaped UTF-8 bytes between the quotes.
+     */
+    static final class Truncation {
+
+        static final int UNLIMITED = Integer.MAX_VALUE;
+
+        final int originalSize;
+
+        // The most stack frames shown for each throwable in full_message
+        int maxFrames = UNLIMITED;
+        // 0 leaves full_message out
+        int fullMessageBytes = UNLIMITED;
+        int shortMessageBytes = UNLIMITED;
+        int mdcValueBytes = UNLIMITED;
+        boolean dropMdc = false;
+
+        // Measured on each pass. -1 if the field wasn't written
+        int fullMessageSize;
+        int shortMessageSize;
+        // The sizes of the MDC values written as strings
+        int[] mdcValueSizes = new int[16];
+        int mdcValues;
+
+        Truncation(int originalSize) {
+            this.originalSize = originalSize;
+        }
+
+        void startPass() {
+            fullMessageSize = -1;
+            shortMessageSize = -1;
+            mdcValues = 0;
+        }
+
+        void mdcValueWritten(int size) {
+            if (mdcValues == mdcValueSizes.length) {
+                mdcValueSizes = Arrays.copyOf(mdcValueSizes, mdcValues * 2);
+            }
+            mdcValueSizes[mdcValues++] = size;
+        }
+
+        /**
+         * @return the biggest size that MDC values can be cut down to and still save excess bytes between them, or 0
+         * if cutting all of them down to nothing wouldn't be enough
+         */
+        int mdcValueCap(int excess) {
+            int[] sizes = Arrays.copyOf(mdcValueSizes, mdcValues);
+            Arrays.sort(sizes);
+            // Cap the k biggest values at the same size, for increasing k, until that saves enough
+            long biggest = 0;
+            for (int k = 1; k <= sizes.length; k++) {
+                biggest += sizes[sizes.length - k];
+                long cap = (biggest - excess) / k;
+                int next = k < sizes.length ? sizes[sizes.length - k - 1] : 0;
+                if (cap >= next) {
+                    return (int) cap;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Writes short_message and full_message, leaving out full_message when it's the same as short_message.
+     *
+     * Either layout can be its default pattern, in which case it isn't run. The formatted message is used directly,
+     * and only once: short_message is its last SHORT_MESSAGE_LENGTH characters, as "%.100m" would give, and
+     * full_message all of it. The throwable of an event, if it has one, comes from the stack trace cache already
+     * rendered and escaped. Without a cache, or with a custom layout, the layout is run.
+     */
+    static final class MessageFields implements FieldWriter {
+
+        // The length "%.100m" in the default short message pattern truncates the message to
+        static final int SHORT_MESSAGE_LENGTH = 100;
+
+        private static final byte[] SHORT_MESSAGE = GelfJsonWriter.encodeName("short_message");
+        private static final byte[] FULL_MESSAGE = GelfJsonWriter.encodeName("full_message");
+        private static final byte[] NO_BYTES = new byte[0];
+
+        private final Layout shortLayout;
+        private final Layout fullLayout;
+        private final boolean shortIsDefault;
+        private final boolean fullIsDefault;
+        private final StackTraceCache stackTraces;
+        private final boolean writeShort;
+        private final boolean writeFull;
+
+        /**
+         * @param shortIsDefault Whether shortLayout is "%ex{short}%.100m"
+         * @param fullIsDefault Whether fullLayout is "%rEx%m"
+         * @param stackTraces The cache of throwables rendered for the default layouts, or null
+         * @param writeShort False if a static field takes the place of short_message
+         * @param writeFull False if a static field takes the place of full_message
+         */
+        MessageFields(Layout shortLayout, Layout fullLayout, boolean shortIsDefault, boolean fullIsDefault,
+                      StackTraceCache stackTraces, boolean writeShort, boolean writeFull) {
+            this.shortLayout = shortLayout;
+            this.fullLayout = fullLayout;
+            this.shortIsDefault = shortIsDefault;
+            this.fullIsDefault = fullIsDefault;
+            this.stackTraces = stackTraces;
+            this.writeShort = writeShort;
+            this.writeFull = writeFull;
+        }
+
+        @SuppressWarnings("unchecked")
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            if (truncation != null) {
+                writeTruncated(event, writer, truncation);
+                return;
+            }
+            boolean throwable = event.getThrowableProxy() != null;
+            StackTraceCache.Entry cached = throwable && stackTraces != null ? stackTraces.get(event) : null;
+            boolean fastShort = shortIsDefault && (!throwable || cached != null);
+            boolean fastFull = fullIsDefault && (!throwable || cached != null);
+            String message = fastShort || fastFull ? String.valueOf(event.getFormattedMessage()) : null;
+
+            String shortValue = null;
+            int shortStart = 0;
+            if (writeShort) {
+                if (fastShort) {
+                    shortStart = shortMessageStart(message);
+                    writer.name(SHORT_MESSAGE);
+                    writer.string(throwable ? cached.brief : NO_BYTES, message, shortStart, message.length());
+                } else {
+                    shortValue = shortLayout.doLayout(event);
+                    if (shortValue != null) {
+                        writer.name(SHORT_MESSAGE);
+                        writer.string(shortValue);
+                    }
+                }
+            }
+            if (!writeFull || event instanceof TrimmedEvent) {
+                return;
+            }
+            String fullValue = fastFull ? null : fullLayout.doLayout(event);
+            if (writeShort && !throwable) {
+                // Without a throwable, the two are often the same. With one, they never are with the default layouts
+                boolean same;
+                if (fastShort && fastFull) {
+                    same = shortStart == 0;
+                } else if (fastShort) {
+                    int length = message.length() - shortStart;
+                    same = fullValue != null && fullValue.length() == length &&
+                            fullValue.regionMatches(0, message, shortStart, length);
+                } else if (fastFull) {
+                    same = message.equals(shortValue);
+                } else {
+                    same = fullValue != null && fullValue.equals(shortValue);
+                }
+                if (same) {
+                    return;
+                }
+            } else if (writeShort && !fastShort && !fastFull && fullValue != null && fullValue.equals(shortValue)) {
+                return;
+            }
+            if (fastFull) {
+                writer.name(FULL_MESSAGE);
+                writer.string(throwable ? cached.full : NO_BYTES, message, 0, message.length());
+            } else if (fullValue != null) {
+                writer.name(FULL_MESSAGE);
+                writer.string(fullValue);
+            }
+        }
+
+        /**
+         * Runs the layouts, cutting their results down to what truncation allows
+         */
+        @SuppressWarnings("unchecked")
+        private void writeTruncated(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            String shortValue = null;
+            if (writeShort) {
+                shortValue = shortLayout.doLayout(event);
+                if (shortValue != null) {
+                    writer.name(SHORT_MESSAGE);
+                    truncation.shortMessageSize = writer.string(shortValue, truncation.shortMessageBytes);
+                }
+            }
+            if (!writeFull || truncation.fullMessageBytes == 0 || event instanceof TrimmedEvent) {
+                return;
+            }
+            if (truncation.maxFrames != Truncation.UNLIMITED && event.getThrowableProxy() != null) {
+                event = new FrameLimitedEvent(event, truncation.maxFrames);
+            }
+            String fullValue = fullLayout.doLayout(event);
+            if (fullValue != null && !fullValue.equals(shortValue)) {
+                writer.name(FULL_MESSAGE);
+                truncation.fullMessageSize = writer.string(fullValue, truncation.fullMessageBytes);
+            }
+        }
+
+        /**
+         * @return the index of the first character of message that "%.100m" keeps, moved past the low half of a
+         * surrogate pair rather than splitting it
+         */
+        static int shortMessageStart(String message) {
+            int start = Math.max(0, message.length() - SHORT_MESSAGE_LENGTH);
+            if (start > 0 && Character.isLowSurrogate(message.charAt(start)) &&
+                    Character.isHighSurrogate(message.charAt(start - 1))) {
+                start++;
+            }
+            return start;
+        }
+    }
+
+    static final class TimestampField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("timestamp");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            writer.name(NAME);
+            writer.timestampValue(event.getTimeStamp());
+        }
+    }
+
+    static final class LevelField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("level");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            writer.name(NAME);
+            writer.longValue(LevelToSyslogSeverity.convert(event));
+        }
+    }
+
+    static final class LoggerNameField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("_loggerName");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            String loggerName = event.getLoggerName();
+            if (loggerName != null) {
+                writer.name(NAME);
+                writer.string(loggerName);
+            }
+        }
+    }
+
+    static final class ThreadNameField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("_threadName");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            String threadName = event.getThreadName();
+            if (threadName != null) {
+                writer.name(NAME);
+                writer.string(threadName);
+            }
+        }
+    }
+
+    static final class MarkerField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("_marker");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            if (event.getMarker() != null) {
+                writer.name(NAME);
+                writer.string(event.getMarker().toString());
+            }
+        }
+    }
+
+    /**
+     * Adds the _file and _line of the caller when the event has a stack trace. Either can be left out if overridden by
+     * a static field.
+     */
+    static final class CallerField implements FieldWriter {
+
+        private static final byte[] FILE = GelfJsonWriter.encodeName("_file");
+        private static final byte[] LINE = GelfJsonWriter.encodeName("_line");
+
+        private final boolean includeFile;
+        private final boolean includeLine;
+
+        CallerField(boolean includeFile, boolean includeLine) {
+            this.includeFile = includeFile;
+            this.includeLine = includeLine;
+        }
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            IThrowableProxy throwableProxy = event.getThrowableProxy();
+            if (throwableProxy != null) {
+                StackTraceElementProxy[] proxyStackTraces = throwableProxy.getStackTraceElementProxyArray();
+                if (proxyStackTraces != null && proxyStackTraces.length > 0) {
+                    StackTraceElement[] callStackTraces = event.getCallerData();
+                    if (callStackTraces != null && callStackTraces.length > 0) {
+                        StackTraceElement lastStack = callStackTraces[0];
+                        if (includeFile && lastStack.getFileName() != null) {
+                            writer.name(FILE);
+                            writer.string(lastStack.getFileName());
+                        }
+                        if (includeLine) {
+                            // _line has always been sent as a string
+                            writer.name(LINE);
+                            writer.quotedLongValue(lastStack.getLineNumber());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes how many events a summary from GelfThrottle stands for, and when the first and last of them happened
+     */
+    static final class SuppressionFields implements FieldWriter {
+
+        private static final byte[] COUNT = GelfJsonWriter.encodeName("_suppressed_count");
+        private static final byte[] FIRST = GelfJsonWriter.encodeName("_first_timestamp");
+        private static final byte[] LAST = GelfJsonWriter.encodeName("_last_timestamp");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            if (event instanceof SuppressedEvents) {
+                SuppressedEvents summary = (SuppressedEvents) event;
+                writer.name(COUNT);
+                writer.longValue(summary.getSuppressedCount());
+                writer.name(FIRST);
+                writer.timestampValue(summary.getFirstTimeStamp());
+                writer.name(LAST);
+                writer.timestampValue(summary.getTimeStamp());
+            }
+        }
+    }
+
+    /**
+     * Writes the fingerprint of the event's throwable, if it has one, so that messages can be grouped by stack trace
+     */
+    static final class StackHashField implements FieldWriter {
+
+        private static final byte[] NAME = GelfJsonWriter.encodeName("_stack_hash");
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            IThrowableProxy throwableProxy = event.getThrowableProxy();
+            if (throwableProxy != null) {
+                writer.name(NAME);
+                writer.hexValue(StackTraceCache.fingerprint(throwableProxy));
+            }
+        }
+    }
+
+    /**
+     * Writes the {@link StructuredArgument}s among the event's arguments, and its SLF4J 2 key value pairs, as
+     * additional fields named after their keys with an underscore in front. Values are written as their own JSON type.
+     *
+     * Each field is written once: keys whose field is reserved, or already written from the MDC, are left out, and of
+     * several arguments with the same key only the first is written. Checking for those doesn't allocate, as events
+     * have few arguments.
+     */
+    static final class ArgumentFields implements FieldWriter {
+
+        // The most keys to keep field names for
+        private static final int MAX_KEYS = 1024;
+        private static final FieldName RESERVED = new FieldName(null);
+
+        private final Set<String> reservedNames;
+        // Null if MDC fields aren't written
+        private final MdcFields mdcFields;
+        // Keys mapped to their field names, or to RESERVED
+        private final ConcurrentHashMap<String, FieldName> names = new ConcurrentHashMap<String, FieldName>();
+
+        ArgumentFields(Set<String> reservedNames, MdcFields mdcFields) {
+            this.reservedNames = reservedNames;
+            this.mdcFields = mdcFields;
+        }
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            Object[] arguments = event.getArgumentArray();
+            List<?> pairs = KeyValuePairs.of(event);
+            if (arguments != null) {
+                for (int i = 0; i < arguments.length; i++) {
+                    if (arguments[i] instanceof StructuredArgument) {
+                        StructuredArgument argument = (StructuredArgument) arguments[i];
+                        if (!writtenBefore(argument.key, arguments, i, pairs, 0)) {
+                            write(argument, event, writer, truncation);
+                        }
+                    }
+                }
+            }
+            if (pairs != null) {
+                for (int i = 0; i < pairs.size(); i++) {
+                    Object pair = pairs.get(i);
+                    String key = KeyValuePairs.key(pair);
+                    if (key != null && !writtenBefore(key, arguments, arguments == null ? 0 : arguments.length, pairs,
+                            i)) {
+                        write(key, KeyValuePairs.value(pair), event, writer, truncation);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return true if key's field was written for one of the arguments before argumentEnd, or the pairs before
+         * pairEnd. A key's field is left out for all of its arguments or for none, so only null values need checking
+         */
+        private static boolean writtenBefore(String key, Object[] arguments, int argumentEnd, List<?> pairs,
+                                             int pairEnd) {
+            for (int i = 0; i < argumentEnd; i++) {
+                if (arguments[i] instanceof StructuredArgument) {
+                    StructuredArgument argument = (StructuredArgument) arguments[i];
+                    if (argument.key.equals(key) &&
+                            (argument.type != StructuredArgument.Type.OBJECT || argument.value != null)) {
+                        return true;
+                    }
+                }
+            }
+            for (int i = 0; i < pairEnd; i++) {
+                Object pair = pairs.get(i);
+                if (key.equals(KeyValuePairs.key(pair)) && KeyValuePairs.value(pair) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void write(StructuredArgument argument, ILoggingEvent event, GelfJsonWriter writer,
+                           Truncation truncation) {
+            switch (argument.type) {
+                case LONG:
+                    if (name(argument.key, event, writer, truncation)) {
+                        writer.longValue(argument.longValue);
+                    }
+                    break;
+                case DOUBLE:
+                    if (name(argument.key, event, writer, truncation)) {
+                        writer.doubleValue(argument.doubleValue);
+                    }
+                    break;
+                default:
+                    write(argument.key, argument.value, event, writer, truncation);
+            }
+        }
+
+        private void write(String key, Object value, ILoggingEvent event, GelfJsonWriter writer,
+                           Truncation truncation) {
+            if (value == null || !name(key, event, writer, truncation)) {
+                return;
+            }
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writer.longValue(((Number) value).longValue());
+            } else if (value instanceof Double || value instanceof Float) {
+                writer.doubleValue(((Number) value).doubleValue());
+            } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+                // Their toString() is a valid JSON number, however big
+                writer.ascii(value.toString());
+            } else if (value instanceof Boolean) {
+                writer.booleanValue((Boolean) value);
+            } else {
+                writer.string(String.valueOf(value));
+            }
+        }
+
+        /**
+         * Writes the name of key's field
+         *
+         * @return false if nothing was written because the field is reserved or was written from the MDC
+         */
+        private boolean name(String key, ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            FieldName name = names.get(key);
+            if (name == null) {
+                String fieldName = "_" + key;
+                name = reservedNames.contains(fieldName) ? RESERVED : new FieldName(fieldName);
+                if (names.size() < MAX_KEYS) {
+                    names.putIfAbsent(key, name);
+                }
+            }
+            if (name == RESERVED || (mdcFields != null &&
+                    mdcFields.writes(event.getMDCPropertyMap(), key, name.name, truncation))) {
+                return false;
+            }
+            writer.name(name.encoded);
+            return true;
+        }
+
+        private static final class FieldName {
+
+            private final String name;
+            private final byte[] encoded;
+
+            FieldName(String name) {
+                this.name = name;
+                this.encoded = name == null ? null : GelfJsonWriter.encodeName(name);
+            }
+        }
+    }
+
+    /**
+     * Writes MDC values as additional fields. Either every MDC entry is written (using the additional field name if
+     * there is one, or the key with an underscore prefix otherwise), or only those with an additional field mapping.
+     * MDC entries can't override built in or static fields.
+     *
+     * A field type can be configured against either the MDC key or the GELF field name. If the value can't be
+     * converted, it is sent as a string.
+     *
+     * Logback gives every event the same MDC map until the MDC changes, so the serialized fields are cached against
+     * the map, per thread. A cached fragment is only used if the map still holds the same key and value instances it
+     * was written from, so a map that is changed in place is written again. Field names are resolved once per key.
+     */
+    static final class MdcFields implements FieldWriter {
+
+        // The MDC maps each thread keeps fragments for. More than one helps when a thread lays out the events of others
+        private static final int FRAGMENTS_PER_THREAD = 4;
+        // The most MDC keys without an additional field mapping to keep resolved field names for
+        private static final int MAX_UNMAPPED_KEYS = 1024;
+
+        private final MappedField[] mappedFields;
+        // Mapped keys, plus the unmapped keys seen so far if includeFullMDC is set
+        private final ConcurrentHashMap<String, MappedField> fieldsByKey;
+        private final boolean includeFullMDC;
+        private final Set<String> reservedNames;
+        private final Map<String, FieldConverter> converters;
+        private final GelfLayout<?> layout;
+        private final ThreadLocal<FragmentCache> fragments = new ThreadLocal<FragmentCache>() {
+            @Override
+            protected FragmentCache initialValue() {
+                return new FragmentCache();
+            }
+        };
+
+        MdcFields(Map<String, String> additionalFields, boolean includeFullMDC, Set<String> reservedNames,
+                  Map<String, FieldConverter> converters, GelfLayout<?> layout) {
+            this.includeFullMDC = includeFullMDC;
+            this.reservedNames = reservedNames;
+            this.converters = new HashMap<String, FieldConverter>(converters);
+            this.layout = layout;
+            this.mappedFields = new MappedField[additionalFields.size()];
+            this.fieldsByKey = new ConcurrentHashMap<String, MappedField>();
+            int i = 0;
+            for (Entry<String, String> additionalField : additionalFields.entrySet()) {
+                String key = additionalField.getKey();
+                String name = additionalField.getValue();
+                MappedField field = new MappedField(key, name, converter(key, name), reservedNames.contains(name));
+                mappedFields[i++] = field;
+                fieldsByKey.put(key, field);
+            }
+        }
+
+        public void write(ILoggingEvent event, GelfJsonWriter writer, Truncation truncation) {
+            Map<String, String> mdc = event.getMDCPropertyMap();
+            if (mdc == null || mdc.isEmpty() || (truncation != null && truncation.dropMdc)) {
+                return;
+            }
+            if (truncation != null) {
+                writeFields(mdc, writer, truncation, null);
+                return;
+            }
+            FragmentCache cache = fragments.get();
+            Fragment fragment = cache.find(mdc);
+            if (fragment == null) {
+                GelfJsonWriter scratch = cache.scratch;
+                scratch.reset();
+                scratch.beginFragment();
+                cache.failures.clear();
+                writeFields(mdc, scratch, null, cache.failures);
+                fragment = cache.add(mdc, scratch.toByteArray());
+            } else if (fragment.failures != null) {
+                // Counted again for each message, as they would be if the fields were written again
+                for (int i = 0; i < fragment.failures.length; i += 2) {
+                    layout.fieldConversionFailed(fragment.failures[i], fragment.failures[i + 1]);
+                }
+            }
+            writer.fields(fragment.bytes);
+        }
+
+        /**
+         * @param failures Where to add the name and value of each field that couldn't be converted, or null
+         */
+        private void writeFields(Map<String, String> mdc, GelfJsonWriter writer, Truncation truncation,
+                                 List<String> failures) {
+            if (includeFullMDC) {
+                for (Entry<String, String> e : mdc.entrySet()) {
+                    String value = e.getValue();
+                    if (value != null) {
+                        field(e.getKey()).write(value, writer, layout, truncation, failures);
+                    }
+                }
+            } else {
+                for (MappedField mappedField : mappedFields) {
+                    String value = mdc.get(mappedField.key);
+                    if (value != null) {
+                        mappedField.write(value, writer, layout, truncation, failures);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Whether the MDC is written with a field called name, such as the MDC entry key would be written as if
+         * includeFullMDC is set. Doesn't allocate.
+         */
+        boolean writes(Map<String, String> mdc, String key, String name, Truncation truncation) {
+            if (mdc == null || mdc.isEmpty() || (truncation != null && truncation.dropMdc)) {
+                return false;
+            }
+            if (includeFullMDC && mdc.get(key) != null) {
+                // An unmapped key's field is named after it
+                MappedField field = fieldsByKey.get(key);
+                if (field == null || field.name.equals(name)) {
+                    return true;
+                }
+            }
+            for (MappedField mappedField : mappedFields) {
+                if (mappedField.name.equals(name) && mdc.get(mappedField.key) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private MappedField field(String key) {
+            MappedField field = fieldsByKey.get(key);
+            if (field == null) {
+                String name = "_" + key;
+                field = new MappedField(key, name, converter(key, name), reservedNames.contains(name));
+                if (fieldsByKey.size() < mappedFields.length + MAX_UNMAPPED_KEYS) {
+                    MappedField existing = fieldsByKey.putIfAbsent(key, field);
+                    if (existing != null) {
+                        field = existing;
+                    }
+                }
+            }
+            return field;
+        }
+
+        private FieldConverter converter(String key, String name) {
+            FieldConverter converter = converters.get(name);
+            return converter != null ? converter : converters.get(key);
+        }
+
+        /**
+         * @return false if the value was written as a string because it couldn't be converted
+         */
+        private static boolean writeValue(String name, String value, FieldConverter converter, GelfJsonWriter writer,
+                                          GelfLayout<?> layout, Truncation truncation) {
+            boolean converted = true;
+            if (converter != null) {
+                if (converter.write(value, writer)) {
+                    return true;
+                }
+                converted = false;
+                if (truncation == null) {
+                    // Already reported, the first time the message was written
+                    layout.fieldConversionFailed(name, value);
+                }
+            }
+            if (truncation == null) {
+                writer.string(value);
+            } else {
+                truncation.mdcValueWritten(writer.string(value, truncation.mdcValueBytes));
+            }
+            return converted;
+        }
+
+        /**
+         * An MDC key and the field it is written as, resolved once
+         */
+        private static final class MappedField {
+
+            private final String key;
+            private final String name;
+            private final byte[] encodedName;
+            private final FieldConverter converter;
+            private final boolean reserved;
+
+            MappedField(String key, String name, FieldConverter converter, boolean reserved) {
+                this.key = key;
+                this.name = name;
+                this.encodedName = GelfJsonWriter.encodeName(name);
+                this.converter = converter;
+                this.reserved = reserved;
+            }
+
+            void write(String value, GelfJsonWriter writer, GelfLayout<?> layout, Truncation truncation,
+                       List<String> failures) {
+                if (!reserved) {
+                    writer.name(encodedName);
+                    if (!writeValue(name, value, converter, writer, layout, truncation) && failures != null) {
+                        failures.add(name);
+                        failures.add(value);
+                    }
+                }
+            }
+        }
+
+        /**
+         * The fragments of one thread, replaced round robin
+         */
+        private static final class FragmentCache {
+
+            private final Fragment[] fragments = new Fragment[FRAGMENTS_PER_THREAD];
+            private final GelfJsonWriter scratch = new GelfJsonWriter(256);
+            private final List<String> failures = new ArrayList<String>();
+            private int next = 0;
+
+            Fragment find(Map<String, String> mdc) {
+                for (Fragment fragment : fragments) {
+                    if (fragment != null && fragment.mdc == mdc && fragment.matches(mdc)) {
+                        return fragment;
+                    }
+                }
+                return null;
+            }
+
+            Fragment add(Map<String, String> mdc, byte[] bytes) {
+                Fragment fragment = new Fragment(mdc, bytes,
+                        failures.isEmpty() ? null : failures.toArray(new String[failures.size()]));
+                // A map that no longer matches its fragment takes over that fragment's slot
+                for (int i = 0; i < fragments.length; i++) {
+                    if (fragments[i] != null && fragments[i].mdc == mdc) {
+                        fragments[i] = fragment;
+                        return fragment;
+                    }
+                }
+                fragments[next] = fragment;
+                next = (next + 1) % fragments.length;
+                return fragment;
+            }
+        }
+
+        /**
+         * The serialized fields of an MDC map, and the entries they were written from
+         */
+        private static final class Fragment {
+
+            private final Map<String, String> mdc;
+            private final String[] keys;
+            private final String[] values;
+            private final byte[] bytes;
+            // The name and value of each field that couldn't be converted, or null
+            private final String[] failures;
+
+            Fragment(Map<String, String> mdc, byte[] bytes, String[] failures) {
+                this.mdc = mdc;
+                this.keys = new String[mdc.size()];
+                this.values = new String[keys.length];
+                int i = 0;
+                for (Entry<String, String> e : mdc.entrySet()) {
+                    keys[i] = e.getKey();
+                    values[i++] = e.getValue();
+                }
+                this.bytes = bytes;
+                this.failures = failures;
+            }
+
+            /**
+             * @return true if mdc still holds the same keys and values, in the same order
+             */
+            boolean matches(Map<String, String> mdc) {
+                if (mdc.size() != keys.length) {
+                    return false;
+                }
+                int i = 0;
+                for (Entry<String, String> e : mdc.entrySet()) {
+                    if (e.getKey() != keys[i] || e.getValue() != values[i]) {
+                        return false;
+                    }
+                    i++;
+                }
+                return true;
+            }
+        }
+    }
+}
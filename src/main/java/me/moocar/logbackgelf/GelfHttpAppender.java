@@ -0,0 +1,743 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.Deflater;
+
+/**
+ * An HTTP appender that POSTs each GELF message to a Graylog GELF HTTP input, for networks that only let HTTP through.
+ *
+ * Logging threads only lay the message out and put the bytes on a lock-free queue. Up to maxInFlight sender threads
+ * take messages off the queue and send them, one request at a time each, so a slow response holds up one sender rather
+ * than logging or the other senders. Connections are kept alive and reused between requests by the JDK's HTTP client,
+ * which keeps up to http.maxConnections (5 by default) idle connections per server.
+ *
+ * Bodies of at least minCompressSize bytes are gzipped, and sent with a Content-Encoding header. A request that fails
+ * with an IO error, or a 408, 429 or 5xx response, is tried again up to maxRetries times, after a delay that starts at
+ * minRetryDelay milliseconds and doubles with each retry up to maxRetryDelay. Any other response is a rejection and
+ * isn't retried. A message that can't be sent is dropped, and passed to the {@link GelfDropListener} if there is one.
+ *
+ * The encoder must be a LayoutWrappingEncoder with a GelfLayout. A CompressionEncoder's compression settings are
+ * ignored.
+ *
+ * Like the other appenders, it keeps {@link GelfMetrics} and registers them over JMX while started.
+ *
+ * @param <E>
+ */
+public class GelfHttpAppender<E> extends UnsynchronizedAppenderBase<E> {
+
+    private final String DEFAULT_URL = "http://localhost:12201/gelf";
+    private final int DEFAULT_MAX_IN_FLIGHT = 4;
+    private final int DEFAULT_QUEUE_SIZE = 8192;
+    private final long DEFAULT_QUEUE_MAX_BYTES = 8 * 1024 * 1024;
+    private final int DEFAULT_MIN_COMPRESS_SIZE = 1024;
+    private final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    private final int DEFAULT_READ_TIMEOUT = 5000;
+    private final int DEFAULT_MAX_RETRIES = 3;
+    private final int DEFAULT_MIN_RETRY_DELAY = 100;
+    private final int DEFAULT_MAX_RETRY_DELAY = 30000;
+    private final int DEFAULT_STOP_TIMEOUT = 1000;
+
+    // How long an idle sender sleeps before checking the queue again, in case a wake up was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private Encoder<E> encoder;
+    private String url = DEFAULT_URL;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long queueMaxBytes = DEFAULT_QUEUE_MAX_BYTES;
+    private int minCompressSize = DEFAULT_MIN_COMPRESS_SIZE;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private int minRetryDelay = DEFAULT_MIN_RETRY_DELAY;
+    private int maxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+    private int stopTimeout = DEFAULT_STOP_TIMEOUT;
+    private GelfDropListener dropListener;
+    private boolean jmx = true;
+    private GelfThrottle throttle;
+    private GelfOverloadController overload;
+
+    private GelfLayout<ILoggingEvent> layout;
+    // Only set while started
+    private volatile Senders senders;
+    // Set while requests are failing, so that a run of failures is only reported once
+    private volatile boolean failing = false;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong dropListenerErrors = new AtomicLong();
+    private final GelfMetrics metrics = new GelfMetrics();
+    private ObjectName metricsName;
+
+    @Override
+    public void start() {
+        if (isStarted()) return;
+        int errorCount = 0;
+        URL parsedUrl = null;
+        if (url == null) {
+            errorCount++;
+            addError("No url was configured for appender " + name);
+        } else {
+            try {
+                parsedUrl = new URL(url);
+                if (!"http".equals(parsedUrl.getProtocol()) && !"https".equals(parsedUrl.getProtocol())) {
+                    errorCount++;
+                    addError("The url of appender " + name + " must be http or https, but was " + url);
+                }
+            } catch (MalformedURLException e) {
+                errorCount++;
+                addError("Invalid url " + url + " for appender " + name, e);
+            }
+        }
+
+        layout = GelfLayout.of(encoder);
+        if (layout == null) {
+            errorCount++;
+            addError("No encoder with a GelfLayout was configured for appender " + name);
+        } else if (encoder instanceof CompressionEncoder) {
+            addWarn("Ignoring the compression settings of the encoder of appender " + name + ". Bodies of at least "
+                    + "minCompressSize bytes are gzipped");
+        }
+
+        if (maxInFlight <= 0) {
+            errorCount++;
+            addError("maxInFlight must be positive for appender " + name);
+        }
+
+        if (errorCount == 0) {
+            if (!encoder.isStarted()) {
+                encoder.start();
+            }
+            failing = false;
+            senders = new Senders(parsedUrl);
+            senders.start();
+            super.start();
+            if (jmx) {
+                registerMetrics();
+            }
+            if (throttle != null) {
+                throttle.start(new GelfThrottle.Sink() {
+                    public void append(ILoggingEvent summary) {
+                        appendUnthrottled(summary);
+                    }
+                }, name);
+            }
+            if (overload != null) {
+                overload.start(metrics, senders.queue, name);
+            }
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            metricsName = metrics.register(getClass().getSimpleName(), context.getName(), name);
+        } catch (JMException e) {
+            addWarn("Could not register the metrics of appender " + name + " with JMX", e);
+        }
+    }
+
+    /**
+     * Sends whatever is still queued before stopping, for up to stopTimeout milliseconds.
+     */
+    @Override
+    public void stop() {
+        if (!isStarted()) return;
+        if (throttle != null) {
+            // Sends the summaries of open dedup windows
+            throttle.stop();
+        }
+        if (overload != null) {
+            overload.stop(metrics);
+        }
+        super.stop();
+        Senders senders = this.senders;
+        if (senders != null) {
+            senders.shutdown(stopTimeout);
+        }
+        this.senders = null;
+        if (metricsName != null) {
+            GelfMetrics.unregister(metricsName);
+            metricsName = null;
+        }
+    }
+
+    @Override
+    protected void append(E event) {
+        if (senders == null) {
+            return;
+        }
+        metrics.eventAppended();
+        ILoggingEvent loggingEvent = (ILoggingEvent) event;
+        GelfThrottle throttle = this.throttle;
+        if (throttle != null) {
+            switch (throttle.decide(loggingEvent)) {
+                case SUPPRESSED:
+                    metrics.suppressed();
+                    return;
+                case RATE_LIMITED:
+                    messagesDropped(1, GelfMetrics.DropReason.RATE_LIMITED);
+                    return;
+                default:
+            }
+        }
+        GelfOverloadController overload = this.overload;
+        if (overload != null) {
+            switch (overload.decide(loggingEvent)) {
+                case TRIM:
+                    metrics.trimmed();
+                    loggingEvent = new TrimmedEvent(loggingEvent);
+                    break;
+                case SAMPLE_OUT:
+                    messagesDropped(1, GelfMetrics.DropReason.SAMPLED_OUT);
+                    return;
+                case SHED:
+                    messagesDropped(1, GelfMetrics.DropReason.SHED);
+                    return;
+                default:
+            }
+        }
+        appendUnthrottled(loggingEvent);
+    }
+
+    private void appendUnthrottled(ILoggingEvent loggingEvent) {
+        Senders senders = this.senders;
+        if (senders == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        GelfJsonWriter json = layout.write(loggingEvent);
+        metrics.laidOut(json.size(), System.nanoTime() - start);
+        if (senders.queue.offer(json.buffer(), json.size(), loggingEvent.getLevel().toInt(), 0)) {
+            senders.wake();
+        } else {
+            messageDropped(json.buffer(), json.size(), GelfMetrics.DropReason.QUEUE_FULL, null);
+        }
+    }
+
+    private void messagesDropped(long count, GelfMetrics.DropReason reason) {
+        metrics.dropped(reason, count);
+        if (droppedMessages.getAndAdd(count) == 0) {
+            addWarn("Dropped a message from appender " + name + ". Further drops are counted, but not reported");
+        }
+    }
+
+    private void messageDropped(byte[] message, int length, GelfMetrics.DropReason reason, Exception cause) {
+        messagesDropped(1, reason);
+        GelfDropListener dropListener = this.dropListener;
+        if (dropListener != null) {
+            try {
+                dropListener.dropped(message, length, reason, cause);
+            } catch (RuntimeException e) {
+                if (dropListenerErrors.getAndIncrement() == 0) {
+                    addError("The dropListener of appender " + name + " failed. Further failures aren't reported", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a request that got this response should be tried again
+     */
+    private static boolean isRetryable(int status) {
+        return status == 408 || status == 429 || status >= 500;
+    }
+
+    /**
+     * A LayoutWrappingEncoder with a GelfLayout. The encoder is only used for its layout
+     */
+    public Encoder<E> getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(Encoder<E> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * The URL of the Graylog GELF HTTP input. Defaults to "http://localhost:12201/gelf"
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * The most requests sent at once, each from its own sender thread. Defaults to 4
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * The maximum number of messages waiting to be sent, rounded up to a power of two. Defaults to 8192
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The maximum number of message bytes waiting to be sent. Defaults to 8MB
+     */
+    public long getQueueMaxBytes() {
+        return queueMaxBytes;
+    }
+
+    public void setQueueMaxBytes(long queueMaxBytes) {
+        this.queueMaxBytes = queueMaxBytes;
+    }
+
+    /**
+     * Messages of at least this many bytes are sent gzipped. 0 gzips every message, and a negative value none.
+     * Defaults to 1024
+     */
+    public int getMinCompressSize() {
+        return minCompressSize;
+    }
+
+    public void setMinCompressSize(int minCompressSize) {
+        this.minCompressSize = minCompressSize;
+    }
+
+    /**
+     * How long to wait for a connection to be established, in milliseconds. Defaults to 1000
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * How long to wait for the server to respond, in milliseconds. Defaults to 5000
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * How many times to retry a request that failed with an IO error, or a 408, 429 or 5xx response. Defaults to 3
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * How long to wait before the first retry, in milliseconds. The delay doubles with each further retry, up to
+     * maxRetryDelay. Defaults to 100
+     */
+    public int getMinRetryDelay() {
+        return minRetryDelay;
+    }
+
+    public void setMinRetryDelay(int minRetryDelay) {
+        this.minRetryDelay = minRetryDelay;
+    }
+
+    /**
+     * The longest delay between retries, in milliseconds. Defaults to 30000
+     */
+    public int getMaxRetryDelay() {
+        return maxRetryDelay;
+    }
+
+    public void setMaxRetryDelay(int maxRetryDelay) {
+        this.maxRetryDelay = maxRetryDelay;
+    }
+
+    /**
+     * How long stop() waits for queued messages to be sent, in milliseconds. Defaults to 1000
+     */
+    public int getStopTimeout() {
+        return stopTimeout;
+    }
+
+    public void setStopTimeout(int stopTimeout) {
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Told about each message that is dropped once it has been laid out. Defaults to none
+     */
+    public GelfDropListener getDropListener() {
+        return dropListener;
+    }
+
+    public void setDropListener(GelfDropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Rate limits and deduplicates messages before they are laid out. See {@link GelfThrottle}. Defaults to none
+     */
+    public GelfThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(GelfThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Trims, samples and then sheds INFO and lower messages while the appender is overloaded. See
+     * {@link GelfOverloadController}. Defaults to none
+     */
+    public GelfOverloadController getOverload() {
+        return overload;
+    }
+
+    public void setOverload(GelfOverloadController overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * Whether to register the appender's metrics with the platform MBean server while it's started, as
+     * me.moocar.logbackgelf:type=GelfHttpAppender,context=&lt;context&gt;,name=&lt;appender&gt;. Defaults to true
+     */
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full, the server rejected them, the retries ran
+     * out, the throttle's rate limit was reached, or they were still queued when stopTimeout ran out
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return counters and latency histograms of what the appender has sent and dropped. Kept across restarts
+     */
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of messages the server accepted
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * @return the number of messages currently waiting to be sent
+     */
+    public int getQueueDepth() {
+        Senders senders = this.senders;
+        return senders == null ? 0 : senders.queue.size();
+    }
+
+    /**
+     * @return the number of messages currently being sent, including any waiting to be retried
+     */
+    public int getInFlightRequests() {
+        return inFlight.get();
+    }
+
+    /**
+     * The queue and the sender threads that share it
+     */
+    private final class Senders {
+
+        private final GelfRingBuffer queue;
+        private final List<Sender> threads;
+        private final URL url;
+
+        private volatile boolean running = true;
+        private volatile long drainDeadline;
+
+        Senders(URL url) {
+            this.queue = new GelfRingBuffer(queueSize, queueMaxBytes);
+            this.url = url;
+            this.threads = new ArrayList<Sender>(maxInFlight);
+            for (int i = 0; i < maxInFlight; i++) {
+                threads.add(new Sender(this, i));
+            }
+        }
+
+        void start() {
+            for (Sender thread : threads) {
+                thread.start();
+            }
+        }
+
+        /**
+         * Called once a message has been queued. Wakes the first idle sender, if there is one. Otherwise every sender
+         * is busy, and each takes the next message off the queue once it's done, however long its request takes
+         */
+        void wake() {
+            for (Sender thread : threads) {
+                if (thread.idle) {
+                    LockSupport.unpark(thread);
+                    return;
+                }
+            }
+        }
+
+        boolean isDraining() {
+            return running || System.nanoTime() - drainDeadline < 0;
+        }
+
+        /**
+         * Stops accepting messages and waits up to timeoutMillis for the queue to drain. Anything left is dropped.
+         */
+        void shutdown(long timeoutMillis) {
+            drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            running = false;
+            try {
+                for (Sender thread : threads) {
+                    LockSupport.unpark(thread);
+                }
+                for (Sender thread : threads) {
+                    thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(drainDeadline - System.nanoTime())));
+                }
+                for (Sender thread : threads) {
+                    if (thread.isAlive()) {
+                        // Most likely waiting for a slow response. Disconnecting unblocks it
+                        thread.disconnect();
+                        thread.join(Math.max(1, timeoutMillis));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final long[] discarded = new long[1];
+            while (queue.poll(new GelfRingBuffer.Consumer() {
+                public void consume(byte[] message, int length, int level, int key) {
+                    messageDropped(message, length, GelfMetrics.DropReason.STOP_TIMEOUT, null);
+                    discarded[0]++;
+                }
+            })) {
+                // Each message is passed to the drop listener
+            }
+            if (discarded[0] > 0) {
+                addWarn("Dropped " + discarded[0] + " queued messages from appender " + name + " after waiting "
+                        + timeoutMillis + "ms for them to be sent");
+            }
+        }
+    }
+
+    /**
+     * Takes messages off the queue and POSTs them one at a time, retrying those that fail
+     */
+    private final class Sender extends Thread implements GelfRingBuffer.Consumer {
+
+        private final Senders senders;
+        private final CompressionEncoder.PooledDeflater deflater =
+                new CompressionEncoder.PooledDeflater(Deflater.DEFAULT_COMPRESSION, CompressionFormat.GZIP);
+        // Response bodies are read into here and discarded, so the connection can be reused
+        private final byte[] discard = new byte[512];
+
+        // Set while the sender is about to park, so producers know to wake it up
+        private volatile boolean idle = false;
+        // Only set while a request is being made. Volatile so that shutdown() can disconnect it
+        private volatile HttpURLConnection connection;
+
+        // The message being sent, copied out of the queue
+        private byte[] message = new byte[1024];
+        private int length;
+
+        Sender(Senders senders, int index) {
+            super("logback-gelf-http-sender-" + name + "-" + index);
+            setDaemon(true);
+            this.senders = senders;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (senders.isDraining()) {
+                    if (senders.queue.poll(this)) {
+                        // Hand the rest of a burst to another sender rather than leave it for this one
+                        if (!senders.queue.isEmpty()) {
+                            senders.wake();
+                        }
+                        send();
+                    } else if (!senders.running) {
+                        break;
+                    } else {
+                        idle = true;
+                        if (senders.queue.isEmpty() && senders.running) {
+                            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        }
+                        idle = false;
+                    }
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public void consume(byte[] message, int length, int level, int key) {
+            if (this.message.length < length) {
+                this.message = new byte[Math.max(length, this.message.length * 2)];
+            }
+            System.arraycopy(message, 0, this.message, 0, length);
+            this.length = length;
+        }
+
+        private void send() {
+            inFlight.incrementAndGet();
+            try {
+                long start = System.nanoTime();
+                byte[] body = message;
+                int bodyLength = length;
+                boolean gzip = minCompressSize >= 0 && length >= minCompressSize;
+                if (gzip) {
+                    bodyLength = deflater.compress(message, length, CompressionFormat.GZIP);
+                    body = deflater.output();
+                }
+                metrics.encoded(bodyLength, System.nanoTime() - start);
+
+                Exception failure;
+                GelfMetrics.DropReason reason = GelfMetrics.DropReason.SEND_FAILED;
+                long delayMillis = minRetryDelay;
+                for (int retry = 0; ; retry++) {
+                    try {
+                        start = System.nanoTime();
+                        int status = post(body, bodyLength, gzip);
+                        if (status >= 200 && status < 300) {
+                            metrics.requestSent(System.nanoTime() - start);
+                            sentMessages.incrementAndGet();
+                            if (failing) {
+                                failing = false;
+                                addInfo("Appender " + name + " is sending to " + senders.url + " again");
+                            }
+                            return;
+                        }
+                        failure = new IOException("Server responded with HTTP status " + status);
+                        metrics.sendFailed();
+                        if (!isRetryable(status)) {
+                            break;
+                        }
+                    } catch (IOException e) {
+                        failure = e;
+                        metrics.sendFailed();
+                    }
+                    if (!failing) {
+                        failing = true;
+                        addWarn("Could not send a message from appender " + name + " to " + senders.url
+                                + ". Retrying", failure);
+                    }
+                    if (retry >= maxRetries) {
+                        break;
+                    }
+                    if (!await(delayMillis)) {
+                        reason = GelfMetrics.DropReason.STOP_TIMEOUT;
+                        break;
+                    }
+                    delayMillis = Math.min(Math.max(1, delayMillis * 2), maxRetryDelay);
+                }
+                messageDropped(message, length, reason, failure);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return the response's status code
+         */
+        private int post(byte[] body, int length, boolean gzip) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) senders.url.openConnection();
+            this.connection = connection;
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setUseCaches(false);
+                connection.setConnectTimeout(connectTimeout);
+                connection.setReadTimeout(readTimeout);
+                connection.setRequestProperty("Content-Type", "application/json");
+                if (gzip) {
+                    connection.setRequestProperty("Content-Encoding", "gzip");
+                }
+                connection.setFixedLengthStreamingMode(length);
+                OutputStream out = connection.getOutputStream();
+                out.write(body, 0, length);
+                out.close();
+                int status = connection.getResponseCode();
+                // The response must be read to the end and closed for the connection to be kept alive
+                InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (in != null) {
+                    while (in.read(discard) != -1) {
+                        // Discarded
+                    }
+                    in.close();
+                }
+                return status;
+            } catch (IOException e) {
+                // Don't leave a broken connection to be reused
+                connection.disconnect();
+                throw e;
+            } finally {
+                this.connection = null;
+            }
+        }
+
+        /**
+         * Waits before a retry, or until stopTimeout runs out if the appender is stopping.
+         *
+         * @return false if the appender stopped and stopTimeout ran out first
+         */
+        private boolean await(long delayMillis) {
+            long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            long remaining;
+            while ((remaining = until - System.nanoTime()) > 0) {
+                if (!senders.isDraining()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, senders.running ? remaining
+                        : Math.min(remaining, senders.drainDeadline - System.nanoTime()));
+            }
+            return true;
+        }
+
+        void disconnect() {
+            HttpURLConnection connection = this.connection;
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package me.moocar.logbackgelf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A minimal, append only JSON writer that escapes and UTF-8 encodes values straight into a reusable byte array. It
+ * only knows enough JSON to write a flat GELF object, which is all GelfLayout needs.
+ *
+ * String escaping follows Gson's defaults (including the HTML safe escapes for <, >, &, = and '), so string values are
+ * escaped as they were when GelfLayout was backed by Gson. Whole messages differ: fields are in a different order, and
+ * timestamps are always written with three decimal places.
+ *
+ * Note that this class is NOT thread safe. GelfLayout keeps one instance per thread.
+ */
+final class GelfJsonWriter {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+    // For each ASCII character, the escape sequence to write instead of the character, or null if it can be written
+    // as is
+    private static final byte[][] ESCAPES = new byte[128][];
+    // JavaScript treats these as line terminators, so Gson escapes them too
+    private static final byte[] LINE_SEPARATOR_ESCAPE = unicodeEscape('\u2028');
+    private static final byte[] PARAGRAPH_SEPARATOR_ESCAPE = unicodeEscape('\u2029');
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            ESCAPES[i] = unicodeEscape((char) i);
+        }
+        ESCAPES['"'] = "\\\"".getBytes(UTF_8);
+        ESCAPES['\\'] = "\\\\".getBytes(UTF_8);
+        ESCAPES['\t'] = "\\t".getBytes(UTF_8);
+        ESCAPES['\b'] = "\\b".getBytes(UTF_8);
+        ESCAPES['\n'] = "\\n".getBytes(UTF_8);
+        ESCAPES['\r'] = "\\r".getBytes(UTF_8);
+        ESCAPES['\f'] = "\\f".getBytes(UTF_8);
+        ESCAPES['<'] = unicodeEscape('<');
+        ESCAPES['>'] = unicodeEscape('>');
+        ESCAPES['&'] = unicodeEscape('&');
+        ESCAPES['='] = unicodeEscape('=');
+        ESCAPES['\''] = unicodeEscape('\'');
+    }
+
+    // Once a large message has grown the buffer past this size, it is shrunk back on the next reset so that one
+    // huge stack trace doesn't pin memory on every logging thread
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private final int initialCapacity;
+    private byte[] buf;
+    private int count;
+    // True until the first field of the current object has been written, so we know when to add a comma
+    private boolean firstField;
+
+    GelfJsonWriter(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.buf = new byte[initialCapacity];
+    }
+
+    /**
+     * Discards the current contents so the writer can be reused for the next message
+     */
+    void reset() {
+        if (buf.length > MAX_RETAINED_CAPACITY) {
+            buf = new byte[initialCapacity];
+        }
+        count = 0;
+        firstField = true;
+    }
+
+    void beginObject() {
+        writeByte('{');
+        firstField = true;
+    }
+
+    /**
+     * Starts an object with pre-serialized constant fields. The prefix must start with '{' and contain zero or more
+     * complete fields.
+     */
+    void beginObject(byte[] prefix, boolean prefixHasFields) {
+        writeBytes(prefix);
+        firstField = !prefixHasFields;
+    }
+
+    void endObject() {
+        writeByte('}');
+    }
+
+    /**
+     * Starts a run of fields that will be added to an object later with {@link #fields(byte[])}. Each field is
+     * written with a comma in front of it.
+     */
+    void beginFragment() {
+        firstField = false;
+    }
+
+    /**
+     * Appends fields written after {@link #beginFragment()}, dropping the leading comma if they are the first fields of
+     * the object
+     */
+    void fields(byte[] fragment) {
+        if (fragment.length == 0) {
+            return;
+        }
+        if (firstField) {
+            firstField = false;
+            ensureCapacity(fragment.length - 1);
+            System.arraycopy(fragment, 1, buf, count, fragment.length - 1);
+            count += fragment.length - 1;
+        } else {
+            writeBytes(fragment);
+        }
+    }
+
+    /**
+     * Writes the name of the next field, including the separating comma if needed. Must be followed by exactly one
+     * value.
+     */
+    void name(String name) {
+        separator();
+        string(name);
+        writeByte(':');
+    }
+
+    /**
+     * Writes the name of the next field from bytes created by {@link #encodeName(String)}
+     */
+    void name(byte[] encodedName) {
+        separator();
+        writeBytes(encodedName);
+    }
+
+    /**
+     * Writes a string field. Null values are skipped entirely, the same way Gson skips null map values.
+     */
+    void stringField(String name, String value) {
+        if (value != null) {
+            name(name);
+            string(value);
+        }
+    }
+
+    void longField(String name, long value) {
+        name(name);
+        longValue(value);
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string
+     */
+    void string(CharSequence value) {
+        writeByte('"');
+        escaped(value, 0, value.length());
+        writeByte('"');
+    }
+
+    /**
+     * Writes a quoted JSON string made of bytes that are already escaped, followed by the characters of value between
+     * start and end escaped
+     */
+    void string(byte[] escapedPrefix, CharSequence value, int start, int end) {
+        writeByte('"');
+        writeBytes(escapedPrefix);
+        escaped(value, start, end);
+        writeByte('"');
+    }
+
+    /**
+     * Writes a quoted, escaped JSON string, cut short at a character boundary if its escaped contents would be more
+     * than maxBytes long
+     *
+     * @return the number of bytes written between the quotes
+     */
+    int string(CharSequence value, int maxBytes) {
+        writeByte('"');
+        int start = count;
+        escaped(value, 0, value.length(), (int) Math.min(Integer.MAX_VALUE, (long) start + maxBytes));
+        int written = count - start;
+        writeByte('"');
+        return written;
+    }
+
+    /**
+     * Writes the characters of value between start and end escaped, but without surrounding quotes
+     */
+    void escaped(CharSequence value, int start, int end) {
+        escaped(value, start, end, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the characters of value between start and end escaped, stopping before the first character that would
+     * take the size of the writer past limit
+     *
+     * @return the index of the first character that wasn't written
+     */
+    int escaped(CharSequence value, int start, int end, int limit) {
+        for (int i = start; i < end; i++) {
+            int mark = count;
+            int next = i;
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                byte[] escape = ESCAPES[c];
+                if (escape == null) {
+                    writeByte(c);
+                } else {
+                    writeBytes(escape);
+                }
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c == '\u2028') {
+                writeBytes(LINE_SEPARATOR_ESCAPE);
+            } else if (c == '\u2029') {
+                writeBytes(PARAGRAPH_SEPARATOR_ESCAPE);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++next));
+                ensureCapacity(4);
+                buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // Unpaired surrogates can't be encoded. Replace them the same way String.getBytes() does
+                writeByte('?');
+            } else {
+                ensureCapacity(3);
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            if (count > limit) {
+                count = mark;
+                return i;
+            }
+            i = next;
+        }
+        return end;
+    }
+
+    void longValue(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii(String.valueOf(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    /**
+     * Writes a whole number as a JSON string
+     */
+    void quotedLongValue(long value) {
+        writeByte('"');
+        longValue(value);
+        writeByte('"');
+    }
+
+    /**
+     * Writes a millisecond epoch time as seconds with three decimal places, which is what GELF expects for its
+     * timestamp field. E.g 1453161600123 is written as 1453161600.123
+     */
+    void timestampValue(long millis) {
+        if (millis < 0) {
+            writeByte('-');
+            millis = -millis;
+        }
+        int fraction = (int) (millis % 1000);
+        longValue(millis / 1000);
+        ensureCapacity(4);
+        buf[count++] = '.';
+        buf[count++] = (byte) ('0' + fraction / 100);
+        buf[count++] = (byte) ('0' + (fraction / 10) % 10);
+        buf[count++] = (byte) ('0' + fraction % 10);
+    }
+
+    /**
+     * Writes value as a quoted string of 16 lower case hex digits
+     */
+    void hexValue(long value) {
+        ensureCapacity(18);
+        buf[count++] = '"';
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            buf[count++] = HEX[(int) (value >>> shift) & 0xf];
+        }
+        buf[count++] = '"';
+    }
+
+    /**
+     * Writes a floating point number the way Gson does (using Double.toString). JSON has no NaN or Infinity, so those
+     * are written as strings instead.
+     */
+    void doubleValue(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            string(Double.toString(value));
+        } else {
+            ascii(Double.toString(value));
+        }
+    }
+
+    void floatValue(float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            string(Float.toString(value));
+        } else {
+            ascii(Float.toString(value));
+        }
+    }
+
+    void booleanValue(boolean value) {
+        ascii(value ? "true" : "false");
+    }
+
+    /**
+     * Appends characters that are known to be ASCII and already valid JSON, such as a number
+     */
+    void ascii(String ascii) {
+        int length = ascii.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) ascii.charAt(i);
+        }
+    }
+
+    /**
+     * Appends bytes that are already valid JSON, such as a pre-serialized field
+     */
+    void raw(byte[] bytes) {
+        writeBytes(bytes);
+    }
+
+    byte[] toByteArray() {
+        byte[] bytes = new byte[count];
+        System.arraycopy(buf, 0, bytes, 0, count);
+        return bytes;
+    }
+
+    int size() {
+        return count;
+    }
+
+    byte[] buffer() {
+        return buf;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, UTF_8);
+    }
+
+    private void separator() {
+        if (firstField) {
+            firstField = false;
+        } else {
+            writeByte(',');
+        }
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length << 1, count + extra)];
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            buf = newBuf;
+        }
+    }
+
+    /**
+     * Pre-serializes a field name (including the quotes and colon) for use with {@link #name(byte[])}
+     */
+    static byte[] encodeName(String name) {
+        GelfJsonWriter writer = new GelfJsonWriter(name.length() + 8);
+        writer.reset();
+        writer.string(name);
+        writer.writeByte(':');
+        return writer.toByteArray();
+    }
+
+    private static byte[] unicodeEscape(char c) {
+        return new byte[]{'\\', 'u', HEX[(c >> 12) & 0xf], HEX[(c >> 8) & 0xf], HEX[(c >> 4) & 0xf], HEX[c & 0xf]};
+    }
+}
@@ -2,67 +2,90 @@ package me.moocar.logbackgelf;
 
 import ch.qos.logback.classic.PatternLayout;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.classic.spi.StackTraceElementProxy;
-import ch.qos.logback.classic.util.LevelToSyslogSeverity;
 import ch.qos.logback.core.Layout;
 import ch.qos.logback.core.LayoutBase;
-import com.google.gson.FieldNamingPolicy;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import ch.qos.logback.core.encoder.Encoder;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
 
-import java.lang.reflect.Method;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Responsible for formatting a log event into a GELF JSON string
+ * Responsible for formatting a log event into a GELF JSON string. The JSON is escaped and UTF-8 encoded straight into
+ * a reusable per thread buffer, so encoders and transports can use {@link #encode(ILoggingEvent, OutputStream)} to
+ * get at the bytes without creating an intermediate String.
  */
 public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
 
     private final String DEFAULT_FULL_MESSAGE_PATTERN = "%rEx%m";
     private final String DEFAULT_SHORT_MESSAGE_PATTERN = "%ex{short}%.100m";
+    // The throwable parts of the default patterns, which are what the stack trace cache holds
+    private final String FULL_THROWABLE_PATTERN = "%rEx";
+    private final String SHORT_THROWABLE_PATTERN = "%ex{short}";
+    private final int DEFAULT_STACK_TRACE_CACHE_SIZE = 256;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // Fields that the layout itself adds to every message. MDC fields can't override these
+    private static final Set<String> BUILT_IN_FIELDS = new HashSet<String>(Arrays.asList("version", "host",
+            "short_message", "full_message", "timestamp", "level", "_file", "_line", "_loggerName", "_marker",
+            "_threadName", "_truncated", "_stack_hash", "_suppressed_count", "_first_timestamp", "_last_timestamp"));
 
     private boolean useLoggerName = false;
     private boolean useThreadName = false;
     private boolean useMarker = false;
+    private boolean useStackHash = false;
+    private boolean useCallerData = true;
+    private boolean useStructuredArguments = true;
     private Map<String, String> additionalFields = new HashMap<String, String>();
     private Map<String, String> fieldTypes = new HashMap<String, String>();
-    private Map<String, String> staticFields = new HashMap<String, String>();
-    private String host = getLocalHostName();
-    private final Gson gson;
+    private Map<String, String> staticFields = new LinkedHashMap<String, String>();
+    // Null for the local host's name
+    private String host;
     private Layout fullMessageLayout;
     private Layout shortMessageLayout;
     private boolean includeFullMDC = false;
-
-    static Map<String, Method> primitiveTypes;
-
-    static {
-        primitiveTypes = new HashMap<String, Method>();
-        try {
-            primitiveTypes.put("int", Integer.class.getDeclaredMethod("parseInt", String.class));
-            primitiveTypes.put("Integer", Integer.class.getDeclaredMethod("parseInt", String.class));
-            primitiveTypes.put("long", Long.class.getDeclaredMethod("parseLong", String.class));
-            primitiveTypes.put("Long", Long.class.getDeclaredMethod("parseLong", String.class));
-            primitiveTypes.put("float", Float.class.getDeclaredMethod("parseFloat", String.class));
-            primitiveTypes.put("Float", Float.class.getDeclaredMethod("parseFloat", String.class));
-            primitiveTypes.put("double", Double.class.getDeclaredMethod("parseDouble", String.class));
-            primitiveTypes.put("Double", Double.class.getDeclaredMethod("parseDouble", String.class));
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
+    private int maxEncodedSize = 0;
+    private int stackTraceCacheSize = DEFAULT_STACK_TRACE_CACHE_SIZE;
+    // The limit imposed by the transport the layout is used with, if any. See limitEncodedSize
+    private volatile int transportMaxEncodedSize = 0;
+    // Compiled from the above configuration each time the layout is started
+    private volatile GelfFieldPlan plan;
+    // Created along with the plan, if the full message layout is one it can be used with
+    private volatile StackTraceCache stackTraces;
+
+    // The number of MDC values that couldn't be converted to their configured field type
+    private final AtomicLong fieldConversionErrors = new AtomicLong();
+    // The number of messages that had to be trimmed to fit maxEncodedSize
+    private final AtomicLong truncatedMessages = new AtomicLong();
+
+    // Held while compiling the plan, so that a plan compiled with an older host name can't replace a newer one
+    private final Object planLock = new Object();
+    private final Runnable hostResolved = new Runnable() {
+        public void run() {
+            synchronized (planLock) {
+                if (plan != null) {
+                    plan = compilePlan();
+                }
+            }
         }
-    }
-
-    public GelfLayout() {
+    };
 
-        // Init GSON for underscores
-        GsonBuilder gsonBuilder = new GsonBuilder();
-        gsonBuilder.setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES);
-        this.gson = gsonBuilder.create();
-    }
+    private final ThreadLocal<GelfJsonWriter> writers = new ThreadLocal<GelfJsonWriter>() {
+        @Override
+        protected GelfJsonWriter initialValue() {
+            return new GelfJsonWriter(INITIAL_BUFFER_SIZE);
+        }
+    };
 
     @Override
     public void start() {
@@ -75,6 +98,14 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
             this.shortMessageLayout = initNewPatternLayout(DEFAULT_SHORT_MESSAGE_PATTERN);
         }
 
+        if (host == null) {
+            // Until the name has been looked up, messages carry the local address instead
+            LocalHostName.whenResolved(hostResolved);
+        }
+        synchronized (planLock) {
+            this.plan = compilePlan();
+        }
+
         super.start();
     }
 
@@ -88,126 +119,174 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
 
     @Override
     public String doLayout(E event) {
-        return gson.toJson(mapFields(event));
+        return write(event).toString();
     }
 
     /**
-     * Creates a map of properties that represent the GELF message.
+     * Encodes the log event as GELF JSON and writes the UTF-8 bytes to out. Unlike doLayout, no String is created.
      *
-     * @param logEvent The log event
-     * @return map of gelf properties
+     * @param event The log event
+     * @param out   Where the JSON bytes will be written. It is not flushed.
      */
-    private Map<String, Object> mapFields(E logEvent) {
-        Map<String, Object> map = new HashMap<String, Object>();
-
-        map.put("host", host);
-
-        map.put("full_message", fullMessageLayout.doLayout(logEvent));
-        map.put("short_message", shortMessageLayout.doLayout(logEvent));
-
-        stackTraceField(map, logEvent);
-
-        map.put("timestamp", logEvent.getTimeStamp() / 1000.0);
-
-        map.put("version", "1.1");
-
-        map.put("level", LevelToSyslogSeverity.convert(logEvent));
-
-        additionalFields(map, logEvent);
-
-        staticAdditionalFields(map);
-
-        return map;
+    public void encode(E event, OutputStream out) throws IOException {
+        write(event).writeTo(out);
     }
 
-    private void stackTraceField(Map<String, Object> map, ILoggingEvent eventObject) {
-        IThrowableProxy throwableProxy = eventObject.getThrowableProxy();
-        if (throwableProxy != null ) {
-            StackTraceElementProxy[] proxyStackTraces = throwableProxy.getStackTraceElementProxyArray();
-            if (proxyStackTraces != null && proxyStackTraces.length > 0) {
-                StackTraceElement[] callStackTraces = eventObject.getCallerData();
-                if (callStackTraces != null && callStackTraces.length > 0) {
-                    StackTraceElement lastStack = callStackTraces[0];
-                    map.put("_file", lastStack.getFileName());
-                    map.put("_line", String.valueOf(lastStack.getLineNumber()));
-                }
+    /**
+     * Serializes the log event into this thread's writer. The returned writer is only valid until the next call on
+     * the same thread.
+     *
+     * @param logEvent The log event
+     * @return the writer holding the GELF JSON bytes
+     */
+    GelfJsonWriter write(E logEvent) {
+        GelfJsonWriter writer = writers.get();
+        writer.reset();
+        GelfFieldPlan plan = this.plan;
+        plan.write(logEvent, writer);
+        int maxSize = effectiveMaxEncodedSize();
+        if (maxSize > 0 && writer.size() > maxSize) {
+            int originalSize = writer.size();
+            plan.writeTruncated(logEvent, writer, maxSize);
+            if (truncatedMessages.getAndIncrement() == 0) {
+                addWarn("A " + originalSize + " byte message was truncated to fit in " + maxSize + " bytes. Further " +
+                        "truncations are counted in truncatedMessages");
             }
         }
+        return writer;
     }
 
     /**
-     * Converts the additional fields into proper GELF JSON
-     *
-     * @param map         The map of additional fields
-     * @param eventObject The Logging event that we are converting to GELF
+     * Called by appenders whose transport can't carry messages bigger than maxSize bytes, so that such messages are
+     * trimmed rather than dropped. If maxEncodedSize is also set, the smaller of the two applies.
      */
-    private void additionalFields(Map<String, Object> map, ILoggingEvent eventObject) {
+    void limitEncodedSize(int maxSize) {
+        this.transportMaxEncodedSize = maxSize;
+    }
 
-        if (useLoggerName) {
-            map.put("_loggerName", eventObject.getLoggerName());
+    private int effectiveMaxEncodedSize() {
+        int transport = transportMaxEncodedSize;
+        if (maxEncodedSize <= 0) {
+            return transport;
         }
+        return transport <= 0 ? maxEncodedSize : Math.min(maxEncodedSize, transport);
+    }
 
-        if(useMarker && eventHasMarker(eventObject)) {
-            map.put("_marker", eventObject.getMarker().toString());
+    /**
+     * @return the GelfLayout wrapped by encoder, or null if it isn't a LayoutWrappingEncoder around a GelfLayout
+     */
+    @SuppressWarnings("unchecked")
+    static GelfLayout<ILoggingEvent> of(Encoder<?> encoder) {
+        if (encoder instanceof LayoutWrappingEncoder) {
+            Layout<?> layout = ((LayoutWrappingEncoder<?>) encoder).getLayout();
+            if (layout instanceof GelfLayout) {
+                return (GelfLayout<ILoggingEvent>) layout;
+            }
         }
+        return null;
+    }
 
-        if (useThreadName) {
-            map.put("_threadName", eventObject.getThreadName());
+    /**
+     * Compiles the current configuration into a plan. Static fields take precedence over built in fields, which in
+     * turn take precedence over MDC fields and structured arguments of the same name.
+     */
+    private GelfFieldPlan compilePlan() {
+        Map<String, String> statics = new LinkedHashMap<String, String>(staticFields);
+
+        // Constant fields are serialized once, up front
+        GelfJsonWriter prefix = new GelfJsonWriter(INITIAL_BUFFER_SIZE);
+        prefix.reset();
+        prefix.beginObject();
+        if (!statics.containsKey("version")) {
+            prefix.stringField("version", "1.1");
         }
+        if (!statics.containsKey("host")) {
+            prefix.stringField("host", getHost());
+        }
+        for (Entry<String, String> staticField : statics.entrySet()) {
+            prefix.stringField(staticField.getKey(), staticField.getValue());
+        }
+        boolean prefixHasFields = prefix.size() > 1;
+
+        // The default layouts aren't run. The message is formatted once for both fields, and throwables are rendered
+        // separately so that they can be cached
+        boolean shortIsDefault = isPattern(shortMessageLayout, DEFAULT_SHORT_MESSAGE_PATTERN);
+        boolean fullIsDefault = isPattern(fullMessageLayout, DEFAULT_FULL_MESSAGE_PATTERN);
+        StackTraceCache stackTraces = null;
+        if (stackTraceCacheSize > 0 && (shortIsDefault || fullIsDefault)) {
+            stackTraces = new StackTraceCache(fullIsDefault ? initNewPatternLayout(FULL_THROWABLE_PATTERN) : null,
+                    shortIsDefault ? initNewPatternLayout(SHORT_THROWABLE_PATTERN) : null, stackTraceCacheSize);
+        }
+        this.stackTraces = stackTraces;
 
-        Map<String, String> mdc = eventObject.getMDCPropertyMap();
-
-        if (mdc != null) {
-
-            if (includeFullMDC) {
-                for (Entry<String, String> e : mdc.entrySet()) {
-                    if (additionalFields.containsKey(e.getKey())) {
-                        map.put(additionalFields.get(e.getKey()), convertFieldType(e.getValue(), additionalFields.get(e.getKey())));
-                    } else {
-                        map.put("_" + e.getKey(), convertFieldType(e.getValue(), "_" + e.getKey()));
-                    }
-                }
-            } else {
-                for (String key : additionalFields.keySet()) {
-                    String field = mdc.get(key);
-                    if (field != null) {
-                        map.put(additionalFields.get(key), convertFieldType(field, key));
-                    }
+        List<GelfFieldPlan.FieldWriter> fields = new ArrayList<GelfFieldPlan.FieldWriter>();
+        if (!statics.containsKey("short_message") || !statics.containsKey("full_message")) {
+            fields.add(new GelfFieldPlan.MessageFields(shortMessageLayout, fullMessageLayout, shortIsDefault,
+                    fullIsDefault, stackTraces, !statics.containsKey("short_message"),
+                    !statics.containsKey("full_message")));
+        }
+        if (!statics.containsKey("timestamp")) {
+            fields.add(new GelfFieldPlan.TimestampField());
+        }
+        if (!statics.containsKey("level")) {
+            fields.add(new GelfFieldPlan.LevelField());
+        }
+        if (useCallerData && (!statics.containsKey("_file") || !statics.containsKey("_line"))) {
+            fields.add(new GelfFieldPlan.CallerField(!statics.containsKey("_file"), !statics.containsKey("_line")));
+        }
+        if (useLoggerName && !statics.containsKey("_loggerName")) {
+            fields.add(new GelfFieldPlan.LoggerNameField());
+        }
+        if (useMarker && !statics.containsKey("_marker")) {
+            fields.add(new GelfFieldPlan.MarkerField());
+        }
+        if (useThreadName && !statics.containsKey("_threadName")) {
+            fields.add(new GelfFieldPlan.ThreadNameField());
+        }
+        if (useStackHash && !statics.containsKey("_stack_hash")) {
+            fields.add(new GelfFieldPlan.StackHashField());
+        }
+        // Only writes anything for the summaries of a GelfThrottle
+        fields.add(new GelfFieldPlan.SuppressionFields());
+
+        Set<String> reservedNames = new HashSet<String>(BUILT_IN_FIELDS);
+        reservedNames.addAll(statics.keySet());
+        GelfFieldPlan.MdcFields mdcFields = null;
+        if (includeFullMDC || !additionalFields.isEmpty()) {
+            Map<String, FieldConverter> converters = new HashMap<String, FieldConverter>();
+            for (Entry<String, String> fieldType : fieldTypes.entrySet()) {
+                FieldConverter converter = FieldConverter.forType(fieldType.getValue());
+                if (converter == null) {
+                    addWarn("Unknown fieldType " + fieldType.getValue() + " for " + fieldType.getKey() +
+                            ". It will be sent as a string");
+                } else {
+                    converters.put(fieldType.getKey(), converter);
                 }
             }
+            mdcFields = new GelfFieldPlan.MdcFields(additionalFields, includeFullMDC, reservedNames, converters, this);
+            fields.add(mdcFields);
         }
-    }
-
-    private Object convertFieldType(Object value, final String type) {
-        if (primitiveTypes.containsKey(fieldTypes.get(type))) {
-            try {
-                value = primitiveTypes.get(fieldTypes.get(type)).invoke(null,
-                        value);
-            } catch (Exception e1) {
-                e1.printStackTrace();
-            }
+        // Arguments leave out fields the MDC wrote, so that no field appears twice
+        if (useStructuredArguments) {
+            fields.add(new GelfFieldPlan.ArgumentFields(reservedNames, mdcFields));
         }
-        return value;
-    }
 
-    private boolean eventHasMarker(ILoggingEvent eventObject) {
-        return eventObject.getMarker() != null;
+        return new GelfFieldPlan(prefix.toByteArray(), prefixHasFields, fields);
     }
 
-    private void staticAdditionalFields(Map<String,Object> map) {
-
-        for (String key : staticFields.keySet()) {
-            map.put(key, (staticFields.get(key)));
-        }
+    private static boolean isPattern(Layout layout, String pattern) {
+        return layout instanceof PatternLayout && pattern.equals(((PatternLayout) layout).getPattern());
     }
 
-    private String getLocalHostName() {
-        try {
-            return InternetUtils.getLocalHostName();
-        } catch (SocketException e) {
-            return "UNKNOWN";
-        } catch (UnknownHostException e) {
-            return "UNKNOWN";
+    /**
+     * Called from the logging thread when an MDC value can't be converted to its field type. Only the first failure is
+     * reported to the status manager. After that, failures are only counted, so that a bad value that is logged in a
+     * tight loop can't flood the status output.
+     */
+    void fieldConversionFailed(String fieldName, String value) {
+        if (fieldConversionErrors.getAndIncrement() == 0) {
+            addWarn("Could not convert field " + fieldName + " value '" + value + "' to its fieldType. It was sent " +
+                    "as a string. Further conversion errors are counted in fieldConversionErrors");
         }
     }
 
@@ -245,6 +324,45 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
         this.useThreadName = useThreadName;
     }
 
+    /**
+     * If true, messages with an exception get an additional field called "_stack_hash", a hex fingerprint of the
+     * exception's class and stack frames (and those of its causes), so messages can be grouped by where they failed.
+     * Exception messages don't affect it. Defaults to "false".
+     */
+    public boolean isUseStackHash() {
+        return useStackHash;
+    }
+
+    public void setUseStackHash(boolean useStackHash) {
+        this.useStackHash = useStackHash;
+    }
+
+    /**
+     * If true, messages with an exception get "_file" and "_line" fields, the file and line the event was logged
+     * from. Finding them captures the logging thread's stack, which allocates a few KB for each such event, so turn
+     * this off for a garbage-free configuration. Defaults to "true".
+     */
+    public boolean isUseCallerData() {
+        return useCallerData;
+    }
+
+    public void setUseCallerData(boolean useCallerData) {
+        this.useCallerData = useCallerData;
+    }
+
+    /**
+     * If true, {@link StructuredArgument}s passed as arguments to a log call, and SLF4J 2 key value pairs (with logback
+     * 1.3 or later), are added as fields named after their keys with an underscore in front. Numbers and booleans are
+     * sent as JSON numbers and booleans. Defaults to "true".
+     */
+    public boolean isUseStructuredArguments() {
+        return useStructuredArguments;
+    }
+
+    public void setUseStructuredArguments(boolean useStructuredArguments) {
+        this.useStructuredArguments = useStructuredArguments;
+    }
+
     /**
      * additional fields to add to the gelf message. Here's how these work: <br/> Let's take an example. I want to log
      * the client's ip address of every request that comes into my web server. To do this, I add the ipaddress to the
@@ -259,19 +377,20 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
     }
 
     public void setAdditionalFields(Map<String, String> additionalFields) {
-        this.additionalFields = additionalFields;
+        this.additionalFields = new HashMap<String, String>(additionalFields);
     }
 
     /**
      * static additional fields to add to every gelf message. Key is the additional field key (and should thus begin
-     * with an underscore). The value is a static string.
+     * with an underscore). The value is a static string. Static fields are serialized once when the layout starts, so
+     * changes made after that only take effect on the next start.
      */
     public Map<String, String> getStaticFields() {
         return staticFields;
     }
 
     public void setStaticFields(Map<String, String> staticFields) {
-        this.staticFields = staticFields;
+        this.staticFields = new LinkedHashMap<String, String>(staticFields);
     }
 
     /**
@@ -302,11 +421,11 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
 
     /**
      * Override the local host using a config option
-     * @return the local host (defaults to getLocalHost() if not overridden
+     * @return the local host (defaults to the local host's name, looked up once per JVM, if not overridden
      * in config
      */
     public String getHost() {
-        return host;
+        return host != null ? host : LocalHostName.get();
     }
 
     public void setHost(String host) {
@@ -363,11 +482,11 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
         String[] splitted = keyValue.split(":");
 
         if (splitted.length != 2 ||
-                !GelfLayout.primitiveTypes.containsKey(splitted[1])) {
+                FieldConverter.forType(splitted[1]) == null) {
             throw new IllegalArgumentException(
                     "fieldType must be of the format key:value, where key is the " +
                             "field key, and value is the type to convert to (one of " +
-                            GelfLayout.primitiveTypes.keySet() +
+                            FieldConverter.types() +
                             ")");
         }
 
@@ -375,12 +494,78 @@ public class GelfLayout<E extends ILoggingEvent> extends LayoutBase<E> {
 
     }
 
+    /**
+     * The number of field values that could not be converted to their configured field type (and so were sent as
+     * strings)
+     */
+    public long getFieldConversionErrors() {
+        return fieldConversionErrors.get();
+    }
+
+    /**
+     * The number of messages that were bigger than maxEncodedSize (or the limit of the appender's transport), and so
+     * had fields trimmed
+     */
+    public long getTruncatedMessages() {
+        return truncatedMessages.get();
+    }
+
+    /**
+     * The biggest a message may be, in bytes of JSON. A message that would be bigger has its stack trace trimmed first,
+     * then the rest of full_message, then its biggest MDC values, then short_message, and finally its MDC fields are
+     * left out. A "_truncated" field holding the original size is added to it. The UDP appender also limits messages
+     * to what fits in the most chunks a GELF server accepts. Defaults to 0, which means no limit.
+     */
+    public int getMaxEncodedSize() {
+        return maxEncodedSize;
+    }
+
+    public void setMaxEncodedSize(int maxEncodedSize) {
+        this.maxEncodedSize = maxEncodedSize;
+    }
+
+    /**
+     * The most rendered stack traces to keep, so an exception that's logged repeatedly is only rendered once. Only used
+     * with the default fullMessageLayout or shortMessageLayout. 0 turns the cache off. Defaults to 256.
+     */
+    public int getStackTraceCacheSize() {
+        return stackTraceCacheSize;
+    }
+
+    public void setStackTraceCacheSize(int stackTraceCacheSize) {
+        this.stackTraceCacheSize = stackTraceCacheSize;
+    }
+
+    /**
+     * The number of stack traces found in the cache since the layout was last started
+     */
+    public long getStackTraceCacheHits() {
+        StackTraceCache stackTraces = this.stackTraces;
+        return stackTraces == null ? 0 : stackTraces.hits();
+    }
+
+    /**
+     * The number of stack traces that had to be rendered since the layout was last started
+     */
+    public long getStackTraceCacheMisses() {
+        StackTraceCache stackTraces = this.stackTraces;
+        return stackTraces == null ? 0 : stackTraces.misses();
+    }
+
+    /**
+     * The number of stack traces dropped from the cache to make room for others since the layout was last started
+     */
+    public long getStackTraceCacheEvictions() {
+        StackTraceCache stackTraces = this.stackTraces;
+        return stackTraces == null ? 0 : stackTraces.evictions();
+    }
+
     public Map<String, String> getFieldTypes() {
         return fieldTypes;
     }
 
     public void setFieldTypes(final Map<String, String> fieldTypes) {
-        this.fieldTypes = fieldTypes;
+        this.fieldTypes = new HashMap<String, String>(fieldTypes);
     }
 
     public Layout getFullMessageLayout() {
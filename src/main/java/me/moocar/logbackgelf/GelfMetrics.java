@@ -0,0 +1,313 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.core.CoreConstants;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for one appender: what was laid out, encoded and sent, what was dropped and why,
+ * and how long each stage took. Recording is lock-free and allocation free, so it can happen on logging threads.
+ *
+ * The metrics are pulled, either through the getters here (or the appender's getMetrics()), or over JMX, where each
+ * started appender registers them as an MXBean. Nothing is pushed or logged.
+ */
+public final class GelfMetrics implements GelfMetricsMXBean {
+
+    /**
+     * Why a message was dropped
+     */
+    public enum DropReason {
+
+        /**
+         * The async queue was full
+         */
+        QUEUE_FULL,
+
+        /**
+         * Too big to send: more than 128 UDP chunks
+         */
+        TOO_LARGE,
+
+        /**
+         * The non-blocking nio transport's send buffer was full
+         */
+        WOULD_BLOCK,
+
+        /**
+         * The TCP server was unreachable, or the connection was lost while the message was being written
+         */
+        DISCONNECTED,
+
+        /**
+         * Pushed out of a full spool, or couldn't be spooled
+         */
+        SPOOL_FULL,
+
+        /**
+         * Still queued when the appender's stopTimeout ran out
+         */
+        STOP_TIMEOUT,
+
+        /**
+         * Over the throttle's rate limit
+         */
+        RATE_LIMITED,
+
+        /**
+         * Rejected by the HTTP server, or still failing once the retries ran out
+         */
+        SEND_FAILED,
+
+        /**
+         * Left out of the sample of INFO and lower messages that the overload controller sends at its SAMPLE level
+         */
+        SAMPLED_OUT,
+
+        /**
+         * Below WARN while the overload controller was at its SHED level
+         */
+        SHED
+    }
+
+    private static final String DOMAIN = "me.moocar.logbackgelf";
+    private static final DropReason[] DROP_REASONS = DropReason.values();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong singlePacketMessages = new AtomicLong();
+    private final AtomicLong chunkedMessages = new AtomicLong();
+    private final AtomicLong chunksSent = new AtomicLong();
+    private final AtomicLongArray drops = new AtomicLongArray(DROP_REASONS.length);
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong suppressedMessages = new AtomicLong();
+    private final AtomicLong trimmedMessages = new AtomicLong();
+    private final LatencyHistogram layoutLatency = new LatencyHistogram();
+    private final LatencyHistogram encodeLatency = new LatencyHistogram();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    // Set while the appender is started with an overload controller, which is told about sends
+    private volatile GelfOverloadController overload;
+
+    void eventAppended() {
+        events.incrementAndGet();
+    }
+
+    void laidOut(int bytes, long nanos) {
+        uncompressedBytes.addAndGet(bytes);
+        layoutLatency.record(nanos);
+    }
+
+    void encoded(int bytes, long nanos) {
+        encodedBytes.addAndGet(bytes);
+        encodeLatency.record(nanos);
+    }
+
+    /**
+     * Records one UDP message sent as packets datagrams
+     */
+    void packetsSent(int packets, long nanos) {
+        sentMessages.incrementAndGet();
+        if (packets == 1) {
+            singlePacketMessages.incrementAndGet();
+        } else {
+            chunkedMessages.incrementAndGet();
+            chunksSent.addAndGet(packets);
+        }
+        sendLatency.record(nanos);
+        sent(nanos);
+    }
+
+    /**
+     * Records one write of coalesced TCP messages. TCP messages aren't encoded, so their bytes are counted here
+     */
+    void messagesWritten(int messages, long bytes, long nanos) {
+        sentMessages.addAndGet(messages);
+        encodedBytes.addAndGet(bytes);
+        sendLatency.record(nanos);
+        sent(nanos);
+    }
+
+    /**
+     * Records one message sent as an HTTP request. Its bytes were counted when it was encoded
+     */
+    void requestSent(long nanos) {
+        sentMessages.incrementAndGet();
+        sendLatency.record(nanos);
+        sent(nanos);
+    }
+
+    private void sent(long nanos) {
+        GelfOverloadController overload = this.overload;
+        if (overload != null) {
+            overload.sent(nanos);
+        }
+    }
+
+    void dropped(DropReason reason, long count) {
+        drops.addAndGet(reason.ordinal(), count);
+        if (reason == DropReason.WOULD_BLOCK) {
+            GelfOverloadController overload = this.overload;
+            if (overload != null) {
+                overload.wouldBlock();
+            }
+        }
+    }
+
+    void sendFailed() {
+        sendErrors.incrementAndGet();
+    }
+
+    /**
+     * Records a duplicate that the throttle collapsed into the summary of its dedup window
+     */
+    void suppressed() {
+        suppressedMessages.incrementAndGet();
+    }
+
+    /**
+     * Records a message that the overload controller sent without full_message or stack trace
+     */
+    void trimmed() {
+        trimmedMessages.incrementAndGet();
+    }
+
+    void watchedBy(GelfOverloadController overload) {
+        this.overload = overload;
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1 : (double) encodedBytes.get() / uncompressed;
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public long getSinglePacketMessages() {
+        return singlePacketMessages.get();
+    }
+
+    public long getChunkedMessages() {
+        return chunkedMessages.get();
+    }
+
+    public long getChunksSent() {
+        return chunksSent.get();
+    }
+
+    public long getDroppedMessages() {
+        long dropped = 0;
+        for (int i = 0; i < drops.length(); i++) {
+            dropped += drops.get(i);
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of messages dropped for reason
+     */
+    public long getDroppedMessages(DropReason reason) {
+        return drops.get(reason.ordinal());
+    }
+
+    public Map<String, Long> getDroppedMessagesByReason() {
+        Map<String, Long> dropped = new LinkedHashMap<String, Long>();
+        for (DropReason reason : DROP_REASONS) {
+            dropped.put(reason.name(), drops.get(reason.ordinal()));
+        }
+        return dropped;
+    }
+
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    public long getSuppressedMessages() {
+        return suppressedMessages.get();
+    }
+
+    public String getOverloadLevel() {
+        GelfOverloadController overload = this.overload;
+        return (overload == null ? GelfOverloadController.OverloadLevel.NORMAL : overload.getLevel()).name();
+    }
+
+    public long getTrimmedMessages() {
+        return trimmedMessages.get();
+    }
+
+    public LatencySnapshot getLayoutLatency() {
+        return layoutLatency.snapshot();
+    }
+
+    public LatencySnapshot getEncodeLatency() {
+        return encodeLatency.snapshot();
+    }
+
+    public LatencySnapshot getSendLatency() {
+        return sendLatency.snapshot();
+    }
+
+    public void reset() {
+        events.set(0);
+        uncompressedBytes.set(0);
+        encodedBytes.set(0);
+        sentMessages.set(0);
+        singlePacketMessages.set(0);
+        chunkedMessages.set(0);
+        chunksSent.set(0);
+        for (int i = 0; i < drops.length(); i++) {
+            drops.set(i, 0);
+        }
+        sendErrors.set(0);
+        suppressedMessages.set(0);
+        trimmedMessages.set(0);
+        layoutLatency.reset();
+        encodeLatency.reset();
+        sendLatency.reset();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server
+     *
+     * @return the name they were registered under
+     */
+    ObjectName register(String type, String contextName, String appenderName) throws JMException {
+        ObjectName name = new ObjectName(DOMAIN + ":type=" + type
+                + ",context=" + ObjectName.quote(contextName == null ? CoreConstants.DEFAULT_CONTEXT_NAME : contextName)
+                + ",name=" + ObjectName.quote(String.valueOf(appenderName)));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        return name;
+    }
+
+    static void unregister(ObjectName name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException ignored) {
+            // Unregistered by someone else in the meantime
+        }
+    }
+}
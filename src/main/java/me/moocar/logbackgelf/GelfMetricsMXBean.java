@@ -0,0 +1,104 @@
+package me.moocar.logbackgelf;
+
+import java.util.Map;
+
+/**
+ * The JMX view of an appender's {@link GelfMetrics}. Registered as
+ * me.moocar.logbackgelf:type=&lt;appender class&gt;,context=&lt;context name&gt;,name=&lt;appender name&gt;
+ */
+public interface GelfMetricsMXBean {
+
+    /**
+     * @return the number of events appended, including ones that were later dropped
+     */
+    long getEvents();
+
+    /**
+     * @return the number of bytes of GELF JSON laid out
+     */
+    long getUncompressedBytes();
+
+    /**
+     * @return the number of bytes handed to the transport after compression, not counting chunk headers
+     */
+    long getEncodedBytes();
+
+    /**
+     * @return encodedBytes divided by uncompressedBytes, or 1 if nothing has been encoded
+     */
+    double getCompressionRatio();
+
+    /**
+     * @return the number of messages sent: datagrams or chunked messages for UDP, messages written for TCP, requests
+     * for HTTP
+     */
+    long getSentMessages();
+
+    /**
+     * @return the number of UDP messages that fit in a single packet
+     */
+    long getSinglePacketMessages();
+
+    /**
+     * @return the number of UDP messages that were split into chunks
+     */
+    long getChunkedMessages();
+
+    /**
+     * @return the number of chunks sent for chunked messages
+     */
+    long getChunksSent();
+
+    /**
+     * @return the number of messages dropped, for whatever reason
+     */
+    long getDroppedMessages();
+
+    /**
+     * @return the number of messages dropped by {@link GelfMetrics.DropReason}
+     */
+    Map<String, Long> getDroppedMessagesByReason();
+
+    /**
+     * @return the number of sends that failed with an exception
+     */
+    long getSendErrors();
+
+    /**
+     * @return the number of duplicate events that the throttle collapsed into summary messages
+     */
+    long getSuppressedMessages();
+
+    /**
+     * @return the level of the appender's {@link GelfOverloadController}: NORMAL, TRIM, SAMPLE or SHED. NORMAL if it
+     * doesn't have one
+     */
+    String getOverloadLevel();
+
+    /**
+     * @return the number of messages the overload controller sent without full_message or stack trace. Those it
+     * dropped are counted as SAMPLED_OUT and SHED
+     */
+    long getTrimmedMessages();
+
+    /**
+     * @return how long GelfLayout took to turn events into JSON
+     */
+    LatencySnapshot getLayoutLatency();
+
+    /**
+     * @return how long it took to compress (or copy) the JSON into the transport's buffers
+     */
+    LatencySnapshot getEncodeLatency();
+
+    /**
+     * @return how long sending took: each message's datagrams for UDP, each coalesced write for TCP, each successful
+     * request for HTTP
+     */
+    LatencySnapshot getSendLatency();
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    void reset();
+}
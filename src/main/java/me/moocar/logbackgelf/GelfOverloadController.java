@@ -0,0 +1,316 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sheds work progressively while an appender can't keep up, so that WARN and ERROR messages keep getting through
+ * rather than messages being lost at random. Configured as the overload controller of a GelfUDPAppender,
+ * GelfTCPAppender or GelfHttpAppender.
+ *
+ * The controller measures pressure, where 1 is about as much as the appender can take:
+ * <ul>
+ * <li>How full the async queue is, by messages or bytes, for appenders that have one</li>
+ * <li>The average send latency, as a fraction of maxSendLatency, if that's set</li>
+ * <li>The fraction of non-blocking UDP sends that would have blocked, as a fraction of maxWouldBlockRatio</li>
+ * </ul>
+ * and the highest of them sets its level:
+ * <ol>
+ * <li>TRIM, from trimAt: INFO and lower messages are sent without full_message or stack trace</li>
+ * <li>SAMPLE, from sampleAt: one in sampleRate INFO and lower messages is sent, trimmed. The rest are dropped</li>
+ * <li>SHED, from shedAt: INFO and lower messages are dropped</li>
+ * </ol>
+ * WARN and ERROR messages are always sent whole. Pressure can raise the level several steps at once. It only comes
+ * back down one step at a time, once pressure is hysteresis below the threshold of the current level and the level
+ * has held for at least recoveryDelay milliseconds, so that it doesn't flap.
+ *
+ * Deciding is lock-free. Pressure is evaluated on a logging thread at most once every 10 milliseconds.
+ */
+public class GelfOverloadController extends ContextAwareBase {
+
+    private final double DEFAULT_TRIM_AT = 0.5;
+    private final double DEFAULT_SAMPLE_AT = 0.75;
+    private final double DEFAULT_SHED_AT = 0.9;
+    private final double DEFAULT_HYSTERESIS = 0.2;
+    private final long DEFAULT_RECOVERY_DELAY = 1000;
+    private final int DEFAULT_SAMPLE_RATE = 10;
+    private final double DEFAULT_MAX_WOULD_BLOCK_RATIO = 0.1;
+
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // How long the send averages count for after the last send
+    private static final long SEND_SIGNAL_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // The weight of each send in the moving averages of latency and would block sends
+    private static final double SMOOTHING = 1.0 / 32;
+
+    /**
+     * How far the controller has degraded. Each level includes the ones before it
+     */
+    public enum OverloadLevel {
+        NORMAL,
+        TRIM,
+        SAMPLE,
+        SHED
+    }
+
+    enum Decision {
+        SEND,
+        // Send without full_message or stack trace
+        TRIM,
+        // Drop, not being part of the sample
+        SAMPLE_OUT,
+        SHED
+    }
+
+    private static final OverloadLevel[] LEVELS = OverloadLevel.values();
+
+    private double trimAt = DEFAULT_TRIM_AT;
+    private double sampleAt = DEFAULT_SAMPLE_AT;
+    private double shedAt = DEFAULT_SHED_AT;
+    private double hysteresis = DEFAULT_HYSTERESIS;
+    private long recoveryDelay = DEFAULT_RECOVERY_DELAY;
+    private int sampleRate = DEFAULT_SAMPLE_RATE;
+    private long maxSendLatency = 0;
+    private double maxWouldBlockRatio = DEFAULT_MAX_WOULD_BLOCK_RATIO;
+
+    // Only set while started
+    private volatile boolean started = false;
+    private String name;
+    private GelfRingBuffer queue;
+    // Indexed by level. The pressure at which each level starts
+    private double[] thresholds;
+
+    private volatile OverloadLevel level = OverloadLevel.NORMAL;
+    private volatile long levelSince;
+    private volatile double pressure = 0;
+    private final AtomicLong lastCheck = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+
+    // Moving averages, updated without synchronization. A lost update only nudges them a little
+    private volatile double sendLatencyNanos = 0;
+    private volatile double wouldBlockRatio = 0;
+    private volatile long lastSend;
+
+    /**
+     * Called by the appender once it has started
+     *
+     * @param metrics The appender's metrics, which pass send latencies and would block sends on to the controller
+     * @param queue   The appender's async queue, or null if it doesn't have one
+     * @param name    The appender's name, for status messages
+     */
+    void start(GelfMetrics metrics, GelfRingBuffer queue, String name) {
+        if (!(0 < trimAt && trimAt <= sampleAt && sampleAt <= shedAt)) {
+            addError("The overload thresholds of appender " + name + " must be positive and trimAt <= sampleAt <= " +
+                    "shedAt. Overload control is off");
+            return;
+        }
+        this.name = name;
+        this.queue = queue;
+        this.thresholds = new double[]{0, trimAt, sampleAt, shedAt};
+        long now = System.nanoTime();
+        level = OverloadLevel.NORMAL;
+        levelSince = now;
+        pressure = 0;
+        lastCheck.set(now - CHECK_INTERVAL_NANOS);
+        sendLatencyNanos = 0;
+        wouldBlockRatio = 0;
+        lastSend = now;
+        metrics.watchedBy(this);
+        started = true;
+    }
+
+    /**
+     * Called by the appender while it's stopping
+     */
+    void stop(GelfMetrics metrics) {
+        started = false;
+        metrics.watchedBy(null);
+        level = OverloadLevel.NORMAL;
+        queue = null;
+    }
+
+    /**
+     * Called on the logging thread for each event, before it's laid out
+     */
+    Decision decide(ILoggingEvent event) {
+        if (!started) {
+            return Decision.SEND;
+        }
+        long now = System.nanoTime();
+        long last = lastCheck.get();
+        if (now - last >= CHECK_INTERVAL_NANOS && lastCheck.compareAndSet(last, now)) {
+            evaluate(now);
+        }
+        OverloadLevel level = this.level;
+        if (level == OverloadLevel.NORMAL || event.getLevel().toInt() >= Level.WARN_INT) {
+            return Decision.SEND;
+        }
+        switch (level) {
+            case TRIM:
+                return Decision.TRIM;
+            case SAMPLE:
+                return sampled.getAndIncrement() % sampleRate == 0 ? Decision.TRIM : Decision.SAMPLE_OUT;
+            default:
+                return Decision.SHED;
+        }
+    }
+
+    /**
+     * Measures pressure and moves to the level it calls for. Only ever runs on one thread at a time
+     */
+    void evaluate(long now) {
+        GelfRingBuffer queue = this.queue;
+        double pressure = queue == null ? 0 : queue.fill();
+        // Averages that no send has updated for a while say nothing about now
+        if (now - lastSend < SEND_SIGNAL_TIMEOUT_NANOS) {
+            if (maxSendLatency > 0) {
+                pressure = Math.max(pressure, sendLatencyNanos / TimeUnit.MILLISECONDS.toNanos(maxSendLatency));
+            }
+            if (maxWouldBlockRatio > 0) {
+                pressure = Math.max(pressure, wouldBlockRatio / maxWouldBlockRatio);
+            }
+        }
+        this.pressure = pressure;
+
+        int current = level.ordinal();
+        int target = current;
+        while (target < LEVELS.length - 1 && pressure >= thresholds[target + 1]) {
+            target++;
+        }
+        if (target == current && current > 0 && pressure < thresholds[current] - hysteresis &&
+                now - levelSince >= TimeUnit.MILLISECONDS.toNanos(recoveryDelay)) {
+            target = current - 1;
+        }
+        if (target != current) {
+            level = LEVELS[target];
+            levelSince = now;
+            addInfo("Appender " + name + " is now at overload level " + LEVELS[target] + ", with pressure " +
+                    pressure);
+        }
+    }
+
+    /**
+     * Records a send that went through, and how long it took
+     */
+    void sent(long nanos) {
+        sendLatencyNanos += (nanos - sendLatencyNanos) * SMOOTHING;
+        wouldBlockRatio -= wouldBlockRatio * SMOOTHING;
+        lastSend = System.nanoTime();
+    }
+
+    /**
+     * Records a non-blocking send that was dropped because it would have blocked
+     */
+    void wouldBlock() {
+        wouldBlockRatio += (1 - wouldBlockRatio) * SMOOTHING;
+        lastSend = System.nanoTime();
+    }
+
+    /**
+     * @return the current level. NORMAL while the appender is stopped
+     */
+    public OverloadLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * @return the pressure measured last, where 1 is about as much as the appender can take
+     */
+    public double getPressure() {
+        return pressure;
+    }
+
+    //////////// Logback Property Getter/Setters ////////////////
+
+    /**
+     * The pressure from which INFO and lower messages are sent without full_message or stack trace. Defaults to 0.5
+     */
+    public double getTrimAt() {
+        return trimAt;
+    }
+
+    public void setTrimAt(double trimAt) {
+        this.trimAt = trimAt;
+    }
+
+    /**
+     * The pressure from which only one in sampleRate INFO and lower messages is sent. Defaults to 0.75
+     */
+    public double getSampleAt() {
+        return sampleAt;
+    }
+
+    public void setSampleAt(double sampleAt) {
+        this.sampleAt = sampleAt;
+    }
+
+    /**
+     * The pressure from which all INFO and lower messages are dropped. Defaults to 0.9
+     */
+    public double getShedAt() {
+        return shedAt;
+    }
+
+    public void setShedAt(double shedAt) {
+        this.shedAt = shedAt;
+    }
+
+    /**
+     * How far below the threshold of the current level pressure has to fall to go back down a level. Defaults to 0.2
+     */
+    public double getHysteresis() {
+        return hysteresis;
+    }
+
+    public void setHysteresis(double hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * The least time spent at a level before going back down from it, in milliseconds. Defaults to 1000
+     */
+    public long getRecoveryDelay() {
+        return recoveryDelay;
+    }
+
+    public void setRecoveryDelay(long recoveryDelay) {
+        this.recoveryDelay = recoveryDelay;
+    }
+
+    /**
+     * At the SAMPLE level, one in this many INFO and lower messages is sent. Defaults to 10
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * The average send latency, in milliseconds, that counts as a pressure of 1. Defaults to 0, which leaves latency
+     * out of pressure
+     */
+    public long getMaxSendLatency() {
+        return maxSendLatency;
+    }
+
+    public void setMaxSendLatency(long maxSendLatency) {
+        this.maxSendLatency = maxSendLatency;
+    }
+
+    /**
+     * The fraction of non-blocking UDP sends that would have blocked which counts as a pressure of 1. Defaults to 0.1
+     */
+    public double getMaxWouldBlockRatio() {
+        return maxWouldBlockRatio;
+    }
+
+    public void setMaxWouldBlockRatio(double maxWouldBlockRatio) {
+        this.maxWouldBlockRatio = maxWouldBlockRatio;
+    }
+}
@@ -0,0 +1,184 @@
+package me.moocar.logbackgelf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue of encoded messages, used to hand messages from logging threads to a sender thread.
+ * It is bounded both by the number of messages and by the total number of bytes queued.
+ *
+ * Each slot owns a byte array that messages are copied into, so once the slots have grown to the usual message size,
+ * queueing a message doesn't allocate. Slots that had to grow for an unusually large message give it back when the
+ * message is consumed.
+ *
+ * This is Dmitry Vyukov's bounded MPMC queue: each slot has a sequence number that says whether it is free for the
+ * producer at a given position, or holds the message the consumer at that position is waiting for. Producers and
+ * consumers each claim a position with a CAS, and the slot's sequence publishes the message. Any thread may poll,
+ * which is how a producer discards the oldest message when the queue is full.
+ */
+final class GelfRingBuffer {
+
+    /**
+     * Receives messages polled from the buffer. The bytes are only valid for the duration of the call.
+     */
+    interface Consumer {
+        void consume(byte[] message, int length, int level, int key);
+    }
+
+    // Slot arrays bigger than this are released once consumed rather than kept for the next message
+    private static final int MAX_RETAINED_SLOT_SIZE = 8 * 1024;
+
+    private final int capacity;
+    private final int mask;
+    private final long maxBytes;
+    private final AtomicLongArray sequences;
+    // Slot contents are plain fields. They are published by the volatile write to the slot's sequence
+    private final byte[][] messages;
+    private final int[] lengths;
+    private final int[] levels;
+    // Opaque to the buffer. Used by appenders to route a message to a destination
+    private final int[] keys;
+
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    /**
+     * @param minCapacity The minimum number of messages that can be queued. Rounded up to a power of two
+     * @param maxBytes The maximum number of message bytes that can be queued at once. A single message bigger than
+     *                 this is still accepted when the queue is empty
+     */
+    GelfRingBuffer(int minCapacity, long maxBytes) {
+        int capacity = 2;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxBytes = maxBytes;
+        this.sequences = new AtomicLongArray(capacity);
+        this.messages = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.levels = new int[capacity];
+        this.keys = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Copies a message into the buffer.
+     *
+     * @return false if the buffer is full, either by message count or by bytes
+     */
+    boolean offer(byte[] message, int length, int level, int key) {
+        if (!reserveBytes(length)) {
+            return false;
+        }
+        long position = enqueuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                // The slot still holds the message from one lap ago, so we're full
+                queuedBytes.addAndGet(-length);
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+        byte[] slot = messages[index];
+        if (slot == null || slot.length < length) {
+            slot = new byte[length];
+            messages[index] = slot;
+        }
+        System.arraycopy(message, 0, slot, 0, length);
+        lengths[index] = length;
+        levels[index] = level;
+        keys[index] = key;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest message and passes it to consumer. A null consumer discards the message.
+     *
+     * @return false if the buffer was empty
+     */
+    boolean poll(Consumer consumer) {
+        long position = dequeuePosition.get();
+        int index;
+        for (;;) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+        int length = lengths[index];
+        try {
+            if (consumer != null) {
+                consumer.consume(messages[index], length, levels[index], keys[index]);
+            }
+        } finally {
+            if (messages[index].length > MAX_RETAINED_SLOT_SIZE) {
+                messages[index] = null;
+            }
+            queuedBytes.addAndGet(-length);
+            sequences.set(index, position + capacity);
+        }
+        return true;
+    }
+
+    /**
+     * @return an estimate of the number of messages in the buffer
+     */
+    int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return how full the buffer is, from 0 to 1, by whichever of its message and byte limits is closer
+     */
+    double fill() {
+        return Math.max((double) size() / capacity, maxBytes <= 0 ? 0 : (double) queuedBytes() / maxBytes);
+    }
+
+    private boolean reserveBytes(int length) {
+        for (;;) {
+            long current = queuedBytes.get();
+            if (current > 0 && current + length > maxBytes) {
+                return false;
+            }
+            if (queuedBytes.compareAndSet(current, current + length)) {
+                return true;
+            }
+        }
+    }
+}
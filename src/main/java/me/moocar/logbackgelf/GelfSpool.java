@@ -0,0 +1,360 @@
+package me.moocar.logbackgelf;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded store-and-forward queue of encoded messages on disk, used to keep messages while the server can't be
+ * reached, including across restarts.
+ *
+ * The spool is a directory of fixed size, memory-mapped segment files. Messages are appended to the newest segment
+ * and read back from the oldest; a segment is deleted once it has been read. Appending is a copy into the mapped
+ * segment, so it costs about the same as queueing in memory; the OS writes the pages to disk in its own time. Once
+ * the spool holds maxBytes, the oldest segment is discarded to make room.
+ *
+ * Each segment starts with a magic number and the offset of the next record to read, which is updated as records
+ * are read. Each record is its length, the CRC32 of its bytes, then the bytes. When the spool is opened, each segment
+ * is scanned from its read offset and ends at the first record that is incomplete or fails its checksum, so anything
+ * torn by a crash is ignored. Records read just before a crash may be read again after it.
+ *
+ * Only one spool at a time can use a directory, which is enforced with a lock file. Not thread safe.
+ */
+final class GelfSpool {
+
+    // "GELF"
+    private static final int MAGIC = 0x47454c46;
+    // The magic number and read offset
+    private static final int HEADER_LENGTH = 8;
+    // The record's length and checksum
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String LOCK_FILE = "spool.lock";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final CRC32 crc = new CRC32();
+
+    // Records are copied out of the segment into here to be consumed
+    private byte[] scratch = new byte[1024];
+    private long nextSequence = 0;
+    // Volatile so that other threads can monitor the size
+    private volatile long records = 0;
+    private long discardedRecords = 0;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    /**
+     * @param maxBytes The most disk space the segments may use. At least two segments are always allowed
+     * @param segmentSize The size of each segment file. Also limits the size of a single message
+     */
+    GelfSpool(File directory, long maxBytes, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+    }
+
+    /**
+     * Locks the directory and recovers whatever was left in it by a previous process.
+     *
+     * @return the number of messages recovered
+     */
+    long open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        try {
+            lock = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by another spool in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Spool directory " + directory + " is in use by another appender");
+        }
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (String name : names) {
+            File file = new File(directory, name);
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment = Segment.recover(file, segmentSize, crc);
+            if (segment == null || segment.isFullyRead()) {
+                if (segment != null) {
+                    segment.close();
+                }
+                if (!file.delete()) {
+                    throw new IOException("Could not delete spool segment " + file);
+                }
+            } else {
+                segments.addLast(segment);
+                records += segment.unread;
+            }
+            nextSequence = Math.max(nextSequence, sequence + 1);
+        }
+        return records;
+    }
+
+    /**
+     * @return the size of the biggest message that can be spooled
+     */
+    int maxMessageSize() {
+        return segmentSize - HEADER_LENGTH - RECORD_HEADER_LENGTH;
+    }
+
+    /**
+     * Appends a message, discarding the oldest segment if the spool is full.
+     *
+     * @return false if the message is too big to be spooled
+     * @throws IOException if a new segment couldn't be created
+     */
+    boolean append(byte[] message, int length) throws IOException {
+        if (length <= 0 || length > maxMessageSize()) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.remaining() < RECORD_HEADER_LENGTH + length) {
+            if (segments.size() >= maxSegments) {
+                Segment oldest = segments.removeFirst();
+                discardedRecords += oldest.unread;
+                records -= oldest.unread;
+                oldest.delete();
+            }
+            tail = Segment.create(new File(directory, String.format("%020d", nextSequence++) + SEGMENT_SUFFIX),
+                    segmentSize);
+            segments.addLast(tail);
+        }
+        crc.reset();
+        crc.update(message, 0, length);
+        tail.append(message, length, (int) crc.getValue());
+        records++;
+        return true;
+    }
+
+    /**
+     * Removes the oldest message and passes it to consumer. The level and key are always 0.
+     *
+     * @return false if the spool is empty
+     */
+    boolean poll(GelfRingBuffer.Consumer consumer) {
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return false;
+            }
+            int length = head.read(this);
+            if (length >= 0) {
+                records--;
+                consumer.consume(scratch, length, 0, 0);
+                return true;
+            }
+            if (head == segments.peekLast()) {
+                // Appends carry on where reading stopped
+                return false;
+            }
+            segments.removeFirst();
+            head.delete();
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be read
+     */
+    long size() {
+        return records;
+    }
+
+    boolean isEmpty() {
+        return records == 0;
+    }
+
+    /**
+     * @return the number of messages discarded to keep to maxBytes since the last call
+     */
+    long takeDiscardedRecords() {
+        long discarded = discardedRecords;
+        discardedRecords = 0;
+        return discarded;
+    }
+
+    /**
+     * Flushes the segments to disk and releases the directory
+     */
+    void close() {
+        for (Segment segment : segments) {
+            segment.force();
+            segment.close();
+        }
+        segments.clear();
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockFile != null) {
+                lockFile.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private byte[] scratch(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private static final class Segment {
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+        // The number of records between readPosition and writePosition
+        private long unread;
+
+        private Segment(File file, RandomAccessFile raf, MappedByteBuffer buffer) {
+            this.file = file;
+            this.raf = raf;
+            this.buffer = buffer;
+        }
+
+        static Segment create(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                Segment segment = new Segment(file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+                segment.buffer.putInt(0, MAGIC);
+                segment.buffer.putInt(4, HEADER_LENGTH);
+                segment.readPosition = HEADER_LENGTH;
+                segment.writePosition = HEADER_LENGTH;
+                return segment;
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the segment, or null if the file isn't a valid segment
+         */
+        static Segment recover(File file, int size, CRC32 crc) throws IOException {
+            if (file.length() != size) {
+                return null;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            Segment segment = new Segment(file, raf, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+            MappedByteBuffer buffer = segment.buffer;
+            int readPosition = buffer.getInt(4);
+            if (buffer.getInt(0) != MAGIC || readPosition < HEADER_LENGTH || readPosition > size) {
+                segment.close();
+                return null;
+            }
+            byte[] bytes = new byte[1024];
+            int position = readPosition;
+            while (position + RECORD_HEADER_LENGTH <= size) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || length > size - position - RECORD_HEADER_LENGTH) {
+                    break;
+                }
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                buffer.position(position + RECORD_HEADER_LENGTH);
+                buffer.get(bytes, 0, length);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+                position += RECORD_HEADER_LENGTH + length;
+                segment.unread++;
+            }
+            segment.readPosition = readPosition;
+            segment.writePosition = position;
+            return segment;
+        }
+
+        int remaining() {
+            return buffer.capacity() - writePosition;
+        }
+
+        boolean isFullyRead() {
+            return readPosition == writePosition;
+        }
+
+        void append(byte[] message, int length, int checksum) {
+            int next = writePosition + RECORD_HEADER_LENGTH + length;
+            buffer.position(writePosition + RECORD_HEADER_LENGTH);
+            buffer.put(message, 0, length);
+            if (next + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+                // Whatever a torn write left here must not be mistaken for the next record
+                buffer.putInt(next, 0);
+            }
+            buffer.putInt(writePosition + 4, checksum);
+            // The length goes last, so a record is only complete once all of it has been written
+            buffer.putInt(writePosition, length);
+            writePosition = next;
+            unread++;
+        }
+
+        /**
+         * Copies the next record into the spool's scratch array.
+         *
+         * @return its length, or -1 if there are no more records to read
+         */
+        int read(GelfSpool spool) {
+            if (readPosition == writePosition) {
+                return -1;
+            }
+            int length = buffer.getInt(readPosition);
+            byte[] bytes = spool.scratch(length);
+            buffer.position(readPosition + RECORD_HEADER_LENGTH);
+            buffer.get(bytes, 0, length);
+            readPosition += RECORD_HEADER_LENGTH + length;
+            buffer.putInt(4, readPosition);
+            unread--;
+            return length;
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        void delete() {
+            close();
+            // The mapping lives on until the buffer is garbage collected. Most platforms allow the file to be deleted
+            // anyway; where they don't, the fully read segment is deleted when the spool is next opened
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,906 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.encoder.Encoder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A TCP appender that sends null byte delimited GELF messages to a remote server over a SocketChannel.
+ *
+ * Logging threads only lay the message out and put the bytes on a lock-free queue. A dedicated IO thread owns the
+ * connection. It copies as many queued messages as fit into a direct buffer and writes them in one go, so under load
+ * many messages share a write. When the queue runs dry, a partly filled buffer is written once its oldest message has
+ * waited maxFlushLatency milliseconds.
+ *
+ * Connecting and reconnecting also happen on the IO thread, with an exponential backoff between attempts. While the
+ * server is unreachable the circuit is open: appends are dropped (and counted) straight away, without being laid out,
+ * so a dead Graylog never holds up the application. Messages queued before the connection went down are sent once it
+ * is back.
+ *
+ * With a spoolDirectory, messages aren't dropped while the server is unreachable. The IO thread moves them from the
+ * queue to a memory-mapped GelfSpool on disk instead, along with anything it failed to write, and replays them at up to
+ * spoolReplayRate messages a second once it has reconnected. The spool is kept across restarts. Logging threads only
+ * ever touch the in-memory queue.
+ *
+ * The encoder must be a LayoutWrappingEncoder with a GelfLayout. TCP GELF doesn't support compression, so a
+ * CompressionEncoder's compression settings are ignored.
+ *
+ * Like GelfUDPAppender, the appender keeps {@link GelfMetrics} and registers them over JMX while started. Each of
+ * its send latencies is one coalesced write.
+ *
+ * @param <E>
+ */
+public class GelfTCPAppender<E> extends UnsynchronizedAppenderBase<E> {
+
+    private final String REMOTE_HOST = "localhost";
+    private final int DEFAULT_PORT = 12201;
+    private final int DEFAULT_QUEUE_SIZE = 8192;
+    private final long DEFAULT_QUEUE_MAX_BYTES = 8 * 1024 * 1024;
+    private final int DEFAULT_WRITE_BUFFER_SIZE = 64 * 1024;
+    private final int DEFAULT_MAX_FLUSH_LATENCY = 5;
+    private final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    private final int DEFAULT_MIN_RECONNECT_DELAY = 100;
+    private final int DEFAULT_MAX_RECONNECT_DELAY = 30000;
+    private final int DEFAULT_STOP_TIMEOUT = 1000;
+    private final long DEFAULT_SPOOL_MAX_BYTES = 64 * 1024 * 1024;
+    private final int DEFAULT_SPOOL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private final int DEFAULT_SPOOL_REPLAY_RATE = 1000;
+
+    // How long an idle IO thread sleeps before checking the queue again, in case a wake up was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final byte DELIMITER = 0;
+    // The most spooled messages replayed before checking the queue for new ones
+    private static final int REPLAY_BATCH = 256;
+
+    private Encoder<E> encoder;
+    private String remoteHost = REMOTE_HOST;
+    private int port = DEFAULT_PORT;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long queueMaxBytes = DEFAULT_QUEUE_MAX_BYTES;
+    private int writeBufferSize = DEFAULT_WRITE_BUFFER_SIZE;
+    private int maxFlushLatency = DEFAULT_MAX_FLUSH_LATENCY;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int minReconnectDelay = DEFAULT_MIN_RECONNECT_DELAY;
+    private int maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private int sendBufferSize = 0;
+    private int stopTimeout = DEFAULT_STOP_TIMEOUT;
+    private String spoolDirectory;
+    private long spoolMaxBytes = DEFAULT_SPOOL_MAX_BYTES;
+    private int spoolSegmentSize = DEFAULT_SPOOL_SEGMENT_SIZE;
+    private int spoolReplayRate = DEFAULT_SPOOL_REPLAY_RATE;
+    private boolean jmx = true;
+    private GelfThrottle throttle;
+    private GelfOverloadController overload;
+
+    private GelfLayout<ILoggingEvent> layout;
+    // Only set while started with a spoolDirectory. Only used by the IO thread
+    private volatile GelfSpool spool;
+    // Only set while started
+    private volatile IoThread io;
+    // Open while the server is unreachable. Appends are dropped without being queued
+    private volatile boolean circuitOpen = false;
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final GelfMetrics metrics = new GelfMetrics();
+    private ObjectName metricsName;
+
+    @Override
+    public void start() {
+        if (isStarted()) return;
+        int errorCount = 0;
+        if (port <= 0) {
+            errorCount++;
+            addError("No port was configured for appender"
+                    + name
+                    + " For more information, please visit http://logback.qos.ch/codes.html#socket_no_port");
+        }
+
+        if (remoteHost == null) {
+            errorCount++;
+            addError("No remote host was configured for appender"
+                    + name
+                    + " For more information, please visit http://logback.qos.ch/codes.html#socket_no_host");
+        }
+
+        layout = GelfLayout.of(encoder);
+        if (layout == null) {
+            errorCount++;
+            addError("No encoder with a GelfLayout was configured for appender " + name);
+        } else if (encoder instanceof CompressionEncoder) {
+            addWarn("TCP GELF can't be compressed. Ignoring the compression settings of appender " + name);
+        }
+
+        if (writeBufferSize <= 0) {
+            errorCount++;
+            addError("writeBufferSize must be positive for appender " + name);
+        }
+
+        if (errorCount == 0 && spoolDirectory != null) {
+            if (spoolSegmentSize <= 0 || spoolMaxBytes <= 0) {
+                errorCount++;
+                addError("spoolSegmentSize and spoolMaxBytes must be positive for appender " + name);
+            } else {
+                GelfSpool spool = new GelfSpool(new File(spoolDirectory), spoolMaxBytes, spoolSegmentSize);
+                try {
+                    long recovered = spool.open();
+                    if (recovered > 0) {
+                        addInfo("Recovered " + recovered + " spooled messages for appender " + name);
+                    }
+                    this.spool = spool;
+                } catch (IOException e) {
+                    errorCount++;
+                    addError("Could not open spool directory " + spoolDirectory + " for appender " + name, e);
+                }
+            }
+        }
+
+        if (errorCount == 0) {
+            if (!encoder.isStarted()) {
+                encoder.start();
+            }
+            circuitOpen = false;
+            io = new IoThread(layout, spool);
+            io.start();
+            super.start();
+            if (jmx) {
+                registerMetrics();
+            }
+            if (throttle != null) {
+                throttle.start(new GelfThrottle.Sink() {
+                    public void append(ILoggingEvent summary) {
+                        appendUnthrottled(summary);
+                    }
+                }, name);
+            }
+            if (overload != null) {
+                overload.start(metrics, io.queue, name);
+            }
+        }
+    }
+
+    private void registerMetrics() {
+        try {
+            metricsName = metrics.register(getClass().getSimpleName(), context.getName(), name);
+        } catch (JMException e) {
+            addWarn("Could not register the metrics of appender " + name + " with JMX", e);
+        }
+    }
+
+    /**
+     * Sends whatever is still queued before stopping, for up to stopTimeout milliseconds, then closes the connection.
+     */
+    @Override
+    public void stop() {
+        if (!isStarted()) return;
+        if (throttle != null) {
+            // Sends the summaries of open dedup windows
+            throttle.stop();
+        }
+        if (overload != null) {
+            overload.stop(metrics);
+        }
+        super.stop();
+        IoThread io = this.io;
+        if (io != null) {
+            io.shutdown(stopTimeout);
+        }
+        this.io = null;
+        this.spool = null;
+        if (metricsName != null) {
+            GelfMetrics.unregister(metricsName);
+            metricsName = null;
+        }
+    }
+
+    @Override
+    protected void append(E event) {
+        IoThread io = this.io;
+        if (io == null) {
+            return;
+        }
+        metrics.eventAppended();
+        ILoggingEvent loggingEvent = (ILoggingEvent) event;
+        GelfThrottle throttle = this.throttle;
+        if (throttle != null) {
+            switch (throttle.decide(loggingEvent)) {
+                case SUPPRESSED:
+                    metrics.suppressed();
+                    return;
+                case RATE_LIMITED:
+                    messagesDropped(1, GelfMetrics.DropReason.RATE_LIMITED);
+                    return;
+                default:
+            }
+        }
+        GelfOverloadController overload = this.overload;
+        if (overload != null) {
+            switch (overload.decide(loggingEvent)) {
+                case TRIM:
+                    metrics.trimmed();
+                    loggingEvent = new TrimmedEvent(loggingEvent);
+                    break;
+                case SAMPLE_OUT:
+                    messagesDropped(1, GelfMetrics.DropReason.SAMPLED_OUT);
+                    return;
+                case SHED:
+                    messagesDropped(1, GelfMetrics.DropReason.SHED);
+                    return;
+                default:
+            }
+        }
+        appendUnthrottled(loggingEvent);
+    }
+
+    private void appendUnthrottled(ILoggingEvent loggingEvent) {
+        IoThread io = this.io;
+        if (io == null) {
+            return;
+        }
+        if (circuitOpen && spool == null) {
+            messagesDropped(1, GelfMetrics.DropReason.DISCONNECTED);
+            return;
+        }
+        long start = System.nanoTime();
+        GelfJsonWriter json = layout.write(loggingEvent);
+        metrics.laidOut(json.size(), System.nanoTime() - start);
+        if (io.queue.offer(json.buffer(), json.size(), loggingEvent.getLevel().toInt(), 0)) {
+            if (io.idle) {
+                LockSupport.unpark(io);
+            }
+        } else {
+            messagesDropped(1, GelfMetrics.DropReason.QUEUE_FULL);
+        }
+    }
+
+    /**
+     * A LayoutWrappingEncoder with a GelfLayout. The encoder is only used for its layout
+     */
+    public Encoder<E> getEncoder() {
+        return encoder;
+    }
+
+    public void setEncoder(Encoder<E> encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * The remote host name to send logs to. Resolved again on each reconnect. Defaults to "localhost"
+     */
+    public String getRemoteHost() {
+        return remoteHost;
+    }
+
+    public void setRemoteHost(String remoteHost) {
+        this.remoteHost = remoteHost;
+    }
+
+    /**
+     * The remote port to send logs to. Defaults to 12201
+     */
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * The maximum number of messages waiting to be sent, rounded up to a power of two. Defaults to 8192
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The maximum number of message bytes waiting to be sent. Defaults to 8MB
+     */
+    public long getQueueMaxBytes() {
+        return queueMaxBytes;
+    }
+
+    public void setQueueMaxBytes(long queueMaxBytes) {
+        this.queueMaxBytes = queueMaxBytes;
+    }
+
+    /**
+     * The size in bytes of the buffer that messages are coalesced into before being written. Defaults to 64KB
+     */
+    public int getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(int writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    /**
+     * The longest a message waits in a partly filled write buffer for more messages to arrive, in milliseconds. 0
+     * writes as soon as the queue is empty. Defaults to 5
+     */
+    public int getMaxFlushLatency() {
+        return maxFlushLatency;
+    }
+
+    public void setMaxFlushLatency(int maxFlushLatency) {
+        this.maxFlushLatency = maxFlushLatency;
+    }
+
+    /**
+     * How long to wait for a connection to be established, in milliseconds. Defaults to 1000
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * How long to wait after the first failed connection attempt, in milliseconds. The delay doubles with each
+     * further failure, up to maxReconnectDelay. Defaults to 100
+     */
+    public int getMinReconnectDelay() {
+        return minReconnectDelay;
+    }
+
+    public void setMinReconnectDelay(int minReconnectDelay) {
+        this.minReconnectDelay = minReconnectDelay;
+    }
+
+    /**
+     * The longest delay between connection attempts, in milliseconds. Defaults to 30000
+     */
+    public int getMaxReconnectDelay() {
+        return maxReconnectDelay;
+    }
+
+    public void setMaxReconnectDelay(int maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+    }
+
+    /**
+     * The socket's send buffer size (SO_SNDBUF) in bytes. Defaults to 0, which leaves the OS default
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * How long stop() waits for queued messages to be sent, in milliseconds. Defaults to 1000
+     */
+    public int getStopTimeout() {
+        return stopTimeout;
+    }
+
+    public void setStopTimeout(int stopTimeout) {
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * Rate limits and deduplicates messages before they are laid out. See {@link GelfThrottle}. Defaults to none
+     */
+    public GelfThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(GelfThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Trims, samples and then sheds INFO and lower messages while the appender is overloaded. See
+     * {@link GelfOverloadController}. Defaults to none
+     */
+    public GelfOverloadController getOverload() {
+        return overload;
+    }
+
+    public void setOverload(GelfOverloadController overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * Whether to register the appender's metrics with the platform MBean server while it's started, as
+     * me.moocar.logbackgelf:type=GelfTCPAppender,context=&lt;context&gt;,name=&lt;appender&gt;. Defaults to true
+     */
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * A directory to spool messages to while the server is unreachable. Defaults to none, in which case those messages
+     * are dropped
+     */
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    /**
+     * The most disk space the spool may use. Once it's full, the oldest messages are dropped. Defaults to 64MB
+     */
+    public long getSpoolMaxBytes() {
+        return spoolMaxBytes;
+    }
+
+    public void setSpoolMaxBytes(long spoolMaxBytes) {
+        this.spoolMaxBytes = spoolMaxBytes;
+    }
+
+    /**
+     * The size of each of the spool's files. Messages bigger than this can't be spooled. Defaults to 4MB
+     */
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    /**
+     * The most spooled messages sent per second once reconnected, on top of new messages. 0 is unlimited. Defaults to
+     * 1000
+     */
+    public int getSpoolReplayRate() {
+        return spoolReplayRate;
+    }
+
+    public void setSpoolReplayRate(int spoolReplayRate) {
+        this.spoolReplayRate = spoolReplayRate;
+    }
+
+    /**
+     * @return the number of messages waiting in the spool
+     */
+    public long getSpooledMessages() {
+        GelfSpool spool = this.spool;
+        return spool == null ? 0 : spool.size();
+    }
+
+    /**
+     * @return the number of messages dropped because the queue was full, the circuit was open, the connection was lost
+     * while they were being written, or they were still queued when stopTimeout ran out. With a spool, only messages
+     * that couldn't be spooled, or were pushed out of a full spool, are dropped
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return counters and latency histograms of what the appender has sent and dropped. Kept across restarts
+     */
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of messages written to the socket
+     */
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    /**
+     * @return the number of messages currently waiting to be sent
+     */
+    public int getQueueDepth() {
+        IoThread io = this.io;
+        return io == null ? 0 : io.queue.size();
+    }
+
+    /**
+     * @return true while the appender is connected to the server
+     */
+    public boolean isConnected() {
+        IoThread io = this.io;
+        return io != null && io.channel != null;
+    }
+
+    /**
+     * @return true while the server is unreachable, during which appends are dropped unless there is a spool
+     */
+    public boolean isCircuitOpen() {
+        return circuitOpen;
+    }
+
+    private void messagesDropped(long count, GelfMetrics.DropReason reason) {
+        metrics.dropped(reason, count);
+        if (droppedMessages.getAndAdd(count) == 0) {
+            addWarn("Dropped a message from appender " + name + ". Further drops are counted, but not reported");
+        }
+    }
+
+    /**
+     * Owns the connection and the spool. Takes messages off the queue, coalesces them into the write buffer and writes
+     * them, and reconnects when the connection is lost. While disconnected, moves messages into the spool, and once
+     * connected again, replays them when there's nothing newer to send.
+     */
+    private final class IoThread extends Thread implements GelfRingBuffer.Consumer {
+
+        private final GelfRingBuffer queue;
+        private final ByteBuffer buffer;
+        private final ByteBuffer delimiter = ByteBuffer.allocateDirect(1);
+        private final long maxFlushLatencyNanos;
+        private final GelfSpool spool;
+
+        private volatile boolean running = true;
+        // Set while the IO thread is about to park, so producers know to wake it up
+        private volatile boolean idle = false;
+        private volatile long drainDeadline;
+        // Only written by this thread. Volatile so that shutdown() can close it to interrupt a stuck write
+        private volatile SocketChannel channel;
+
+        // The number and size of the messages in the buffer, and when the first of them was put there
+        private int bufferedMessages = 0;
+        private int bufferedBytes = 0;
+        private long firstBufferedAt;
+        private long reconnectDelayMillis = minReconnectDelay;
+        private long nextConnectAt;
+        private boolean everConnected = false;
+        // A token bucket limiting the replay rate
+        private double replayPermits = 0;
+        private long replayPermitsAt;
+        // Messages are copied out of the write buffer into here to be spooled
+        private byte[] scratch = new byte[1024];
+        private boolean spoolFailed = false;
+
+        IoThread(GelfLayout<ILoggingEvent> layout, GelfSpool spool) {
+            super("logback-gelf-tcp-sender-" + name);
+            setDaemon(true);
+            this.queue = new GelfRingBuffer(queueSize, queueMaxBytes);
+            this.buffer = ByteBuffer.allocateDirect(writeBufferSize);
+            this.maxFlushLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxFlushLatency));
+            this.nextConnectAt = System.nanoTime();
+            this.replayPermitsAt = nextConnectAt;
+            this.spool = spool;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    boolean stopping = !running;
+                    if (stopping && (channel == null || System.nanoTime() - drainDeadline >= 0)) {
+                        break;
+                    }
+                    if (channel == null) {
+                        if (!connect()) {
+                            if (spool != null) {
+                                while (queue.poll(this)) {
+                                    // consume() spools the message
+                                }
+                            }
+                            waitToReconnect();
+                        }
+                        continue;
+                    }
+                    while (channel != null && queue.poll(this)) {
+                        // consume() fills the buffer, writing it out whenever the next message doesn't fit
+                    }
+                    if (channel == null || !queue.isEmpty()) {
+                        continue;
+                    }
+                    if (!stopping && replay()) {
+                        continue;
+                    }
+                    if (bufferedMessages == 0) {
+                        if (stopping) {
+                            break;
+                        }
+                        park(spool == null || spool.isEmpty() ? IDLE_PARK_NANOS : nanosUntilReplay());
+                    } else {
+                        long wait = maxFlushLatencyNanos - (System.nanoTime() - firstBufferedAt);
+                        if (wait <= 0 || stopping || !buffer.hasRemaining()) {
+                            flush();
+                        } else {
+                            park(wait);
+                        }
+                    }
+                }
+                flush();
+            } finally {
+                closeChannel();
+                if (spool != null) {
+                    // Keep whatever couldn't be sent for next time
+                    while (queue.poll(this)) {
+                        // consume() spools the message
+                    }
+                    spool.close();
+                }
+            }
+        }
+
+        /**
+         * Moves up to a batch of spooled messages into the write buffer, as far as the replay rate allows.
+         *
+         * @return true if any were moved
+         */
+        private boolean replay() {
+            if (spool == null || spool.isEmpty()) {
+                return false;
+            }
+            long limit = REPLAY_BATCH;
+            if (spoolReplayRate > 0) {
+                long now = System.nanoTime();
+                replayPermits = Math.min(spoolReplayRate,
+                        replayPermits + (now - replayPermitsAt) * spoolReplayRate / 1e9);
+                replayPermitsAt = now;
+                limit = Math.min(limit, (long) replayPermits);
+            }
+            int replayed = 0;
+            while (replayed < limit && channel != null && spool.poll(this)) {
+                replayed++;
+            }
+            replayPermits -= replayed;
+            return replayed > 0;
+        }
+
+        private long nanosUntilReplay() {
+            if (spoolReplayRate <= 0) {
+                return IDLE_PARK_NANOS;
+            }
+            return Math.max(TimeUnit.MICROSECONDS.toNanos(100), (long) ((1 - replayPermits) * 1e9 / spoolReplayRate));
+        }
+
+        private void park(long nanos) {
+            idle = true;
+            if (queue.isEmpty() && running) {
+                LockSupport.parkNanos(this, nanos);
+            }
+            idle = false;
+        }
+
+        public void consume(byte[] message, int length, int level, int key) {
+            if (length + 1 > buffer.remaining()) {
+                flush();
+            }
+            if (channel == null) {
+                spool(message, length);
+            } else if (length + 1 > buffer.capacity()) {
+                // Too big to coalesce, so write it straight from the queue's slot
+                try {
+                    long start = System.nanoTime();
+                    writeFully(ByteBuffer.wrap(message, 0, length));
+                    delimiter.clear();
+                    delimiter.put(DELIMITER).flip();
+                    writeFully(delimiter);
+                    sentMessages.incrementAndGet();
+                    metrics.messagesWritten(1, length, System.nanoTime() - start);
+                } catch (IOException e) {
+                    metrics.sendFailed();
+                    connectionLost(e);
+                    spool(message, length);
+                }
+            } else {
+                if (bufferedMessages == 0) {
+                    firstBufferedAt = System.nanoTime();
+                }
+                buffer.put(message, 0, length).put(DELIMITER);
+                bufferedMessages++;
+                bufferedBytes += length;
+            }
+        }
+
+        /**
+         * Writes out the buffer. If the connection is lost, the buffered messages are spooled or dropped
+         */
+        private void flush() {
+            if (bufferedMessages == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                if (channel != null) {
+                    try {
+                        long start = System.nanoTime();
+                        writeFully(buffer);
+                        sentMessages.addAndGet(bufferedMessages);
+                        metrics.messagesWritten(bufferedMessages, bufferedBytes, System.nanoTime() - start);
+                        return;
+                    } catch (IOException e) {
+                        metrics.sendFailed();
+                        connectionLost(e);
+                    }
+                }
+                spoolBuffer();
+            } finally {
+                buffer.clear();
+                bufferedMessages = 0;
+                bufferedBytes = 0;
+            }
+        }
+
+        /**
+         * Spools every message in the flipped buffer. Some of them may have been written before the connection was
+         * lost, in which case they will be sent twice
+         */
+        private void spoolBuffer() {
+            if (spool == null) {
+                messagesDropped(bufferedMessages, GelfMetrics.DropReason.DISCONNECTED);
+                return;
+            }
+            int start = 0;
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == DELIMITER) {
+                    int length = i - start;
+                    if (scratch.length < length) {
+                        scratch = new byte[Math.max(length, scratch.length * 2)];
+                    }
+                    buffer.position(start);
+                    buffer.get(scratch, 0, length);
+                    spool(scratch, length);
+                    start = i + 1;
+                }
+            }
+        }
+
+        /**
+         * Spools a message that couldn't be sent, or drops it if there's no spool or it can't be spooled
+         */
+        private void spool(byte[] message, int length) {
+            if (spool == null) {
+                messagesDropped(1, GelfMetrics.DropReason.DISCONNECTED);
+                return;
+            }
+            try {
+                if (!spool.append(message, length)) {
+                    messagesDropped(1, GelfMetrics.DropReason.SPOOL_FULL);
+                }
+                spoolFailed = false;
+            } catch (IOException e) {
+                if (!spoolFailed) {
+                    addError("Could not spool messages from appender " + name, e);
+                    spoolFailed = true;
+                }
+                messagesDropped(1, GelfMetrics.DropReason.SPOOL_FULL);
+            }
+            long discarded = spool.takeDiscardedRecords();
+            if (discarded > 0) {
+                messagesDropped(discarded, GelfMetrics.DropReason.SPOOL_FULL);
+            }
+        }
+
+        private void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+        }
+
+        /**
+         * Makes one connection attempt if the backoff delay has passed. Opens the circuit if it fails.
+         *
+         * @return true if connected
+         */
+        private boolean connect() {
+            if (System.nanoTime() - nextConnectAt < 0) {
+                return false;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                if (sendBufferSize > 0) {
+                    channel.socket().setSendBufferSize(sendBufferSize);
+                }
+                // Writes are already coalesced, so there's nothing to gain from Nagle's algorithm delaying them
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+                channel.socket().connect(new InetSocketAddress(remoteHost, port), connectTimeout);
+                this.channel = channel;
+                reconnectDelayMillis = minReconnectDelay;
+                if (circuitOpen || everConnected) {
+                    addInfo("Appender " + name + " connected to " + remoteHost + ":" + port);
+                }
+                everConnected = true;
+                circuitOpen = false;
+                return true;
+            } catch (Exception e) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (!circuitOpen) {
+                    addWarn("Could not connect appender " + name + " to " + remoteHost + ":" + port
+                            + ". Dropping messages until it reconnects", e);
+                    circuitOpen = true;
+                }
+                nextConnectAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMillis);
+                reconnectDelayMillis = Math.min(Math.max(1, reconnectDelayMillis * 2), maxReconnectDelay);
+                return false;
+            }
+        }
+
+        private void waitToReconnect() {
+            long wait = nextConnectAt - System.nanoTime();
+            if (wait <= 0) {
+                return;
+            }
+            if (spool != null) {
+                // Woken by new messages, so they're spooled rather than left to fill the queue
+                park(wait);
+            } else if (running) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+
+        private void connectionLost(IOException e) {
+            if (running) {
+                addWarn("Lost connection from appender " + name + " to " + remoteHost + ":" + port
+                        + ". Dropping messages until it reconnects", e);
+            }
+            circuitOpen = true;
+            closeChannel();
+            nextConnectAt = System.nanoTime();
+        }
+
+        private void closeChannel() {
+            SocketChannel channel = this.channel;
+            this.channel = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        /**
+         * Waits up to timeoutMillis for the queue to drain, then closes the connection. Anything left is dropped.
+         */
+        void shutdown(long timeoutMillis) {
+            drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join(Math.max(1, timeoutMillis));
+                if (isAlive()) {
+                    // Most likely stuck writing to a server that has stopped reading. Closing the channel unblocks it
+                    closeChannel();
+                    join(Math.max(1, timeoutMillis));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long discarded = 0;
+            while (queue.poll(null)) {
+                discarded++;
+            }
+            if (discarded > 0) {
+                addWarn("Dropped " + discarded + " queued messages from appender " + name + " after waiting "
+                        + timeoutMillis + "ms for them to be sent");
+                droppedMessages.addAndGet(discarded);
+                metrics.dropped(GelfMetrics.DropReason.STOP_TIMEOUT, discarded);
+            }
+        }
+    }
+}
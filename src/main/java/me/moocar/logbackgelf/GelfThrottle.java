@@ -0,0 +1,370 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import org.slf4j.Marker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many messages an appender sends, before they are laid out. Configured as the throttle of a
+ * GelfUDPAppender, GelfTCPAppender or GelfHttpAppender.
+ *
+ * Two mechanisms can be used together:
+ * <ul>
+ * <li>Rate limiting: a token bucket per logger, level or marker (see {@link ThrottleKey}) lets through rate messages a
+ * second on average, and bursts of up to burst messages. Messages over the limit are dropped.</li>
+ * <li>Deduplication: the first of a run of identical events (same logger, level, message template and exception
+ * stack) is sent straight away, and the identical events that follow it within dedupWindow milliseconds are only
+ * counted. Once the window closes, the first event is sent again with "_suppressed_count", "_first_timestamp" and
+ * "_last_timestamp" fields.</li>
+ * </ul>
+ *
+ * Deduplication happens first, so suppressed duplicates don't use up the rate limit. A suppressed event is never laid
+ * out, and its MDC is never copied. Telling that it's a duplicate costs a few hash codes (a walk of the stack frames if
+ * it has an exception) and an uncontended lock.
+ *
+ * Dedup windows live in a fixed size table indexed by hash. An event whose slot is held by a different event closes
+ * that window early.
+ */
+public class GelfThrottle extends ContextAwareBase {
+
+    private final int DEFAULT_MAX_KEYS = 1024;
+    // The number of dedup windows. A power of two
+    private static final int WINDOWS = 1024;
+
+    /**
+     * Where summaries of suppressed events go. Implemented by the appender, bypassing the throttle
+     */
+    interface Sink {
+        void append(ILoggingEvent summary);
+    }
+
+    enum Decision {
+        SEND,
+        // A duplicate, which will be counted in the summary of its window
+        SUPPRESSED,
+        RATE_LIMITED
+    }
+
+    private double rate = 0;
+    private int burst = 0;
+    private ThrottleKey keyBy = ThrottleKey.LOGGER;
+    private int maxKeys = DEFAULT_MAX_KEYS;
+    private long dedupWindow = 0;
+
+    // Only set while started
+    private volatile boolean started = false;
+    private Sink sink;
+    private ConcurrentHashMap<String, Bucket> buckets;
+    // Shared by keys once there are maxKeys buckets
+    private Bucket overflow;
+    private Window[] windows;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Called by the appender once it has started
+     *
+     * @param name The appender's name, for the flusher thread's name
+     */
+    void start(Sink sink, final String name) {
+        this.sink = sink;
+        int capacity = burst > 0 ? burst : (int) Math.max(1, Math.ceil(rate));
+        this.buckets = new ConcurrentHashMap<String, Bucket>();
+        this.overflow = new Bucket(rate, capacity);
+        if (dedupWindow > 0) {
+            windows = new Window[WINDOWS];
+            for (int i = 0; i < WINDOWS; i++) {
+                windows[i] = new Window();
+            }
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "logback-gelf-throttle-" + name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long period = Math.max(1, dedupWindow / 2);
+            flusher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flush(false);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            windows = null;
+        }
+        started = true;
+    }
+
+    /**
+     * Called by the appender while it's stopping, but can still send. Sends the summaries of open windows
+     */
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        if (flusher != null) {
+            flusher.shutdownNow();
+            try {
+                flusher.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        flush(true);
+    }
+
+    /**
+     * Called on the logging thread for each event, before it's laid out
+     */
+    Decision decide(ILoggingEvent event) {
+        if (!started) {
+            return Decision.SEND;
+        }
+        Window[] windows = this.windows;
+        Window window = null;
+        long hash = 0;
+        if (windows != null) {
+            hash = dedupHash(event);
+            window = windows[(int) (hash ^ (hash >>> 32)) & (WINDOWS - 1)];
+            synchronized (window) {
+                if (window.suppress(event, hash, dedupWindow)) {
+                    return Decision.SUPPRESSED;
+                }
+            }
+        }
+        if (rate > 0 && !bucket(event).take(System.nanoTime())) {
+            return Decision.RATE_LIMITED;
+        }
+        if (window != null) {
+            SuppressedEvents summary;
+            synchronized (window) {
+                summary = window.open(event, hash);
+            }
+            if (summary != null) {
+                sink.append(summary);
+            }
+        }
+        return Decision.SEND;
+    }
+
+    /**
+     * Closes the windows that have expired, or all of them, sending the summaries of those that suppressed anything
+     */
+    private void flush(boolean all) {
+        Window[] windows = this.windows;
+        if (windows == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Window window : windows) {
+            SuppressedEvents summary;
+            synchronized (window) {
+                summary = window.close(all ? Long.MAX_VALUE : now, dedupWindow);
+            }
+            if (summary != null) {
+                sink.append(summary);
+            }
+        }
+    }
+
+    private Bucket bucket(ILoggingEvent event) {
+        String key;
+        switch (keyBy) {
+            case LEVEL:
+                key = event.getLevel().levelStr;
+                break;
+            case MARKER:
+                Marker marker = event.getMarker();
+                key = marker == null ? "" : marker.getName();
+                break;
+            default:
+                key = event.getLoggerName();
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                return overflow;
+            }
+            Bucket created = new Bucket(rate, overflow.capacity);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    private static long dedupHash(ILoggingEvent event) {
+        long hash = event.getLoggerName().hashCode();
+        String message = event.getMessage();
+        hash = hash * 31 + (message == null ? 0 : message.hashCode());
+        hash = hash * 31 + event.getLevel().toInt();
+        IThrowableProxy throwableProxy = event.getThrowableProxy();
+        if (throwableProxy != null) {
+            hash ^= StackTraceCache.fingerprint(throwableProxy);
+        }
+        hash *= 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A token bucket. Starts full
+     */
+    private static final class Bucket {
+
+        private final double tokensPerNano;
+        private final int capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        Bucket(double rate, int capacity) {
+            this.tokensPerNano = rate / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized boolean take(long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The run of identical events currently being deduplicated in one slot of the table. Guarded by its own lock
+     */
+    private static final class Window {
+
+        private long hash;
+        // Null while the window is closed. Kept so that it can be sent again as the summary, which is laid out on
+        // whichever thread closes the window. It may never have been laid out itself (shed by the overload controller,
+        // or dropped by a full queue), so its thread name, message and MDC are captured when the window opens
+        private ILoggingEvent first;
+        private long suppressed;
+        private long lastTimeStamp;
+
+        /**
+         * @return true if event is a duplicate of the window's first event, within the window
+         */
+        boolean suppress(ILoggingEvent event, long hash, long dedupWindow) {
+            ILoggingEvent first = this.first;
+            if (first == null || this.hash != hash || event.getTimeStamp() - first.getTimeStamp() >= dedupWindow ||
+                    event.getLevel() != first.getLevel() || !event.getLoggerName().equals(first.getLoggerName()) ||
+                    !equal(event.getMessage(), first.getMessage())) {
+                return false;
+            }
+            suppressed++;
+            lastTimeStamp = event.getTimeStamp();
+            return true;
+        }
+
+        /**
+         * Starts a new window with event
+         *
+         * @return the summary of the window it replaces, if it suppressed anything
+         */
+        SuppressedEvents open(ILoggingEvent event, long hash) {
+            // Cheap once captured, and the layout captures the same things on this thread anyway
+            event.prepareForDeferredProcessing();
+            SuppressedEvents summary = summary();
+            this.hash = hash;
+            this.first = event;
+            this.suppressed = 0;
+            return summary;
+        }
+
+        /**
+         * Closes the window if it opened dedupWindow or more milliseconds before now
+         *
+         * @return the summary of the window, if it was closed and suppressed anything
+         */
+        SuppressedEvents close(long now, long dedupWindow) {
+            if (first == null || now - first.getTimeStamp() < dedupWindow) {
+                return null;
+            }
+            SuppressedEvents summary = summary();
+            first = null;
+            suppressed = 0;
+            return summary;
+        }
+
+        private SuppressedEvents summary() {
+            return first != null && suppressed > 0 ? new SuppressedEvents(first, suppressed, lastTimeStamp) : null;
+        }
+    }
+
+    //////////// Logback Property Getter/Setters ////////////////
+
+    /**
+     * The average number of messages per second to let through for each key. Defaults to 0, which means no rate limit
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * The most messages that can be let through at once for each key, after a quiet period. Defaults to rate, rounded
+     * up
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    /**
+     * What the rate applies to: LOGGER, LEVEL or MARKER. Defaults to LOGGER
+     */
+    public ThrottleKey getKeyBy() {
+        return keyBy;
+    }
+
+    public void setKeyBy(ThrottleKey keyBy) {
+        this.keyBy = keyBy;
+    }
+
+    /**
+     * The most keys to keep a separate rate for. Keys seen after that share a single rate. Defaults to 1024
+     */
+    public int getMaxKeys() {
+        return maxKeys;
+    }
+
+    public void setMaxKeys(int maxKeys) {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Milliseconds over which identical events are collapsed into one message. Defaults to 0, which turns
+     * deduplication off
+     */
+    public long getDedupWindow() {
+        return dedupWindow;
+    }
+
+    public void setDedupWindow(long dedupWindow) {
+        this.dedupWindow = dedupWindow;
+    }
+}
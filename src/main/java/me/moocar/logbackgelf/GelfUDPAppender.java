@@ -1,17 +1,48 @@
 package me.moocar.logbackgelf;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.OutputStreamAppender;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
-import java.net.InetAddress;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A UDP appender that sends logs to a remote UDP server. Slices messages into multiple chunks if they're too big. See
  * GelfChunkingOutputStream for how chunking works.
  *
+ * By default, messages are laid out, compressed and sent on the logging thread while holding the appender's lock. In
+ * async mode, the logging thread only lays the message out and puts the bytes on a lock-free queue. A dedicated
+ * sender thread owns the output stream and does the compression and sending. Async mode requires a GelfLayout.
+ *
+ * With more than one lane, each lane is an output stream with its own socket and message IDs, guarded by its own lock.
+ * Logging threads lay their messages out without any lock, then send on their own lane, or on any lane that is free
+ * if theirs is busy, so sending scales with the number of threads. Lanes require a GelfLayout and don't apply in async
+ * mode.
+ *
+ * Messages can be spread across several servers, either configured as a list of endpoints, or as a host name with
+ * several addresses. Each message (and so all of its chunks) goes to one server, chosen round-robin or by hashing an
+ * MDC value. Host names are resolved again in the background every resolveInterval milliseconds.
+ *
+ * The appender keeps {@link GelfMetrics} of what it sends and drops, and how long layout, compression and sending
+ * take, and registers them over JMX while started.
+ *
  * @param <E>
  */
 public class GelfUDPAppender<E> extends OutputStreamAppender<E> {
@@ -19,10 +50,59 @@ public class GelfUDPAppender<E> extends OutputStreamAppender<E> {
     private final String REMOTE_HOST = "localhost";
     private final int DEFAULT_PORT = 12201;
     private final int DEFAULT_MAX_PACKET_SIZE = 512;
+    private final int DEFAULT_QUEUE_SIZE = 1024;
+    private final long DEFAULT_QUEUE_MAX_BYTES = 8 * 1024 * 1024;
+    private final int DEFAULT_STOP_TIMEOUT = 1000;
+    private final int DEFAULT_RESOLVE_INTERVAL = 60000;
+    // GELF servers drop messages of more than MAX_CHUNKS chunks, each of which has a CHUNK_HEADER_LENGTH byte header
+    private final int MAX_CHUNKS = 128;
+    private final int CHUNK_HEADER_LENGTH = 12;
+
+    // How long an idle sender sleeps before checking the queue again, in case a wake up was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // How long a blocked logging thread waits before trying to queue its message again
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
 
     private String remoteHost = REMOTE_HOST;
     private int port = DEFAULT_PORT;
+    private List<String> endpoints = new ArrayList<String>();
+    private String hashField;
+    private int resolveInterval = DEFAULT_RESOLVE_INTERVAL;
     private int maxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+    private MessageIdGenerator messageIdGenerator = CounterMessageIdGenerator.INSTANCE;
+    private boolean nio = false;
+    private int sendBufferSize = 0;
+    private boolean nonBlocking = false;
+    private boolean async = false;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private long queueMaxBytes = DEFAULT_QUEUE_MAX_BYTES;
+    private QueueFullPolicy queueFullPolicy = QueueFullPolicy.DROP_NEWEST;
+    private Level dropThreshold = Level.WARN;
+    private int stopTimeout = DEFAULT_STOP_TIMEOUT;
+    private int lanes = 1;
+    private boolean jmx = true;
+    private GelfThrottle throttle;
+    private GelfOverloadController overload;
+
+    // Only set while started in async mode
+    private volatile AsyncSender sender;
+    // Only set while started with more than one lane. The first lane's stream is also the appender's output stream
+    private volatile Lane[] laneArray;
+    // Only set while started
+    private volatile GelfEndpoints destinations;
+    private volatile ScheduledExecutorService resolver;
+    private GelfChunkingOutputStream socketStream;
+    // Only set while started with the nio transport
+    private volatile GelfDatagramChannelOutputStream channelStream;
+    // The hosts that couldn't be resolved last time, so each failure is only reported once
+    private List<String> unresolvedHosts = Collections.emptyList();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final GelfMetrics metrics = new GelfMetrics();
+    // Only set while started, if the encoder is a GelfEncoder or CompressionEncoder with a GelfLayout. Messages are
+    // then laid out, compressed and sent by the appender, so that each stage can be timed
+    private GelfLayout<ILoggingEvent> gelfLayout;
+    private CompressionEncoder<?> compressor;
+    private ObjectName metricsName;
 
     @Override
     public void start() {
@@ -42,66 +122,398 @@ public class GelfUDPAppender<E> extends OutputStreamAppender<E> {
                     + name
                     + " For more information, please visit http://logback.qos.ch/codes.html#socket_no_host");
         }
-        InetAddress address = null;
+
+        if (messageIdGenerator == null) {
+            errorCount++;
+            addError("No messageIdGenerator was configured for appender " + name);
+        }
+        GelfEndpoints destinations = null;
         if (errorCount == 0) {
             try {
-                address = InternetUtils.getInetAddress(remoteHost);
-            } catch (Exception e) {
-                addError(e.getMessage());
+                destinations = new GelfEndpoints(endpoints.isEmpty() ? Collections.singletonList(remoteHost)
+                        : endpoints, port);
+                unresolvedHosts = destinations.resolve();
+                if (destinations.addresses().isEmpty()) {
+                    errorCount++;
+                    addError("unknown host: " + unresolvedHosts);
+                } else if (!unresolvedHosts.isEmpty()) {
+                    addWarn("Could not resolve " + unresolvedHosts + " for appender " + name);
+                }
+            } catch (IllegalArgumentException e) {
                 errorCount++;
+                addError(e.getMessage());
             }
         }
 
-        String hostname = null;
-        if (errorCount == 0) {
-            try {
-                hostname = InternetUtils.getLocalHostName();
-            } catch (SocketException e) {
-                addError("Error creating localhostname", e);
-                errorCount++;
-            } catch (UnknownHostException e) {
-                addError("Could not create hostname");
+        GelfLayout<ILoggingEvent> asyncLayout = null;
+        if (errorCount == 0 && async) {
+            asyncLayout = GelfLayout.of(encoder);
+            if (asyncLayout == null) {
                 errorCount++;
+                addError("Async mode requires an encoder with a GelfLayout for appender " + name);
             }
         }
 
-        MessageIdProvider messageIdProvider = null;
-        if (errorCount == 0) {
-            try {
-                messageIdProvider = new MessageIdProvider(hostname);
-            } catch (NoSuchAlgorithmException e) {
-                errorCount++;
-                addError("Error creating digest", e);
+        if (errorCount == 0 && encoder instanceof CompressionEncoder) {
+            ((CompressionEncoder<?>) encoder).setMaxPacketSize(maxPacketSize);
+        }
+
+        if (errorCount == 0 && GelfLayout.of(encoder) != null) {
+            // Trim messages that wouldn't fit in MAX_CHUNKS chunks rather than have the output stream drop them. The
+            // margin covers the headers and any expansion that compression adds to incompressible messages
+            int budget = MAX_CHUNKS * (maxPacketSize - CHUNK_HEADER_LENGTH);
+            GelfLayout.of(encoder).limitEncodedSize(budget - budget / 1024 - 64);
+        }
+
+        if (errorCount == 0 && (encoder instanceof GelfEncoder || encoder instanceof CompressionEncoder)) {
+            gelfLayout = GelfLayout.of(encoder);
+            compressor = encoder instanceof CompressionEncoder ? (CompressionEncoder<?>) encoder : null;
+        }
+
+        int laneCount = 1;
+        if (errorCount == 0 && lanes > 1) {
+            if (async) {
+                addWarn("Lanes don't apply in async mode. Appender " + name + " is using one");
+            } else if (gelfLayout == null) {
+                addWarn("Lanes require an encoder with a GelfLayout. Appender " + name + " is using one");
+            } else {
+                laneCount = lanes;
             }
         }
 
         if (errorCount == 0) {
-            GelfChunkingOutputStream os = new GelfChunkingOutputStream(address, port, maxPacketSize, messageIdProvider);
+            Lane[] laneArray = new Lane[laneCount];
             try {
-                os.start();
+                InetSocketAddress first = destinations.addresses().get(0);
+                for (int i = 0; i < laneCount; i++) {
+                    // The shared default generator would be a point of contention between lanes
+                    laneArray[i] = new Lane(openStream(first, laneCount > 1 &&
+                            messageIdGenerator == CounterMessageIdGenerator.INSTANCE ? new CounterMessageIdGenerator()
+                            : messageIdGenerator));
+                }
+                OutputStream os = laneArray[0].out;
+                channelStream = laneArray[0].channelStream;
+                socketStream = laneArray[0].socketStream;
+                this.destinations = destinations;
                 this.setOutputStream(os);
+                this.laneArray = laneCount > 1 ? laneArray : null;
+                if (async) {
+                    sender = new AsyncSender(asyncLayout, os);
+                    sender.start();
+                }
                 super.start();
+                if (isStarted() && resolveInterval > 0) {
+                    startResolver();
+                }
+                if (isStarted() && jmx) {
+                    registerMetrics();
+                }
+                if (isStarted() && throttle != null) {
+                    throttle.start(new GelfThrottle.Sink() {
+                        @SuppressWarnings("unchecked")
+                        public void append(ILoggingEvent summary) {
+                            appendUnthrottled((E) summary);
+                        }
+                    }, name);
+                }
+                if (isStarted() && overload != null) {
+                    overload.start(metrics, sender == null ? null : sender.queue, name);
+                }
             } catch (SocketException e) {
                 addError("Could not connect to remote host", e);
             } catch (UnknownHostException e) {
                 addError("unknown host: " + remoteHost);
+            } catch (IOException e) {
+                addError("Could not open datagram channel", e);
+            }
+            if (!isStarted() && sender != null) {
+                sender.shutdown(0);
+                sender = null;
+            }
+            if (!isStarted()) {
+                for (Lane lane : laneArray) {
+                    if (lane != null) {
+                        lane.close();
+                    }
+                }
+                this.laneArray = null;
             }
         }
 
 
     }
 
+    private OutputStream openStream(InetSocketAddress destination, MessageIdGenerator ids) throws IOException {
+        if (nio) {
+            GelfDatagramChannelOutputStream stream = new GelfDatagramChannelOutputStream(destination.getAddress(),
+                    destination.getPort(), maxPacketSize, ids, sendBufferSize, nonBlocking);
+            stream.setMetrics(metrics);
+            stream.start();
+            return stream;
+        }
+        GelfChunkingOutputStream stream = new GelfChunkingOutputStream(destination.getAddress(), destination.getPort(),
+                maxPacketSize, ids);
+        stream.setSendBufferSize(sendBufferSize);
+        stream.setMetrics(metrics);
+        stream.start();
+        return stream;
+    }
+
+    private void registerMetrics() {
+        try {
+            metricsName = metrics.register(getClass().getSimpleName(), context.getName(), name);
+        } catch (JMException e) {
+            addWarn("Could not register the metrics of appender " + name + " with JMX", e);
+        }
+    }
+
+    private void startResolver() {
+        resolver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "logback-gelf-udp-resolver-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        resolver.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                resolveDestinations();
+            }
+        }, resolveInterval, resolveInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs on the resolver thread. Logging threads keep using the old addresses until the new ones are swapped in
+     */
+    private void resolveDestinations() {
+        GelfEndpoints destinations = this.destinations;
+        if (destinations == null) {
+            return;
+        }
+        try {
+            List<InetSocketAddress> before = destinations.addresses();
+            List<String> failures = destinations.resolve();
+            if (!failures.isEmpty() && !failures.equals(unresolvedHosts)) {
+                addWarn("Could not resolve " + failures + " for appender " + name + ". Still sending to "
+                        + destinations.addresses());
+            }
+            unresolvedHosts = failures;
+            List<InetSocketAddress> after = destinations.addresses();
+            if (!after.equals(before)) {
+                addInfo("Appender " + name + " is now sending to " + after);
+            }
+        } catch (RuntimeException e) {
+            // Don't let an unexpected error cancel future resolutions
+            addError("Could not resolve the destinations of appender " + name, e);
+        }
+    }
+
+    /**
+     * In async mode, sends whatever is still queued before stopping, for up to stopTimeout milliseconds.
+     */
+    @Override
+    public void stop() {
+        if (throttle != null) {
+            // Sends the summaries of open dedup windows
+            throttle.stop();
+        }
+        if (overload != null) {
+            overload.stop(metrics);
+        }
+        ScheduledExecutorService resolver = this.resolver;
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+        AsyncSender sender = this.sender;
+        if (sender != null) {
+            sender.shutdown(stopTimeout);
+        }
+        Lane[] laneArray = this.laneArray;
+        this.laneArray = null;
+        if (laneArray != null) {
+            // Waits for sends in progress. The first lane's stream is the appender's own, closed below
+            for (int i = 0; i < laneArray.length; i++) {
+                laneArray[i].closeWhenFree(i > 0);
+            }
+        }
+        // Closes the channel, once any send in progress under the appender's lock is done. Closing the stream
+        // doesn't close the socket, so that's done here
+        super.stop();
+        GelfChunkingOutputStream socketStream = this.socketStream;
+        if (socketStream != null) {
+            socketStream.closeSocket();
+        }
+        if (metricsName != null) {
+            GelfMetrics.unregister(metricsName);
+            metricsName = null;
+        }
+        this.resolver = null;
+        this.sender = null;
+        this.channelStream = null;
+        this.socketStream = null;
+        this.destinations = null;
+        this.gelfLayout = null;
+        this.compressor = null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void subAppend(E event) {
+        metrics.eventAppended();
+        GelfThrottle throttle = this.throttle;
+        if (throttle != null) {
+            switch (throttle.decide((ILoggingEvent) event)) {
+                case SUPPRESSED:
+                    metrics.suppressed();
+                    return;
+                case RATE_LIMITED:
+                    messagesDropped(1, GelfMetrics.DropReason.RATE_LIMITED);
+                    return;
+                default:
+            }
+        }
+        GelfOverloadController overload = this.overload;
+        if (overload != null) {
+            switch (overload.decide((ILoggingEvent) event)) {
+                case TRIM:
+                    metrics.trimmed();
+                    event = (E) new TrimmedEvent((ILoggingEvent) event);
+                    break;
+                case SAMPLE_OUT:
+                    messagesDropped(1, GelfMetrics.DropReason.SAMPLED_OUT);
+                    return;
+                case SHED:
+                    messagesDropped(1, GelfMetrics.DropReason.SHED);
+                    return;
+                default:
+            }
+        }
+        appendUnthrottled(event);
+    }
+
+    private void appendUnthrottled(E event) {
+        AsyncSender sender = this.sender;
+        Lane[] laneArray = this.laneArray;
+        if (laneArray != null) {
+            if (isStarted()) {
+                sendOnLane(laneArray, (ILoggingEvent) event);
+            }
+        } else if (sender == null) {
+            super.subAppend(event);
+        } else if (isStarted()) {
+            sender.enqueue((ILoggingEvent) event);
+        }
+    }
+
     @Override
     protected void writeOut(E event) {
         try {
-            super.writeOut(event);
+            setDestination(routingKey(event));
+            if (gelfLayout != null) {
+                long start = System.nanoTime();
+                GelfJsonWriter json = gelfLayout.write((ILoggingEvent) event);
+                metrics.laidOut(json.size(), System.nanoTime() - start);
+                send(json.buffer(), json.size(), compressor, channelStream != null ? channelStream : socketStream);
+            } else {
+                super.writeOut(event);
+            }
+        } catch (IOException e) {
+            metrics.sendFailed();
+            addError("IO Exception in UDP output stream", e);
+        }
+    }
+
+    /**
+     * Lays the event out on the logging thread without holding any lock, then sends it on a free lane
+     */
+    private void sendOnLane(Lane[] laneArray, ILoggingEvent event) {
+        GelfLayout<ILoggingEvent> layout = this.gelfLayout;
+        GelfEndpoints destinations = this.destinations;
+        if (layout == null || destinations == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        GelfJsonWriter json = layout.write(event);
+        metrics.laidOut(json.size(), System.nanoTime() - start);
+        InetSocketAddress destination = destinations.select(routingKey(event));
+        Lane lane = acquireLane(laneArray);
+        try {
+            if (!lane.closed) {
+                lane.setDestination(destination);
+                send(json.buffer(), json.size(), compressor, lane.out);
+            }
         } catch (IOException e) {
+            metrics.sendFailed();
             addError("IO Exception in UDP output stream", e);
+        } finally {
+            lane.lock.unlock();
+        }
+    }
+
+    /**
+     * @return a lane, locked. The calling thread's own lane if it's free, otherwise the first free one after it, or
+     * its own once that is free if they're all busy
+     */
+    private static Lane acquireLane(Lane[] laneArray) {
+        long hash = Thread.currentThread().getId() * 0x9e3779b97f4a7c15L;
+        int home = (int) ((hash >>> 32) % laneArray.length);
+        for (int i = 0; i < laneArray.length; i++) {
+            Lane lane = laneArray[(home + i) % laneArray.length];
+            if (lane.lock.tryLock()) {
+                return lane;
+            }
         }
+        laneArray[home].lock.lock();
+        return laneArray[home];
     }
 
     /**
-     * The remote host name to send logs to. Defaults to "localhost"
+     * Compresses a laid out message if there's a compressor, and sends it. The output stream records the send
+     */
+    private void send(byte[] message, int length, CompressionEncoder<?> compressor, OutputStream out)
+            throws IOException {
+        long start = System.nanoTime();
+        int encoded;
+        if (compressor != null) {
+            encoded = compressor.encode(message, length, out);
+        } else {
+            out.write(message, 0, length);
+            encoded = length;
+        }
+        metrics.encoded(encoded, System.nanoTime() - start);
+        out.flush();
+    }
+
+    /**
+     * @return the key that decides which destination the event is sent to
+     */
+    private int routingKey(Object event) {
+        if (hashField != null && event instanceof ILoggingEvent) {
+            Map<String, String> mdc = ((ILoggingEvent) event).getMDCPropertyMap();
+            String value = mdc == null ? null : mdc.get(hashField);
+            if (value != null) {
+                return GelfEndpoints.keyFor(value);
+            }
+        }
+        return GelfEndpoints.ROUND_ROBIN;
+    }
+
+    /**
+     * Points the output stream at the destination for the next message. Called with the appender's lock held, or on
+     * the async sender thread
+     */
+    private void setDestination(int routingKey) {
+        InetSocketAddress destination = destinations.select(routingKey);
+        GelfDatagramChannelOutputStream channelStream = this.channelStream;
+        if (channelStream != null) {
+            channelStream.setDestination(destination);
+        } else {
+            socketStream.setDestination(destination);
+        }
+    }
+
+    /**
+     * The remote host name to send logs to. Ignored if any endpoints are configured. Defaults to "localhost"
      */
     public String getRemoteHost() {
         return remoteHost;
@@ -122,6 +534,42 @@ public class GelfUDPAppender<E> extends OutputStreamAppender<E> {
         this.port = port;
     }
 
+    /**
+     * The servers to send logs to, each as "host" or "host:port". Every address a host resolves to is used. Defaults
+     * to remoteHost and port
+     */
+    public List<String> getEndpoints() {
+        return endpoints;
+    }
+
+    public void addEndpoint(String endpoint) {
+        this.endpoints.add(endpoint);
+    }
+
+    /**
+     * The MDC key whose value decides which server a message goes to, so that related messages end up on the same
+     * server. Messages without it, or all messages if it isn't set, are sent round-robin
+     */
+    public String getHashField() {
+        return hashField;
+    }
+
+    public void setHashField(String hashField) {
+        this.hashField = hashField;
+    }
+
+    /**
+     * How often to resolve the endpoints' host names again, in milliseconds. 0 resolves them only on start. Defaults
+     * to 60000
+     */
+    public int getResolveInterval() {
+        return resolveInterval;
+    }
+
+    public void setResolveInterval(int resolveInterval) {
+        this.resolveInterval = resolveInterval;
+    }
+
     /**
      * Maximum packet size. Defaults to 512 (for a maximum 64kb log after chunking).
      */
@@ -132,4 +580,409 @@ public class GelfUDPAppender<E> extends OutputStreamAppender<E> {
     public void setMaxPacketSize(int maxPacketSize) {
         this.maxPacketSize = maxPacketSize;
     }
+
+    /**
+     * Creates the IDs of chunked messages. Defaults to {@link CounterMessageIdGenerator#INSTANCE}
+     */
+    public MessageIdGenerator getMessageIdGenerator() {
+        return messageIdGenerator;
+    }
+
+    public void setMessageIdGenerator(MessageIdGenerator messageIdGenerator) {
+        this.messageIdGenerator = messageIdGenerator;
+    }
+
+    /**
+     * Whether to send with a DatagramChannel and pooled direct buffers instead of a DatagramSocket. Defaults to false
+     */
+    public boolean isNio() {
+        return nio;
+    }
+
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    /**
+     * The socket's send buffer size (SO_SNDBUF) in bytes. Defaults to 0, which leaves the OS default
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * With the nio transport, whether to drop a message rather than wait when the socket's send buffer is full.
+     * Defaults to false
+     */
+    public boolean isNonBlocking() {
+        return nonBlocking;
+    }
+
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
+    /**
+     * @return the number of messages dropped by the non-blocking nio transport because the send buffer was full
+     */
+    public long getWouldBlockCount() {
+        Lane[] laneArray = this.laneArray;
+        if (laneArray != null) {
+            long count = 0;
+            for (Lane lane : laneArray) {
+                count += lane.channelStream == null ? 0 : lane.channelStream.getWouldBlockCount();
+            }
+            return count;
+        }
+        GelfDatagramChannelOutputStream channelStream = this.channelStream;
+        return channelStream == null ? 0 : channelStream.getWouldBlockCount();
+    }
+
+    /**
+     * Whether to send messages from a dedicated thread instead of the logging thread. Defaults to false
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * The maximum number of messages queued in async mode, rounded up to a power of two. Defaults to 1024
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The maximum number of uncompressed message bytes queued in async mode. Defaults to 8MB
+     */
+    public long getQueueMaxBytes() {
+        return queueMaxBytes;
+    }
+
+    public void setQueueMaxBytes(long queueMaxBytes) {
+        this.queueMaxBytes = queueMaxBytes;
+    }
+
+    /**
+     * What to do with a message when the async queue is full. Defaults to DROP_NEWEST
+     */
+    public QueueFullPolicy getQueueFullPolicy() {
+        return queueFullPolicy;
+    }
+
+    public void setQueueFullPolicy(QueueFullPolicy queueFullPolicy) {
+        this.queueFullPolicy = queueFullPolicy;
+    }
+
+    /**
+     * With the DROP_BELOW_LEVEL policy, messages below this level are dropped when the queue is full and the rest
+     * wait for room. Defaults to WARN
+     */
+    public Level getDropThreshold() {
+        return dropThreshold;
+    }
+
+    public void setDropThreshold(Level dropThreshold) {
+        this.dropThreshold = dropThreshold;
+    }
+
+    /**
+     * How long stop() waits for queued messages to be sent in async mode, in milliseconds. Defaults to 1000
+     */
+    public int getStopTimeout() {
+        return stopTimeout;
+    }
+
+    public void setStopTimeout(int stopTimeout) {
+        this.stopTimeout = stopTimeout;
+    }
+
+    /**
+     * The number of sockets to send on in parallel, each with its own lock. Requires a GelfLayout and doesn't apply in
+     * async mode. Defaults to 1, which sends under the appender's lock
+     */
+    public int getLanes() {
+        return lanes;
+    }
+
+    public void setLanes(int lanes) {
+        this.lanes = lanes;
+    }
+
+    /**
+     * Rate limits and deduplicates messages before they are laid out. See {@link GelfThrottle}. Defaults to none
+     */
+    public GelfThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void setThrottle(GelfThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Trims, samples and then sheds INFO and lower messages while the appender is overloaded. See
+     * {@link GelfOverloadController}. Defaults to none
+     */
+    public GelfOverloadController getOverload() {
+        return overload;
+    }
+
+    public void setOverload(GelfOverloadController overload) {
+        this.overload = overload;
+    }
+
+    /**
+     * Whether to register the appender's metrics with the platform MBean server while it's started, as
+     * me.moocar.logbackgelf:type=GelfUDPAppender,context=&lt;context&gt;,name=&lt;appender&gt;. Defaults to true
+     */
+    public boolean isJmx() {
+        return jmx;
+    }
+
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * @return counters and latency histograms of what the appender has sent and dropped. Kept across restarts
+     */
+    public GelfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of messages dropped in async mode, either because the queue was full or because they were
+     * still queued when stopTimeout ran out
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * @return the number of messages currently waiting to be sent in async mode
+     */
+    public int getQueueDepth() {
+        AsyncSender sender = this.sender;
+        return sender == null ? 0 : sender.queue.size();
+    }
+
+    private void messagesDropped(long count, GelfMetrics.DropReason reason) {
+        metrics.dropped(reason, count);
+        if (droppedMessages.getAndAdd(count) == 0) {
+            addWarn("Dropped a message from appender " + name + ". Further drops are counted, but not reported");
+        }
+    }
+
+    /**
+     * An output stream and the lock that makes it safe to share between logging threads
+     */
+    private static final class Lane {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final OutputStream out;
+        // One of these is the same as out
+        private final GelfChunkingOutputStream socketStream;
+        private final GelfDatagramChannelOutputStream channelStream;
+        // Guarded by lock
+        private boolean closed = false;
+
+        Lane(OutputStream out) {
+            this.out = out;
+            this.socketStream = out instanceof GelfChunkingOutputStream ? (GelfChunkingOutputStream) out : null;
+            this.channelStream = out instanceof GelfDatagramChannelOutputStream
+                    ? (GelfDatagramChannelOutputStream) out : null;
+        }
+
+        void setDestination(InetSocketAddress destination) {
+            if (channelStream != null) {
+                channelStream.setDestination(destination);
+            } else {
+                socketStream.setDestination(destination);
+            }
+        }
+
+        /**
+         * Waits for the send in progress, if any, and stops the lane being used
+         *
+         * @param closeStream Whether to close the output stream as well
+         */
+        void closeWhenFree(boolean closeStream) {
+            lock.lock();
+            try {
+                closed = true;
+                if (closeStream) {
+                    close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            if (socketStream != null) {
+                socketStream.closeSocket();
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Owns the output stream while the appender is in async mode. Logging threads lay their messages out and queue
+     * the bytes; this thread takes them off the queue, compresses them if the encoder is a CompressionEncoder, and sends
+     * them.
+     */
+    private final class AsyncSender extends Thread implements GelfRingBuffer.Consumer {
+
+        private final GelfRingBuffer queue;
+        private final GelfLayout<ILoggingEvent> layout;
+        private final CompressionEncoder<?> compressor;
+        private final OutputStream out;
+        private final QueueFullPolicy policy;
+        private final int dropThresholdLevel;
+
+        private volatile boolean running = true;
+        // Set while the sender is about to park, so producers know to wake it up
+        private volatile boolean idle = false;
+        private volatile long drainDeadline;
+
+        AsyncSender(GelfLayout<ILoggingEvent> layout, OutputStream out) {
+            super("logback-gelf-udp-sender-" + name);
+            setDaemon(true);
+            this.queue = new GelfRingBuffer(queueSize, queueMaxBytes);
+            this.layout = layout;
+            this.compressor = encoder instanceof CompressionEncoder ? (CompressionEncoder<?>) encoder : null;
+            this.out = out;
+            this.policy = queueFullPolicy;
+            this.dropThresholdLevel = dropThreshold.toInt();
+        }
+
+        /**
+         * Called on the logging thread
+         */
+        void enqueue(ILoggingEvent event) {
+            long start = System.nanoTime();
+            GelfJsonWriter json = layout.write(event);
+            metrics.laidOut(json.size(), System.nanoTime() - start);
+            if (offer(json, event.getLevel().toInt(), routingKey(event))) {
+                if (idle) {
+                    LockSupport.unpark(this);
+                }
+            } else {
+                messagesDropped(1, GelfMetrics.DropReason.QUEUE_FULL);
+            }
+        }
+
+        private boolean offer(GelfJsonWriter json, int level, int key) {
+            if (queue.offer(json.buffer(), json.size(), level, key)) {
+                return true;
+            }
+            switch (policy) {
+                case DROP_NEWEST:
+                    return false;
+                case DROP_OLDEST:
+                    for (int i = 0; i <= queue.capacity(); i++) {
+                        if (queue.poll(null)) {
+                            messagesDropped(1, GelfMetrics.DropReason.QUEUE_FULL);
+                        }
+                        if (queue.offer(json.buffer(), json.size(), level, key)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                case DROP_BELOW_LEVEL:
+                    return level >= dropThresholdLevel && offerBlocking(json, level, key);
+                default:
+                    return offerBlocking(json, level, key);
+            }
+        }
+
+        /**
+         * Waits for room in the queue, waking the sender up in case it missed the messages already queued
+         *
+         * @return false if the appender stopped first
+         */
+        private boolean offerBlocking(GelfJsonWriter json, int level, int key) {
+            while (running) {
+                LockSupport.unpark(this);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                if (queue.offer(json.buffer(), json.size(), level, key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (queue.poll(this)) {
+                    if (!running && System.nanoTime() - drainDeadline >= 0) {
+                        break;
+                    }
+                } else if (!running) {
+                    break;
+                } else {
+                    idle = true;
+                    if (queue.isEmpty() && running) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    idle = false;
+                }
+            }
+        }
+
+        public void consume(byte[] message, int length, int level, int key) {
+            try {
+                setDestination(key);
+                send(message, length, compressor, out);
+            } catch (IOException e) {
+                metrics.sendFailed();
+                addError("IO Exception in UDP output stream", e);
+            } catch (RuntimeException e) {
+                metrics.sendFailed();
+                addError("Could not send message", e);
+            }
+        }
+
+        /**
+         * Stops accepting messages and waits up to timeoutMillis for the queue to drain. Anything left is dropped.
+         */
+        void shutdown(long timeoutMillis) {
+            drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join(Math.max(1, timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long discarded = 0;
+            while (queue.poll(null)) {
+                discarded++;
+            }
+            if (discarded > 0) {
+                addWarn("Dropped " + discarded + " queued messages from appender " + name + " after waiting "
+                        + timeoutMillis + "ms for them to be sent");
+                droppedMessages.addAndGet(discarded);
+                metrics.dropped(GelfMetrics.DropReason.STOP_TIMEOUT, discarded);
+            }
+        }
+    }
 }
@@ -14,14 +14,18 @@ public class InternetUtils {
     /**
      * Retrieves the local host's hostname. If found, the fully qualified domain name (FQDN) will be returned,
      * otherwise it will fallback to the unqualified domain name. E.g prefer guerrero.moocar.me over guerrero.
+     *
+     * This does a reverse DNS lookup every time, which can take seconds where reverse DNS is broken. The layouts use
+     * the name LocalHostName looks up once per JVM instead.
      */
     public static String getLocalHostName() throws SocketException, UnknownHostException {
         try {
-            final String canonicalHostName = InetAddress.getLocalHost().getCanonicalHostName();
+            final InetAddress localHost = InetAddress.getLocalHost();
+            final String canonicalHostName = localHost.getCanonicalHostName();
             if (isFQDN(canonicalHostName)) {
                 return canonicalHostName;
             } else {
-                return InetAddress.getLocalHost().getHostName();
+                return localHost.getHostName();
             }
         } catch (UnknownHostException e) {
             NetworkInterface networkInterface = NetworkInterface.getNetworkInterfaces().nextElement();
@@ -0,0 +1,112 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Reads the key value pairs that SLF4J 2's fluent API attaches to an event, as in
+ * logger.atInfo().addKeyValue("latency_ms", elapsed).log("Handled request"). ILoggingEvent only has
+ * getKeyValuePairs() from logback 1.3, so it is looked up reflectively, once, and so are the pairs' key and value
+ * fields. With an older logback, events have no pairs.
+ */
+final class KeyValuePairs {
+
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    // ILoggingEvent.getKeyValuePairs(), or null if this logback doesn't have it
+    private static final Method GET_KEY_VALUE_PAIRS = getKeyValuePairs();
+    private static final Accessor NOT_SUPPORTED = new Accessor(null, null, null);
+    // The accessor of the last class of pair seen. Every pair is normally an org.slf4j.event.KeyValuePair
+    private static volatile Accessor pairAccessor = NOT_SUPPORTED;
+
+    private KeyValuePairs() {
+    }
+
+    /**
+     * @return the event's key value pairs, or null if it has none
+     */
+    static List<?> of(ILoggingEvent event) {
+        if (GET_KEY_VALUE_PAIRS == null) {
+            return null;
+        }
+        try {
+            Object pairs = GET_KEY_VALUE_PAIRS.invoke(event, NO_ARGUMENTS);
+            return pairs instanceof List && !((List<?>) pairs).isEmpty() ? (List<?>) pairs : null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the pair's key, or null if it isn't a key value pair
+     */
+    static String key(Object pair) {
+        Accessor accessor = pairAccessor(pair);
+        try {
+            return accessor.key == null ? null : (String) accessor.key.get(pair);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static Object value(Object pair) {
+        Accessor accessor = pairAccessor(pair);
+        try {
+            return accessor.value == null ? null : accessor.value.get(pair);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static Accessor pairAccessor(Object pair) {
+        if (pair == null) {
+            return NOT_SUPPORTED;
+        }
+        Accessor accessor = pairAccessor;
+        if (accessor.type == pair.getClass()) {
+            return accessor;
+        }
+        try {
+            Field key = pair.getClass().getField("key");
+            Field value = pair.getClass().getField("value");
+            accessor = key.getType() == String.class ? new Accessor(pair.getClass(), key, value)
+                    : new Accessor(pair.getClass(), null, null);
+        } catch (NoSuchFieldException e) {
+            accessor = new Accessor(pair.getClass(), null, null);
+        }
+        pairAccessor = accessor;
+        return accessor;
+    }
+
+    private static Method getKeyValuePairs() {
+        try {
+            Method method = ILoggingEvent.class.getMethod("getKeyValuePairs");
+            return List.class.isAssignableFrom(method.getReturnType()) ? method : null;
+        } catch (NoSuchMethodException e) {
+            // An older logback
+            return null;
+        }
+    }
+
+    /**
+     * The key and value fields of a class of pair. Both null if it doesn't have them
+     */
+    private static final class Accessor {
+
+        private final Class<?> type;
+        private final Field key;
+        private final Field value;
+
+        Accessor(Class<?> type, Field key, Field value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
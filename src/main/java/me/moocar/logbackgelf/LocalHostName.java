@@ -0,0 +1,188 @@
+package me.moocar.logbackgelf;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The name of the local host, looked up once per JVM and shared by every layout, so that a slow or broken reverse DNS
+ * lookup is paid for once rather than each time logback is configured.
+ *
+ * The name comes from the first of these that works:
+ * <ol>
+ * <li>The logbackgelf.host system property, or the LOGBACKGELF_HOST environment variable</li>
+ * <li>{@link InternetUtils#getLocalHostName()}, which does the DNS lookups, on a background thread</li>
+ * <li>The address of the first network interface that isn't a loopback</li>
+ * </ol>
+ * The first caller waits up to {@link #LOOKUP_WAIT_MILLIS} for the lookup. If it isn't done by then, callers get the
+ * interface address until it is, and can ask to be told when it finishes.
+ */
+final class LocalHostName {
+
+    static final String PROPERTY = "logbackgelf.host";
+    static final String ENVIRONMENT_VARIABLE = "LOGBACKGELF_HOST";
+    static final long LOOKUP_WAIT_MILLIS = 100;
+
+    private static final String UNKNOWN = "UNKNOWN";
+
+    private static final Object lock = new Object();
+    // Set once the lookup has finished, successfully or not
+    private static volatile String name;
+    // Guarded by lock. Null until the lookup is started
+    private static CountDownLatch lookup;
+    private static boolean waited = false;
+    private static String fallback;
+    private static List<Runnable> listeners = new ArrayList<Runnable>();
+
+    private LocalHostName() {
+    }
+
+    /**
+     * @return the local host name, or if the lookup is still going, the interface address to use until it's done
+     */
+    static String get() {
+        String name = LocalHostName.name;
+        if (name != null) {
+            return name;
+        }
+        CountDownLatch lookup;
+        boolean wait;
+        synchronized (lock) {
+            lookup = startLookup();
+            wait = !waited;
+            waited = true;
+        }
+        if (wait) {
+            try {
+                lookup.await(LOOKUP_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        name = LocalHostName.name;
+        if (name != null) {
+            return name;
+        }
+        synchronized (lock) {
+            if (fallback == null) {
+                fallback = interfaceAddress();
+            }
+            return fallback;
+        }
+    }
+
+    /**
+     * Runs listener on the lookup thread once the lookup finishes, or does nothing if it already has. Whatever get()
+     * returns from then on is the final name.
+     */
+    static void whenResolved(Runnable listener) {
+        synchronized (lock) {
+            if (name == null) {
+                startLookup();
+                listeners.add(listener);
+            }
+        }
+    }
+
+    private static CountDownLatch startLookup() {
+        if (lookup == null) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            lookup = latch;
+            String configured = configured();
+            if (configured != null) {
+                finish(latch, configured);
+            } else {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        finish(latch, lookUp());
+                    }
+                }, "logback-gelf-hostname");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        return lookup;
+    }
+
+    private static void finish(CountDownLatch latch, String result) {
+        List<Runnable> listeners;
+        synchronized (lock) {
+            if (lookup != latch) {
+                // Reset while looking up
+                return;
+            }
+            name = result;
+            listeners = LocalHostName.listeners;
+            LocalHostName.listeners = new ArrayList<Runnable>();
+            lookup.countDown();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static String configured() {
+        String configured = System.getProperty(PROPERTY);
+        if (configured == null || configured.trim().isEmpty()) {
+            configured = System.getenv(ENVIRONMENT_VARIABLE);
+        }
+        return configured == null || configured.trim().isEmpty() ? null : configured.trim();
+    }
+
+    private static String lookUp() {
+        try {
+            return InternetUtils.getLocalHostName();
+        } catch (SocketException e) {
+            return interfaceAddress();
+        } catch (UnknownHostException e) {
+            return interfaceAddress();
+        } catch (RuntimeException e) {
+            return interfaceAddress();
+        }
+    }
+
+    /**
+     * @return the first address that isn't link-local of the first network interface that is up and isn't a loopback.
+     * Doesn't use DNS
+     */
+    private static String interfaceAddress() {
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) {
+                    continue;
+                }
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    InetAddress address = addresses.nextElement();
+                    if (!address.isLinkLocalAddress()) {
+                        return address.getHostAddress();
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Falls through
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Forgets the name, so the next call looks it up again. For tests
+     */
+    static void reset() {
+        synchronized (lock) {
+            name = null;
+            lookup = null;
+            waited = false;
+            fallback = null;
+            listeners = new ArrayList<Runnable>();
+        }
+    }
+}
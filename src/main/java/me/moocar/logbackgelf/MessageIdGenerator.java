@@ -0,0 +1,15 @@
+package me.moocar.logbackgelf;
+
+/**
+ * Creates the 8 byte message IDs that tie the chunks of a GELF message together. Graylog reassembles chunks by
+ * message ID, so IDs must not repeat, at least not within the few seconds it waits for a message's chunks.
+ *
+ * Implementations must be thread safe, since they may be shared between appenders and sender threads.
+ */
+public interface MessageIdGenerator {
+
+    /**
+     * @return the next message ID, as 8 bytes in big endian order
+     */
+    long nextId();
+}
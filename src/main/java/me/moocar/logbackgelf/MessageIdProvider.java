@@ -5,14 +5,23 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 /**
- * Responsible for creating a unique Gelf messageId
+ * Responsible for creating a unique Gelf messageId by hashing the hostname and the current time. This was the only
+ * strategy before MessageIdGenerator was introduced, and is kept for anyone that relies on it. It is slower than
+ * CounterMessageIdGenerator and two threads calling it in the same nanosecond get the same ID.
  */
-public class MessageIdProvider {
+public class MessageIdProvider implements MessageIdGenerator {
 
     private final int messageIdLength;
     private final MessageDigest messageDigest;
     private final String hostname;
 
+    /**
+     * Uses the local host name, looked up once per JVM. Allows the provider to be configured as an appender's messageIdGenerator
+     */
+    public MessageIdProvider() throws NoSuchAlgorithmException {
+        this(LocalHostName.get());
+    }
+
     public MessageIdProvider(String hostname) throws NoSuchAlgorithmException {
         this(8, MessageDigest.getInstance("MD5"), hostname);
 
@@ -36,8 +45,23 @@ public class MessageIdProvider {
         // selecting the first x bytes of the result
         String timestamp = String.valueOf(System.nanoTime());
 
-        byte[] digestString = (hostname + timestamp).getBytes();
+        byte[] digestString = (hostname + timestamp).getBytes(GelfJsonWriter.UTF_8);
 
-        return Arrays.copyOf(messageDigest.digest(digestString), messageIdLength);
+        // MessageDigest is not thread safe
+        synchronized (messageDigest) {
+            return Arrays.copyOf(messageDigest.digest(digestString), messageIdLength);
+        }
+    }
+
+    /**
+     * @return the first 8 bytes of {@link #get()}, padded with zeros if the configured ID length is shorter
+     */
+    public long nextId() {
+        byte[] id = get();
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (i < id.length ? id[i] & 0xff : 0);
+        }
+        return result;
     }
 }
@@ -0,0 +1,28 @@
+package me.moocar.logbackgelf;
+
+/**
+ * What an asynchronous appender does with a new message when its queue is full
+ */
+public enum QueueFullPolicy {
+
+    /**
+     * Wait for the sender to make room. Logging threads are slowed down to the speed of the sender.
+     */
+    BLOCK,
+
+    /**
+     * Discard the new message
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discard the oldest queued messages until the new message fits
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new message if its level is below the appender's dropThreshold, otherwise wait for room the same way
+     * as BLOCK
+     */
+    DROP_BELOW_LEVEL
+}
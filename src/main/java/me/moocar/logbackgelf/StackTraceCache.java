@@ -0,0 +1,284 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import ch.qos.logback.core.Layout;
+
+/**
+ * A bounded cache of rendered, JSON escaped stack traces, so that an exception that is logged over and over is only
+ * rendered and escaped once. Each throwable is rendered for full_message, short_message, or both.
+ *
+ * Throwables are looked up by {@link #fingerprint(IThrowableProxy)}, a hash of the class names and stack frames of the
+ * whole chain, combined with the hashes of their messages. Entries keep the messages they were rendered with and are
+ * only used if they match exactly, so throwables with the same stack but different messages get entries of their own.
+ *
+ * The cache is split into stripes, each a small array of entries guarded by its own lock, so concurrent logging
+ * threads rarely contend. A full stripe evicts its least recently used entry. Lookups don't allocate.
+ */
+final class StackTraceCache {
+
+    // Each stripe is scanned linearly, so is kept small
+    private static final int MAX_STRIPE_SIZE = 16;
+
+    private final Layout<ILoggingEvent> fullLayout;
+    private final Layout<ILoggingEvent> shortLayout;
+    private final Stripe[] stripes;
+
+    /**
+     * @param fullLayout Renders the throwable of an event for full_message, and nothing else. Null if not needed
+     * @param shortLayout Renders the throwable of an event for short_message. Null if not needed
+     */
+    StackTraceCache(Layout<ILoggingEvent> fullLayout, Layout<ILoggingEvent> shortLayout, int maxEntries) {
+        this.fullLayout = fullLayout;
+        this.shortLayout = shortLayout;
+        int stripeCount = 1;
+        while (stripeCount * MAX_STRIPE_SIZE < maxEntries) {
+            stripeCount <<= 1;
+        }
+        this.stripes = new Stripe[stripeCount];
+        int stripeSize = Math.max(1, (maxEntries + stripeCount - 1) / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(stripeSize);
+        }
+    }
+
+    /**
+     * @return the renderings of the event's throwable. The event must have a throwable
+     */
+    Entry get(ILoggingEvent event) {
+        IThrowableProxy proxy = event.getThrowableProxy();
+        long key = finish(mixMessages(fingerprint(proxy), proxy));
+        Stripe stripe = stripes[(int) (key ^ (key >>> 32)) & (stripes.length - 1)];
+        Entry entry = stripe.get(key, proxy);
+        if (entry == null) {
+            // Rendered outside the lock, as it's slow. Threads that miss at the same time both render
+            entry = new Entry(key, messages(proxy), fullLayout == null ? null : escape(fullLayout.doLayout(event)),
+                    shortLayout == null ? null : escape(shortLayout.doLayout(event)));
+            stripe.put(entry);
+        }
+        return entry;
+    }
+
+    private static byte[] escape(String text) {
+        GelfJsonWriter writer = new GelfJsonWriter(text.length() + 16);
+        writer.reset();
+        writer.escaped(text, 0, text.length());
+        return writer.toByteArray();
+    }
+
+    long hits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    long misses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    long evictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return a hash of the class names, stack frames and omitted frame counts of the throwable, its causes and its
+     * suppressed throwables. Messages aren't included, so the same failure gets the same fingerprint whatever the
+     * details in its message
+     */
+    static long fingerprint(IThrowableProxy proxy) {
+        return finish(mixChain(0x9e3779b97f4a7c15L, proxy));
+    }
+
+    private static long mixChain(long hash, IThrowableProxy proxy) {
+        hash = mix(hash, proxy.getClassName().hashCode());
+        StackTraceElementProxy[] stack = proxy.getStackTraceElementProxyArray();
+        if (stack != null) {
+            for (StackTraceElementProxy step : stack) {
+                hash = mix(hash, step.getStackTraceElement().hashCode());
+            }
+        }
+        hash = mix(hash, proxy.getCommonFrames());
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy each : suppressed) {
+                // Marks where each nested throwable starts, so the same frames split differently hash differently
+                hash = mix(hash, 's');
+                hash = mixChain(hash, each);
+            }
+        }
+        if (proxy.getCause() != null) {
+            hash = mix(hash, 'c');
+            hash = mixChain(hash, proxy.getCause());
+        }
+        return hash;
+    }
+
+    private static long mixMessages(long hash, IThrowableProxy proxy) {
+        String message = proxy.getMessage();
+        hash = mix(hash, message == null ? 0 : message.hashCode() + 1);
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy each : suppressed) {
+                hash = mixMessages(hash, each);
+            }
+        }
+        if (proxy.getCause() != null) {
+            hash = mixMessages(hash, proxy.getCause());
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, int value) {
+        hash = (hash ^ (value & 0xffffffffL)) * 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private static long finish(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * @return the number of throwables in the chain of proxy
+     */
+    private static int count(IThrowableProxy proxy) {
+        int count = 1;
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy each : suppressed) {
+                count += count(each);
+            }
+        }
+        return proxy.getCause() == null ? count : count + count(proxy.getCause());
+    }
+
+    /**
+     * @return the messages of the chain of proxy, in the order mixMessages visits them
+     */
+    private static String[] messages(IThrowableProxy proxy) {
+        String[] messages = new String[count(proxy)];
+        collectMessages(proxy, messages, 0);
+        return messages;
+    }
+
+    private static int collectMessages(IThrowableProxy proxy, String[] messages, int index) {
+        messages[index++] = proxy.getMessage();
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy each : suppressed) {
+                index = collectMessages(each, messages, index);
+            }
+        }
+        return proxy.getCause() == null ? index : collectMessages(proxy.getCause(), messages, index);
+    }
+
+    /**
+     * @return the index after the last message compared, or -1 if a message didn't match
+     */
+    private static int matchMessages(IThrowableProxy proxy, String[] messages, int index) {
+        if (index >= messages.length || !equal(proxy.getMessage(), messages[index])) {
+            return -1;
+        }
+        index++;
+        IThrowableProxy[] suppressed = proxy.getSuppressed();
+        if (suppressed != null) {
+            for (IThrowableProxy each : suppressed) {
+                index = matchMessages(each, messages, index);
+                if (index < 0) {
+                    return -1;
+                }
+            }
+        }
+        return proxy.getCause() == null ? index : matchMessages(proxy.getCause(), messages, index);
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * A throwable's renderings, escaped and UTF-8 encoded, and the messages they were rendered with
+     */
+    static final class Entry {
+
+        private final long key;
+        private final String[] messages;
+        // Each null if the cache has no layout for it
+        final byte[] full;
+        final byte[] brief;
+
+        Entry(long key, String[] messages, byte[] full, byte[] brief) {
+            this.key = key;
+            this.messages = messages;
+            this.full = full;
+            this.brief = brief;
+        }
+    }
+
+    private static final class Stripe {
+
+        private final Entry[] entries;
+        // When each entry was last used, by this stripe's clock
+        private final long[] lastUsed;
+        private long clock = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+
+        Stripe(int size) {
+            this.entries = new Entry[size];
+            this.lastUsed = new long[size];
+        }
+
+        synchronized Entry get(long key, IThrowableProxy proxy) {
+            for (int i = 0; i < entries.length; i++) {
+                Entry entry = entries[i];
+                if (entry != null && entry.key == key &&
+                        matchMessages(proxy, entry.messages, 0) == entry.messages.length) {
+                    lastUsed[i] = ++clock;
+                    hits++;
+                    return entry;
+                }
+            }
+            misses++;
+            return null;
+        }
+
+        synchronized void put(Entry entry) {
+            int slot = 0;
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] == null || entries[i].key == entry.key) {
+                    // An empty slot, or a colliding entry that is replaced
+                    slot = i;
+                    break;
+                }
+                if (lastUsed[i] < lastUsed[slot]) {
+                    slot = i;
+                }
+            }
+            if (entries[slot] != null && entries[slot].key != entry.key) {
+                evictions++;
+            }
+            entries[slot] = entry;
+            lastUsed[slot] = ++clock;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package me.moocar.logbackgelf;
+
+/**
+ * A log message argument that GelfLayout also writes as an additional field, typed, without going through the MDC.
+ * Numbers are written as JSON numbers and booleans as booleans; anything else as a string.
+ *
+ * <pre>
+ * import static me.moocar.logbackgelf.StructuredArgument.field;
+ *
+ * logger.info("Handled {} in {}ms", field("path", path), field("latency_ms", elapsed));
+ * </pre>
+ *
+ * The message is formatted with each argument's value, as if it had been passed on its own, and the GELF message gets
+ * "_path" and "_latency_ms" fields. A long isn't boxed, or turned into a String unless the message shows it.
+ */
+public final class StructuredArgument {
+
+    enum Type {
+        LONG, DOUBLE, BOOLEAN, OBJECT
+    }
+
+    final String key;
+    final Type type;
+    final long longValue;
+    final double doubleValue;
+    // For BOOLEAN and OBJECT
+    final Object value;
+
+    private StructuredArgument(String key, Type type, long longValue, double doubleValue, Object value) {
+        if (key == null) {
+            throw new IllegalArgumentException("A structured argument needs a key");
+        }
+        this.key = key;
+        this.type = type;
+        this.longValue = longValue;
+        this.doubleValue = doubleValue;
+        this.value = value;
+    }
+
+    /**
+     * @param key The field is named key with an underscore in front
+     */
+    public static StructuredArgument field(String key, long value) {
+        return new StructuredArgument(key, Type.LONG, value, 0, null);
+    }
+
+    public static StructuredArgument field(String key, double value) {
+        return new StructuredArgument(key, Type.DOUBLE, 0, value, null);
+    }
+
+    public static StructuredArgument field(String key, boolean value) {
+        return new StructuredArgument(key, Type.BOOLEAN, 0, 0, value ? Boolean.TRUE : Boolean.FALSE);
+    }
+
+    /**
+     * @param value Written as a number if it's a Number, a boolean if it's a Boolean, and a string otherwise. A null
+     *              value isn't written
+     */
+    public static StructuredArgument field(String key, Object value) {
+        return new StructuredArgument(key, Type.OBJECT, 0, 0, value);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the value, boxed if it's a primitive
+     */
+    public Object getValue() {
+        switch (type) {
+            case LONG:
+                return longValue;
+            case DOUBLE:
+                return doubleValue;
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @return the value, as the message shows it
+     */
+    @Override
+    public String toString() {
+        switch (type) {
+            case LONG:
+                return Long.toString(longValue);
+            case DOUBLE:
+                return Double.toString(doubleValue);
+            default:
+                return String.valueOf(value);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * The summary of a burst of identical events that a {@link GelfThrottle} collapsed. It looks like the first event of
+ * the burst, timestamped with the last one, and GelfLayout adds "_suppressed_count", "_first_timestamp" and
+ * "_last_timestamp" fields to it.
+ */
+final class SuppressedEvents extends ForwardingLoggingEvent {
+
+    private final long suppressedCount;
+    private final long lastTimeStamp;
+
+    /**
+     * @param first The event that was sent when the burst started
+     * @param suppressedCount The number of events after it that weren't sent
+     * @param lastTimeStamp The time of the last of them
+     */
+    SuppressedEvents(ILoggingEvent first, long suppressedCount, long lastTimeStamp) {
+        super(first);
+        this.suppressedCount = suppressedCount;
+        this.lastTimeStamp = lastTimeStamp;
+    }
+
+    long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    long getFirstTimeStamp() {
+        return event.getTimeStamp();
+    }
+
+    @Override
+    public long getTimeStamp() {
+        return lastTimeStamp;
+    }
+}
@@ -0,0 +1,22 @@
+package me.moocar.logbackgelf;
+
+/**
+ * What a {@link GelfThrottle} keeps a separate rate limit for
+ */
+public enum ThrottleKey {
+
+    /**
+     * Each logger gets its own rate
+     */
+    LOGGER,
+
+    /**
+     * Each level gets its own rate, so a flood of DEBUG messages can't use up the rate of ERROR messages
+     */
+    LEVEL,
+
+    /**
+     * Each marker gets its own rate. Messages without a marker share one
+     */
+    MARKER
+}
@@ -0,0 +1,20 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+
+/**
+ * A view of an event without its throwable, which GelfLayout sends without a full_message. Used by
+ * GelfOverloadController to cut the size and cost of low level messages while an appender is overloaded.
+ */
+final class TrimmedEvent extends ForwardingLoggingEvent {
+
+    TrimmedEvent(ILoggingEvent event) {
+        super(event);
+    }
+
+    @Override
+    public IThrowableProxy getThrowableProxy() {
+        return null;
+    }
+}
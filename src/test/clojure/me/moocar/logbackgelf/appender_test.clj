@@ -61,5 +61,5 @@
                    (async/take 2)
                    (async/into [])
                    <!!
-                   (map :full_message)))
+                   (map :short_message)))
            "msg 2 should not succeed, but msg 3 should work again")))))
@@ -0,0 +1,168 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionEncoderTest {
+
+	private LoggerContext context;
+	private ByteArrayOutputStream out;
+
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		out = new ByteArrayOutputStream();
+	}
+
+	private CompressionEncoder<ILoggingEvent> newEncoder(CompressionFormat format) throws IOException {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		CompressionEncoder<ILoggingEvent> encoder = new CompressionEncoder<ILoggingEvent>();
+		encoder.setContext(context);
+		encoder.setLayout(layout);
+		encoder.setFormat(format);
+		encoder.init(out);
+		return encoder;
+	}
+
+	private LoggingEvent newEvent(String message) {
+		LoggingEvent event = new LoggingEvent("fqcn", context.getLogger("compression"), Level.INFO, message, null,
+				null);
+		event.setTimeStamp(1453161600123L);
+		return event;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			bytes.write(buf, 0, read);
+		}
+		return new String(bytes.toByteArray(), GelfJsonWriter.UTF_8);
+	}
+
+	private String expectedJson(String message) {
+		return "{\"version\":\"1.1\",\"host\":\"Test\",\"short_message\":\"" + message + "\"," +
+				"\"timestamp\":1453161600.123,\"level\":6}";
+	}
+
+	@Test
+	public void testGzipIsReadableByGZIPInputStream() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.start();
+		// Several messages in a row, so pooled Deflaters get reused
+		for (int i = 0; i < 3; i++) {
+			out.reset();
+			encoder.doEncode(newEvent("gzipped " + i));
+			Assert.assertEquals(expectedJson("gzipped " + i),
+					read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+		}
+		encoder.stop();
+	}
+
+	@Test
+	public void testZlibIsReadableByInflaterInputStream() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.ZLIB);
+		encoder.setLevel(9);
+		encoder.start();
+		encoder.doEncode(newEvent("zlib"));
+		byte[] bytes = out.toByteArray();
+		Assert.assertEquals(0x78, bytes[0]);
+		Assert.assertEquals(expectedJson("zlib"), read(new InflaterInputStream(new ByteArrayInputStream(bytes))));
+		encoder.stop();
+	}
+
+	@Test
+	public void testLargeMessageGrowsOutputBuffer() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.start();
+		// Random letters don't compress much, so the output is well past the initial buffer size
+		Random random = new Random(42);
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			message.append((char) ('a' + random.nextInt(26)));
+		}
+		encoder.doEncode(newEvent(message.toString()));
+		String json = read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+		Assert.assertTrue(json.contains("\"full_message\":\"" + message + "\""));
+		encoder.stop();
+	}
+
+	@Test
+	public void testSmallMessagesAreNotCompressed() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.setMinCompressSize(1000);
+		encoder.start();
+		encoder.doEncode(newEvent("small"));
+		Assert.assertEquals(expectedJson("small"), new String(out.toByteArray(), GelfJsonWriter.UTF_8));
+		encoder.stop();
+	}
+
+	@Test
+	public void testOnlyCompressesWhenItSavesPackets() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.setMaxPacketSize(512);
+		encoder.start();
+
+		// Fits in one packet as is
+		encoder.doEncode(newEvent("one packet"));
+		Assert.assertEquals('{', out.toByteArray()[0]);
+
+		// Compresses from several packets into one
+		out.reset();
+		StringBuilder repetitive = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			repetitive.append("again ");
+		}
+		encoder.doEncode(newEvent(repetitive.toString()));
+		Assert.assertEquals(0x1f, out.toByteArray()[0]);
+		encoder.stop();
+	}
+
+	@Test
+	public void testInvalidLevelFailsStart() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.setLevel(10);
+		encoder.start();
+		Assert.assertFalse(encoder.isStarted());
+	}
+
+	@Test
+	public void testReportsWhetherItIsStarted() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		Assert.assertFalse(encoder.isStarted());
+		encoder.start();
+		// Deflaters are only pooled while started
+		Assert.assertTrue(encoder.isStarted());
+		encoder.stop();
+		Assert.assertFalse(encoder.isStarted());
+	}
+
+	@Test
+	public void testReusesDeflaters() throws IOException {
+		CompressionEncoder<ILoggingEvent> encoder = newEncoder(CompressionFormat.GZIP);
+		encoder.start();
+		CompressionEncoder.PooledDeflater deflater = encoder.borrow();
+		encoder.release(deflater);
+		encoder.doEncode(newEvent("pooled"));
+		encoder.doEncode(newEvent("pooled again"));
+		Assert.assertSame(deflater, encoder.borrow());
+		encoder.stop();
+	}
+}
@@ -0,0 +1,68 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class DirectBufferPoolTest {
+
+	@Test
+	public void testReusesBuffersOfTheSameSizeClass() {
+		DirectBufferPool pool = new DirectBufferPool(2, Long.MAX_VALUE);
+		ByteBuffer buffer = pool.acquire(3000);
+		Assert.assertTrue(buffer.isDirect());
+		Assert.assertEquals(4096, buffer.capacity());
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		Assert.assertEquals(4096, pool.retainedBytes());
+
+		ByteBuffer again = pool.acquire(4096);
+		Assert.assertSame(buffer, again);
+		Assert.assertEquals(0, again.position());
+		Assert.assertEquals(0, pool.retainedBytes());
+	}
+
+	@Test
+	public void testKeepsOneBufferOfTheLargeSizeClasses() {
+		DirectBufferPool pool = new DirectBufferPool(8, Long.MAX_VALUE);
+		ByteBuffer first = pool.acquire(2 * 1024 * 1024);
+		ByteBuffer second = pool.acquire(2 * 1024 * 1024);
+		pool.release(first);
+		pool.release(second);
+		Assert.assertEquals(2 * 1024 * 1024, pool.retainedBytes());
+		Assert.assertSame(first, pool.acquire(2 * 1024 * 1024));
+		Assert.assertNotSame(second, pool.acquire(2 * 1024 * 1024));
+	}
+
+	@Test
+	public void testCapsTheBytesRetained() {
+		DirectBufferPool pool = new DirectBufferPool(8, 3 * 4096);
+		ByteBuffer[] buffers = new ByteBuffer[5];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire(4096);
+		}
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		Assert.assertEquals(3 * 4096, pool.retainedBytes());
+		// A bigger size class doesn't fit either
+		pool.release(ByteBuffer.allocateDirect(8192));
+		Assert.assertEquals(3 * 4096, pool.retainedBytes());
+
+		for (int i = 0; i < 3; i++) {
+			Assert.assertSame(buffers[i], pool.acquire(4096));
+		}
+		Assert.assertEquals(0, pool.retainedBytes());
+	}
+
+	@Test
+	public void testDoesntPoolBuffersOutsideTheSizeClasses() {
+		DirectBufferPool pool = new DirectBufferPool(8, Long.MAX_VALUE);
+		pool.release(ByteBuffer.allocateDirect(5000));
+		ByteBuffer huge = pool.acquire(32 * 1024 * 1024);
+		Assert.assertEquals(32 * 1024 * 1024, huge.capacity());
+		pool.release(huge);
+		Assert.assertEquals(0, pool.retainedBytes());
+	}
+}
@@ -0,0 +1,68 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+public class FieldConverterTest {
+
+	private String convert(String type, String value) {
+		GelfJsonWriter writer = new GelfJsonWriter(16);
+		writer.reset();
+		if (!FieldConverter.forType(type).write(value, writer)) {
+			return null;
+		}
+		return writer.toString();
+	}
+
+	@Test
+	public void testWholeNumbers() {
+		Assert.assertEquals("123", convert("int", "123"));
+		Assert.assertEquals("-7", convert("Integer", "-007"));
+		Assert.assertEquals("5", convert("int", "+5"));
+		Assert.assertEquals("2147483647", convert("int", "2147483647"));
+		Assert.assertNull(convert("int", "2147483648"));
+		Assert.assertEquals("-9223372036854775808", convert("long", "-9223372036854775808"));
+		Assert.assertNull(convert("long", "9223372036854775808"));
+		Assert.assertNull(convert("long", ""));
+		Assert.assertNull(convert("long", "-"));
+		Assert.assertNull(convert("long", "12a"));
+	}
+
+	@Test
+	public void testFloatingPoint() {
+		Assert.assertEquals("0.5", convert("double", "0.5"));
+		Assert.assertEquals("-1.5E10", convert("Double", "-1.5E10"));
+		Assert.assertEquals("1.0", convert("double", "1."));
+		Assert.assertEquals("\"Infinity\"", convert("double", "1e400"));
+		Assert.assertEquals("0.1", convert("float", "0.1"));
+		Assert.assertNull(convert("double", "abc"));
+	}
+
+	@Test
+	public void testBoolean() {
+		Assert.assertEquals("true", convert("boolean", "TRUE"));
+		Assert.assertEquals("false", convert("Boolean", "false"));
+		Assert.assertNull(convert("boolean", "yes"));
+	}
+
+	@Test
+	public void testTimestamps() throws Exception {
+		Assert.assertEquals("1453161600.000", convert("timestamp", "2016-01-19"));
+		Assert.assertEquals("1453198530.123", convert("timestamp", "2016-01-19T10:15:30.123Z"));
+		Assert.assertEquals("1453194930.123", convert("timestamp", "2016-01-19T10:15:30.123456+01:00"));
+		Assert.assertEquals("1453198500.000", convert("timestamp", "2016-01-19 10:15"));
+		Assert.assertEquals("1453234530.000", convert("timestamp", "2016-01-19T10:15:30-1000"));
+		Assert.assertNull(convert("timestamp", "2016-02-30T10:15:30Z"));
+		Assert.assertNull(convert("timestamp", "2016-01-19T25:15:30Z"));
+		Assert.assertNull(convert("timestamp", "19/01/2016"));
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		for (long millis = -86400000L * 366 * 3; millis < 86400000L * 366 * 100; millis += 86400000L * 17 + 12345) {
+			Assert.assertEquals(millis, FieldConverter.TimestampConverter.parseMillis(format.format(millis)));
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.encoder.Encoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures the heap allocated on the logging thread per event by the garbage-free (nio) UDP configuration, once it
+ * has warmed up, and fails if it goes over budget. Events are created before measuring, so only the appender's own
+ * allocations count.
+ */
+public class GelfAllocationTest {
+
+	private static final int WARMUP_EVENTS = 50000;
+	private static final int MEASURED_EVENTS = 20000;
+	// Bytes per event. Allows for logback occasionally allocating a filter chain iterator, but not a buffer or String
+	private static final double BUDGET = 64;
+
+	private LoggerContext context;
+	private DatagramSocket server;
+	private GelfUDPAppender<ILoggingEvent> appender;
+	private com.sun.management.ThreadMXBean threads;
+
+	@Before
+	public void setUp() throws IOException {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		this.threads = (com.sun.management.ThreadMXBean) threads;
+		Assume.assumeTrue(this.threads.isThreadAllocatedMemorySupported());
+		this.threads.setThreadAllocatedMemoryEnabled(true);
+		context = new LoggerContext();
+		server = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+	}
+
+	@After
+	public void tearDown() {
+		if (appender != null) {
+			appender.stop();
+		}
+		if (server != null) {
+			server.close();
+		}
+		if (context != null) {
+			context.stop();
+		}
+	}
+
+	private GelfUDPAppender<ILoggingEvent> newAppender(Encoder<ILoggingEvent> encoder, GelfLayout<ILoggingEvent> layout) {
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.setUseThreadName(true);
+		layout.setUseLoggerName(true);
+		layout.setUseCallerData(false);
+		layout.start();
+		if (encoder instanceof CompressionEncoder) {
+			((CompressionEncoder<ILoggingEvent>) encoder).setLayout(layout);
+		} else {
+			((GelfEncoder<ILoggingEvent>) encoder).setLayout(layout);
+		}
+		encoder.setContext(context);
+		encoder.start();
+		GelfUDPAppender<ILoggingEvent> appender = new GelfUDPAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setName("allocation");
+		appender.setRemoteHost("localhost");
+		appender.setPort(server.getLocalPort());
+		appender.setEncoder(encoder);
+		// DatagramSocket allocates on every send since JDK 15 (JEP 373), so only the channel is garbage-free
+		appender.setNio(true);
+		appender.setJmx(false);
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		return appender;
+	}
+
+	private GelfUDPAppender<ILoggingEvent> newAppender() {
+		return newAppender(new GelfEncoder<ILoggingEvent>(), new GelfLayout<ILoggingEvent>());
+	}
+
+	private LoggingEvent[] events(int count, String message, Map<String, String> mdc, Throwable throwable) {
+		Logger logger = context.getLogger("me.moocar.logbackgelf.Allocation");
+		LoggingEvent[] events = new LoggingEvent[count];
+		for (int i = 0; i < count; i++) {
+			LoggingEvent event = new LoggingEvent("me.moocar.logbackgelf.Logger", logger, Level.INFO, message,
+					throwable, null);
+			if (mdc != null) {
+				event.setMDCPropertyMap(mdc);
+			}
+			// Formats the message and captures the thread name up front, so their strings aren't counted
+			event.prepareForDeferredProcessing();
+			events[i] = event;
+		}
+		return events;
+	}
+
+	/**
+	 * @return the bytes allocated per event while appending the events once warmed up
+	 */
+	private double bytesPerEvent(GelfUDPAppender<ILoggingEvent> appender, String message, Map<String, String> mdc,
+	                             Throwable throwable) {
+		LoggingEvent[] warmup = events(WARMUP_EVENTS, message, mdc, throwable);
+		for (LoggingEvent event : warmup) {
+			appender.doAppend(event);
+		}
+		warmup = null;
+		LoggingEvent[] events = events(MEASURED_EVENTS, message, mdc, throwable);
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (LoggingEvent event : events) {
+			appender.doAppend(event);
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		return (double) allocated / MEASURED_EVENTS;
+	}
+
+	private void assertWithinBudget(String description, double bytesPerEvent) {
+		Assert.assertTrue(description + " allocated " + bytesPerEvent + " bytes per event, over the budget of " + BUDGET,
+				bytesPerEvent <= BUDGET);
+	}
+
+	private static Map<String, String> mdc() {
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("requestId", "b6b8c3a0-5c1e-4f0e-9d8a-0a3b2c1d4e5f");
+		mdc.put("userId", "12345");
+		return mdc;
+	}
+
+	@Test
+	public void testPlainMessage() {
+		appender = newAppender();
+		assertWithinBudget("Plain", bytesPerEvent(appender, "A message of a typical length", null, null));
+	}
+
+	@Test
+	public void testMdc() {
+		appender = newAppender();
+		assertWithinBudget("MDC", bytesPerEvent(appender, "A message of a typical length", mdc(), null));
+	}
+
+	@Test
+	public void testException() {
+		appender = newAppender();
+		assertWithinBudget("Exception", bytesPerEvent(appender, "A message of a typical length", null,
+				new IllegalStateException("Failed")));
+	}
+
+	@Test
+	public void testCompressed() {
+		appender = newAppender(new CompressionEncoder<ILoggingEvent>(), new GelfLayout<ILoggingEvent>());
+		assertWithinBudget("Compressed", bytesPerEvent(appender, "A message of a typical length", mdc(),
+				new IllegalStateException("Failed")));
+	}
+
+	@Test
+	public void testChunked() {
+		appender = newAppender();
+		appender.setMaxPacketSize(512);
+		StringBuilder message = new StringBuilder();
+		while (message.length() < 2000) {
+			message.append("A long message that will need several chunks. ");
+		}
+		assertWithinBudget("Chunked", bytesPerEvent(appender, message.toString(), mdc(), null));
+	}
+}
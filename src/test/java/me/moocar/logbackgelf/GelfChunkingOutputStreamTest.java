@@ -0,0 +1,154 @@
+package me.moocar.logbackgelf;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class GelfChunkingOutputStreamTest {
+
+	private DatagramSocket server;
+	private ChunkPool chunkPool;
+	private GelfChunkingOutputStream stream;
+
+	@Before
+	public void setUp() throws IOException, NoSuchAlgorithmException {
+		InetAddress localhost = InetAddress.getByName("localhost");
+		server = new DatagramSocket(0, localhost);
+		server.setSoTimeout(5000);
+		server.setReceiveBufferSize(1024 * 1024);
+		chunkPool = new ChunkPool(64, 4);
+		stream = new GelfChunkingOutputStream(localhost, server.getLocalPort(), 64, new MessageIdProvider("test"),
+				chunkPool);
+		stream.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	private byte[] receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+		server.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private byte[] receiveChunked(int chunks) throws IOException {
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		for (int i = 0; i < chunks; i++) {
+			byte[] packet = receive();
+			Assert.assertEquals(0x1e, packet[0]);
+			Assert.assertEquals(0x0f, packet[1]);
+			Assert.assertEquals(i, packet[10]);
+			Assert.assertEquals(chunks, packet[11]);
+			reassembled.write(packet, 12, packet.length - 12);
+		}
+		return reassembled.toByteArray();
+	}
+
+	private static byte[] message(int length) {
+		byte[] message = new byte[length];
+		for (int i = 0; i < length; i++) {
+			message[i] = (byte) (i * 31);
+		}
+		return message;
+	}
+
+	@Test
+	public void testBulkWriteMatchesSingleByteWrites() throws IOException {
+		byte[] message = message(1000);
+		// 52 payload bytes per chunk
+		int chunks = (1000 + 51) / 52;
+
+		for (byte b : message) {
+			stream.write(b);
+		}
+		stream.flush();
+		Assert.assertArrayEquals(message, receiveChunked(chunks));
+
+		// Uneven spans, so some cross the unchunked/chunked and chunk to chunk boundaries
+		int offset = 0;
+		for (int span : new int[]{10, 60, 1, 200, 329, 400}) {
+			stream.write(message, offset, span);
+			offset += span;
+		}
+		stream.flush();
+		Assert.assertArrayEquals(message, receiveChunked(chunks));
+	}
+
+	@Test
+	public void testMessageIdIsWrittenBigEndian() throws IOException {
+		GelfChunkingOutputStream fixedIdStream = new GelfChunkingOutputStream(InetAddress.getByName("localhost"),
+				server.getLocalPort(), 64, new MessageIdGenerator() {
+			public long nextId() {
+				return 0x0102030405060708L;
+			}
+		});
+		fixedIdStream.start();
+		fixedIdStream.write(message(100));
+		fixedIdStream.flush();
+		for (int i = 0; i < 2; i++) {
+			Assert.assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, Arrays.copyOfRange(receive(), 2, 10));
+		}
+	}
+
+	@Test
+	public void testSmallMessageIsNotChunked() throws IOException {
+		byte[] message = message(64);
+		stream.write(message);
+		stream.flush();
+		Assert.assertArrayEquals(message, receive());
+		Assert.assertEquals(0, chunkPool.pooled());
+	}
+
+	@Test
+	public void testChunksAreReturnedToBoundedPool() throws IOException {
+		stream.write(message(100));
+		stream.flush();
+		receiveChunked(2);
+		Assert.assertEquals(2, chunkPool.pooled());
+
+		stream.write(message(1000));
+		stream.flush();
+		receiveChunked(20);
+		Assert.assertEquals(4, chunkPool.pooled());
+	}
+
+	@Test
+	public void testTooManyChunksIsDropped() throws IOException {
+		stream.write(message(128 * 52 + 1));
+		stream.flush();
+		Assert.assertEquals(4, chunkPool.pooled());
+
+		byte[] message = message(3);
+		stream.write(message);
+		stream.flush();
+		Assert.assertArrayEquals(message, receive());
+	}
+
+	@Test
+	public void testRecordsMetrics() throws IOException {
+		GelfMetrics metrics = new GelfMetrics();
+		stream.setMetrics(metrics);
+		stream.write(message(64));
+		stream.flush();
+		stream.write(message(100));
+		stream.flush();
+		stream.write(message(128 * 52 + 1));
+		stream.flush();
+		Assert.assertEquals(1, metrics.getSinglePacketMessages());
+		Assert.assertEquals(1, metrics.getChunkedMessages());
+		Assert.assertEquals(2, metrics.getChunksSent());
+		Assert.assertEquals(2, metrics.getSendLatency().getCount());
+		Assert.assertEquals(1, metrics.getDroppedMessages(GelfMetrics.DropReason.TOO_LARGE));
+	}
+}
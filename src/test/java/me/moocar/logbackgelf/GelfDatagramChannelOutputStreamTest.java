@@ -0,0 +1,117 @@
+package me.moocar.logbackgelf;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class GelfDatagramChannelOutputStreamTest {
+
+	private DatagramSocket server;
+	private GelfDatagramChannelOutputStream stream;
+
+	@Before
+	public void setUp() throws IOException, NoSuchAlgorithmException {
+		InetAddress localhost = InetAddress.getByName("localhost");
+		server = new DatagramSocket(0, localhost);
+		server.setSoTimeout(5000);
+		stream = new GelfDatagramChannelOutputStream(localhost, server.getLocalPort(), 64,
+				new MessageIdProvider("test"), 65536, false);
+		stream.start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		stream.close();
+		server.close();
+	}
+
+	private byte[] receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[1024], 1024);
+		server.receive(packet);
+		return Arrays.copyOf(packet.getData(), packet.getLength());
+	}
+
+	private static byte[] message(int length) {
+		byte[] message = new byte[length];
+		for (int i = 0; i < length; i++) {
+			message[i] = (byte) i;
+		}
+		return message;
+	}
+
+	@Test
+	public void testSmallMessageIsOnePacket() throws IOException {
+		stream.write('{');
+		stream.write("\"a\":1}".getBytes(GelfJsonWriter.UTF_8));
+		stream.flush();
+		Assert.assertEquals("{\"a\":1}", new String(receive(), GelfJsonWriter.UTF_8));
+	}
+
+	@Test
+	public void testFlushWithoutWriteSendsNothing() throws IOException {
+		stream.flush();
+		stream.write(message(10));
+		stream.flush();
+		Assert.assertEquals(10, receive().length);
+	}
+
+	@Test
+	public void testLargeMessageIsChunked() throws IOException {
+		// Big enough to need a bigger buffer from the pool part way through
+		byte[] message = message(5000);
+		stream.write(message, 0, 3000);
+		stream.write(message, 3000, 2000);
+		stream.flush();
+
+		// 52 payload bytes per chunk
+		int chunks = (5000 + 51) / 52;
+		ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+		byte[] messageId = null;
+		for (int i = 0; i < chunks; i++) {
+			byte[] packet = receive();
+			Assert.assertTrue(packet.length <= 64);
+			Assert.assertEquals(0x1e, packet[0]);
+			Assert.assertEquals(0x0f, packet[1]);
+			byte[] id = Arrays.copyOfRange(packet, 2, 10);
+			if (messageId == null) {
+				messageId = id;
+			}
+			Assert.assertArrayEquals(messageId, id);
+			Assert.assertEquals(i, packet[10]);
+			Assert.assertEquals(chunks, packet[11]);
+			reassembled.write(packet, 12, packet.length - 12);
+		}
+		Assert.assertArrayEquals(message, reassembled.toByteArray());
+
+		// The stream is usable again for small messages
+		stream.write(message(5));
+		stream.flush();
+		Assert.assertEquals(5, receive().length);
+	}
+
+	@Test
+	public void testTooManyChunksIsDropped() throws IOException {
+		stream.write(message(128 * 52 + 1));
+		stream.flush();
+		stream.write(message(3));
+		stream.flush();
+		Assert.assertEquals(3, receive().length);
+		server.setSoTimeout(100);
+		try {
+			receive();
+			Assert.fail("Only the small message should have been sent");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GelfEndpointsTest {
+
+	private static GelfEndpoints resolved(String... endpoints) {
+		GelfEndpoints gelfEndpoints = new GelfEndpoints(Arrays.asList(endpoints), 12201);
+		Assert.assertEquals(Collections.emptyList(), gelfEndpoints.resolve());
+		return gelfEndpoints;
+	}
+
+	@Test
+	public void testParsesEndpoints() {
+		GelfEndpoints endpoints = resolved("127.0.0.3", "127.0.0.1:1000", " [::1]:2000 ", "::1", "127.0.0.1:1000");
+		Assert.assertEquals(Arrays.asList(
+				new InetSocketAddress("127.0.0.1", 1000),
+				new InetSocketAddress("127.0.0.3", 12201),
+				new InetSocketAddress("::1", 2000),
+				new InetSocketAddress("::1", 12201)), endpoints.addresses());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadPorts() {
+		new GelfEndpoints(Arrays.asList("localhost:http"), 12201);
+	}
+
+	@Test
+	public void testRoundRobin() {
+		GelfEndpoints endpoints = resolved("127.0.0.1", "127.0.0.2", "127.0.0.3");
+		List<InetSocketAddress> selected = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < 6; i++) {
+			selected.add(endpoints.select(GelfEndpoints.ROUND_ROBIN));
+		}
+		List<InetSocketAddress> addresses = endpoints.addresses();
+		List<InetSocketAddress> twice = new ArrayList<InetSocketAddress>(addresses);
+		twice.addAll(addresses);
+		Assert.assertEquals(twice, selected);
+	}
+
+	@Test
+	public void testRoundRobinFromManyThreads() throws InterruptedException {
+		final GelfEndpoints endpoints = resolved("127.0.0.1", "127.0.0.2");
+		final Map<InetSocketAddress, AtomicInteger> counts = new ConcurrentHashMap<InetSocketAddress, AtomicInteger>();
+		for (InetSocketAddress address : endpoints.addresses()) {
+			counts.put(address, new AtomicInteger());
+		}
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						counts.get(endpoints.select(GelfEndpoints.ROUND_ROBIN)).incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// No selection is lost, so they're split exactly evenly
+		for (AtomicInteger count : counts.values()) {
+			Assert.assertEquals(200000, count.get());
+		}
+	}
+
+	@Test
+	public void testSameKeySameAddress() {
+		GelfEndpoints endpoints = resolved("127.0.0.1", "127.0.0.2", "127.0.0.3");
+		GelfEndpoints reordered = resolved("127.0.0.3", "127.0.0.1", "127.0.0.2");
+		boolean spread = false;
+		for (int i = 0; i < 100; i++) {
+			int key = GelfEndpoints.keyFor("request-" + i);
+			InetSocketAddress address = endpoints.select(key);
+			Assert.assertEquals(address, endpoints.select(key));
+			Assert.assertEquals(address, reordered.select(key));
+			spread |= !address.equals(endpoints.select(GelfEndpoints.keyFor("request-0")));
+		}
+		Assert.assertTrue(spread);
+	}
+
+	@Test
+	public void testFailedResolutionKeepsPreviousAddresses() {
+		GelfEndpoints endpoints = new GelfEndpoints(Arrays.asList("127.0.0.1", "no-such-host.invalid"), 12201);
+		Assert.assertEquals(Arrays.asList("no-such-host.invalid"), endpoints.resolve());
+		Assert.assertEquals(Arrays.asList(new InetSocketAddress("127.0.0.1", 12201)), endpoints.addresses());
+		Assert.assertEquals(new InetSocketAddress("127.0.0.1", 12201), endpoints.select(GelfEndpoints.ROUND_ROBIN));
+	}
+}
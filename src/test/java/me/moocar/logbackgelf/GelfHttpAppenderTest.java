@@ -0,0 +1,291 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+public class GelfHttpAppenderTest {
+
+	private LoggerContext context;
+	private HttpServer server;
+	private ExecutorService executor;
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+	private final Set<Integer> remotePorts = Collections.synchronizedSet(new HashSet<Integer>());
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger gzipped = new AtomicInteger();
+	private volatile int status = 202;
+	// Requests wait on this before responding
+	private volatile CountDownLatch release = new CountDownLatch(0);
+	// Requests for messages saying "slow" wait on this instead
+	private volatile CountDownLatch slowRelease = new CountDownLatch(0);
+
+	@Before
+	public void setUp() throws IOException {
+		context = new LoggerContext();
+		executor = Executors.newCachedThreadPool();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), 0), 0);
+		server.setExecutor(executor);
+		server.createContext("/gelf", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				requests.incrementAndGet();
+				remotePorts.add(exchange.getRemoteAddress().getPort());
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					gzipped.incrementAndGet();
+					in = new GZIPInputStream(in);
+				}
+				String body = new String(readAll(in), "UTF-8");
+				try {
+					(body.contains("\"short_message\":\"slow\"") ? slowRelease : release).await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				int status = GelfHttpAppenderTest.this.status;
+				if (status / 100 == 2) {
+					received.add(body);
+				}
+				exchange.sendResponseHeaders(status, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		slowRelease.countDown();
+		context.stop();
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private GelfHttpAppender<ILoggingEvent> newAppender() {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		LayoutWrappingEncoder<ILoggingEvent> encoder = new LayoutWrappingEncoder<ILoggingEvent>();
+		encoder.setContext(context);
+		encoder.setLayout(layout);
+		GelfHttpAppender<ILoggingEvent> appender = new GelfHttpAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setName("http");
+		appender.setUrl("http://localhost:" + server.getAddress().getPort() + "/gelf");
+		appender.setEncoder(encoder);
+		appender.setJmx(false);
+		return appender;
+	}
+
+	private Logger logger(GelfHttpAppender<ILoggingEvent> appender) {
+		Logger logger = context.getLogger("test");
+		logger.addAppender(appender);
+		return logger;
+	}
+
+	private String receive() throws InterruptedException {
+		String message = received.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull("Timed out waiting for a message", message);
+		return message;
+	}
+
+	@Test
+	public void testPostsMessages() throws InterruptedException {
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMinCompressSize(100);
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		Logger logger = logger(appender);
+
+		logger.info("small");
+		Assert.assertTrue(receive().contains("\"short_message\":\"small\""));
+		Assert.assertEquals(0, gzipped.get());
+
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			large.append("large message ");
+		}
+		logger.info(large.toString());
+		Assert.assertTrue(receive().contains("\"full_message\":\"" + large + "\""));
+		Assert.assertEquals(1, gzipped.get());
+
+		appender.stop();
+		Assert.assertEquals(2, appender.getSentMessages());
+		Assert.assertEquals(0, appender.getDroppedMessages());
+	}
+
+	@Test
+	public void testReusesTheConnection() throws InterruptedException {
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMaxInFlight(1);
+		appender.start();
+		Logger logger = logger(appender);
+
+		for (int i = 0; i < 10; i++) {
+			logger.info("message " + i);
+			receive();
+		}
+		appender.stop();
+		Assert.assertEquals(10, requests.get());
+		Assert.assertEquals(1, remotePorts.size());
+	}
+
+	@Test
+	public void testSlowResponsesDontHoldUpLogging() throws InterruptedException {
+		release = new CountDownLatch(1);
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMaxInFlight(2);
+		appender.setReadTimeout(20000);
+		appender.start();
+		Logger logger = logger(appender);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			logger.info("message " + i);
+		}
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (requests.get() < 2 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(2, requests.get());
+		Assert.assertEquals(2, appender.getInFlightRequests());
+		Assert.assertEquals(8, appender.getQueueDepth());
+
+		release.countDown();
+		for (int i = 0; i < 10; i++) {
+			receive();
+		}
+		appender.stop();
+		Assert.assertEquals(10, appender.getSentMessages());
+	}
+
+	@Test
+	public void testIdleSendersPickUpMessagesWhileOneIsStuck() throws InterruptedException {
+		slowRelease = new CountDownLatch(1);
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMaxInFlight(2);
+		appender.setReadTimeout(20000);
+		appender.start();
+		Logger logger = logger(appender);
+
+		logger.info("slow");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (appender.getInFlightRequests() < 1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, appender.getInFlightRequests());
+
+		long elapsed = 0;
+		for (int i = 0; i < 5; i++) {
+			// Long enough for the other sender to go idle
+			Thread.sleep(20);
+			long start = System.nanoTime();
+			logger.info("message " + i);
+			Assert.assertTrue(receive().contains("\"short_message\":\"message " + i + "\""));
+			elapsed += System.nanoTime() - start;
+		}
+		// Rather than each waiting out the idle sender's 100ms park
+		Assert.assertTrue("Took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms",
+				elapsed < TimeUnit.MILLISECONDS.toNanos(250));
+
+		slowRelease.countDown();
+		Assert.assertTrue(receive().contains("\"short_message\":\"slow\""));
+		appender.stop();
+	}
+
+	@Test
+	public void testRetriesThenDrops() throws InterruptedException {
+		status = 503;
+		final BlockingQueue<String> dropped = new LinkedBlockingQueue<String>();
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMaxRetries(2);
+		appender.setMinRetryDelay(10);
+		appender.setDropListener(new GelfDropListener() {
+			public void dropped(byte[] message, int length, GelfMetrics.DropReason reason, Exception cause) {
+				try {
+					dropped.add(reason + " " + new String(message, 0, length, "UTF-8"));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		appender.start();
+		logger(appender).info("unlucky");
+
+		String drop = dropped.poll(5, TimeUnit.SECONDS);
+		Assert.assertNotNull(drop);
+		Assert.assertTrue(drop.startsWith("SEND_FAILED {"));
+		Assert.assertTrue(drop.contains("\"short_message\":\"unlucky\""));
+		Assert.assertEquals(3, requests.get());
+		Assert.assertEquals(1, appender.getDroppedMessages());
+		Assert.assertEquals(3, appender.getMetrics().getSendErrors());
+
+		status = 200;
+		logger(appender).info("lucky");
+		Assert.assertTrue(receive().contains("\"short_message\":\"lucky\""));
+		appender.stop();
+	}
+
+	@Test
+	public void testRejectionsArentRetried() throws InterruptedException {
+		status = 400;
+		GelfHttpAppender<ILoggingEvent> appender = newAppender();
+		appender.setMinRetryDelay(10);
+		appender.start();
+		logger(appender).info("rejected");
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (appender.getDroppedMessages() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		appender.stop();
+		Assert.assertEquals(1, appender.getDroppedMessages());
+		Assert.assertEquals(1, requests.get());
+		Assert.assertEquals(1, appender.getMetrics().getDroppedMessages(GelfMetrics.DropReason.SEND_FAILED));
+	}
+
+	@Test
+	public void testRequiresAGelfLayout() {
+		GelfHttpAppender<ILoggingEvent> appender = new GelfHttpAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.start();
+		Assert.assertFalse(appender.isStarted());
+	}
+}
@@ -0,0 +1,109 @@
+package me.moocar.logbackgelf;
+
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class GelfJsonWriterTest {
+
+	private final Gson gson = new Gson();
+
+	private String writeString(String value) {
+		GelfJsonWriter writer = new GelfJsonWriter(16);
+		writer.reset();
+		writer.string(value);
+		return writer.toString();
+	}
+
+	@Test
+	public void testEscapesLikeGson() {
+		String[] values = {"", "plain", "quote\" backslash\\ slash/", "\t\b\n\r\f\u0000\u001f\u007f",
+				"<script>&amp;='x'</script>", "café €   ", "😀 emoji",
+				"unpaired \ud83d high", "unpaired \ude00 low"};
+		for (String value : values) {
+			// Compare bytes, since Gson leaves unpaired surrogates in the String and they only become '?' once encoded
+			Assert.assertArrayEquals(gson.toJson(value).getBytes(GelfJsonWriter.UTF_8),
+					writeString(value).getBytes(GelfJsonWriter.UTF_8));
+		}
+	}
+
+	@Test
+	public void testRandomStringsMatchGson() {
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			char[] chars = new char[random.nextInt(64)];
+			for (int j = 0; j < chars.length; j++) {
+				chars[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+			}
+			String value = new String(chars);
+			Assert.assertArrayEquals(gson.toJson(value).getBytes(GelfJsonWriter.UTF_8),
+					writeString(value).getBytes(GelfJsonWriter.UTF_8));
+		}
+	}
+
+	@Test
+	public void testFragments() {
+		GelfJsonWriter fragment = new GelfJsonWriter(16);
+		fragment.reset();
+		fragment.beginFragment();
+		fragment.longField("a", 1);
+		fragment.stringField("b", "two");
+		byte[] bytes = fragment.toByteArray();
+
+		GelfJsonWriter writer = new GelfJsonWriter(16);
+		writer.reset();
+		writer.beginObject();
+		writer.fields(bytes);
+		writer.longField("c", 3);
+		writer.fields(bytes);
+		writer.endObject();
+		Assert.assertEquals("{\"a\":1,\"b\":\"two\",\"c\":3,\"a\":1,\"b\":\"two\"}", writer.toString());
+	}
+
+	@Test
+	public void testNumbers() {
+		GelfJsonWriter writer = new GelfJsonWriter(4);
+		writer.reset();
+		writer.beginObject();
+		writer.longField("a", 0);
+		writer.longField("b", -1234567890123L);
+		writer.longField("c", Long.MIN_VALUE);
+		writer.name("t");
+		writer.timestampValue(1453161600012L);
+		writer.name("d");
+		writer.doubleValue(0.5);
+		writer.name("n");
+		writer.doubleValue(Double.NaN);
+		writer.stringField("skipped", null);
+		writer.endObject();
+		Assert.assertEquals("{\"a\":0,\"b\":-1234567890123,\"c\":-9223372036854775808,\"t\":1453161600.012," +
+				"\"d\":0.5,\"n\":\"NaN\"}", writer.toString());
+	}
+
+	private String writeString(String value, int maxBytes) {
+		GelfJsonWriter writer = new GelfJsonWriter(16);
+		writer.reset();
+		int written = writer.string(value, maxBytes);
+		String json = writer.toString();
+		Assert.assertEquals(json, writer.size() - 2, written);
+		return json;
+	}
+
+	@Test
+	public void testTruncatedStringsEndOnCharacterBoundaries() {
+		Assert.assertEquals("\"abc\"", writeString("abcdef", 3));
+		Assert.assertEquals("\"abcdef\"", writeString("abcdef", 100));
+		Assert.assertEquals("\"\"", writeString("abcdef", 0));
+		// An escape sequence is never cut in half
+		Assert.assertEquals("\"a\"", writeString("a\nb", 2));
+		Assert.assertEquals("\"a\\n\"", writeString("a\nb", 3));
+		Assert.assertEquals("\"a\"", writeString("a\u0001b", 6));
+		// Nor is a multibyte character, or a surrogate pair
+		Assert.assertEquals("\"caf\"", writeString("café", 4));
+		Assert.assertEquals("\"café\"", writeString("café", 5));
+		Assert.assertEquals("\"a\"", writeString("a😀", 4));
+		Assert.assertEquals("\"a😀\"", writeString("a😀", 5));
+	}
+}
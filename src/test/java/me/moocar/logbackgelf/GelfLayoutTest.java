@@ -0,0 +1,406 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class GelfLayoutTest {
+
+	private LoggerContext context;
+	private Logger logger;
+
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		logger = context.getLogger("this_logger");
+	}
+
+	private GelfLayout<LoggingEvent> newLayout() {
+		GelfLayout<LoggingEvent> layout = new GelfLayout<LoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		return layout;
+	}
+
+	private LoggingEvent newEvent(String message, Map<String, String> mdc) {
+		LoggingEvent event = new LoggingEvent("fqcn", logger, Level.INFO, message, null, null);
+		event.setTimeStamp(1453161600123L);
+		event.setMDCPropertyMap(mdc);
+		return event;
+	}
+
+	@Test
+	public void testConstantFieldsComeFirst() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		Field facility = new Field();
+		facility.setKey("_facility");
+		facility.setValue("GELF");
+		layout.addStaticField(facility);
+		layout.start();
+
+		Assert.assertEquals("{\"version\":\"1.1\",\"host\":\"Test\",\"_facility\":\"GELF\",\"short_message\":\"msg\"," +
+				"\"timestamp\":1453161600.123,\"level\":6}",
+				layout.doLayout(newEvent("msg", new HashMap<String, String>())));
+	}
+
+	@Test
+	public void testStaticFieldsOverrideBuiltInAndMdcFields() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		layout.addStaticAdditionalField("host:static-host");
+		layout.addStaticAdditionalField("_request_id:static");
+		layout.start();
+
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("request_id", "from-mdc");
+		mdc.put("user", "bob");
+		String json = layout.doLayout(newEvent("msg", mdc));
+
+		Assert.assertTrue(json, json.startsWith("{\"version\":\"1.1\",\"host\":\"static-host\",\"_request_id\":\"static\""));
+		Assert.assertFalse(json, json.contains("from-mdc"));
+		Assert.assertTrue(json, json.contains("\"_user\":\"bob\""));
+	}
+
+	@Test
+	public void testMdcFieldsFollowChangesToTheMap() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		layout.setFieldTypes(Collections.singletonMap("count", "int"));
+		layout.start();
+
+		Map<String, String> mdc = new HashMap<String, String>();
+		for (int i = 0; i < 15; i++) {
+			mdc.put("key" + i, "value" + i);
+		}
+		mdc.put("count", "many");
+		String first = layout.doLayout(newEvent("msg", mdc));
+		for (int i = 0; i < 49; i++) {
+			Assert.assertEquals(first, layout.doLayout(newEvent("msg", mdc)));
+		}
+		Assert.assertTrue(first, first.contains("\"_key7\":\"value7\""));
+		// Counted for every message, not just when the fields were first written
+		Assert.assertEquals(50, layout.getFieldConversionErrors());
+
+		// Changed in place, keeping the same size
+		mdc.put("key7", "changed");
+		String json = layout.doLayout(newEvent("msg", mdc));
+		Assert.assertTrue(json, json.contains("\"_key7\":\"changed\""));
+		mdc.remove("count");
+		json = layout.doLayout(newEvent("msg", mdc));
+		Assert.assertFalse(json, json.contains("_count"));
+		Assert.assertEquals(51, layout.getFieldConversionErrors());
+	}
+
+	@Test
+	public void testMdcFieldsForInterleavedMaps() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		layout.start();
+
+		List<Map<String, String>> mdcs = new ArrayList<Map<String, String>>();
+		for (int i = 0; i < 6; i++) {
+			mdcs.add(Collections.singletonMap("request_id", "request-" + i));
+		}
+		// More maps than are kept per thread
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < mdcs.size(); i++) {
+				String json = layout.doLayout(newEvent("msg", mdcs.get(i)));
+				Assert.assertTrue(json, json.endsWith(",\"_request_id\":\"request-" + i + "\"}"));
+			}
+		}
+	}
+
+	@Test
+	public void testConfigurationChangesApplyOnRestart() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.start();
+		layout.addStaticAdditionalField("_node_name:www013");
+
+		String json = layout.doLayout(newEvent("msg", new HashMap<String, String>()));
+		Assert.assertFalse(json, json.contains("www013"));
+
+		layout.stop();
+		layout.start();
+		json = layout.doLayout(newEvent("msg", new HashMap<String, String>()));
+		Assert.assertTrue(json, json.contains("\"_node_name\":\"www013\""));
+	}
+
+	private PatternLayout patternLayout(String pattern) {
+		PatternLayout layout = new PatternLayout();
+		layout.setContext(context);
+		layout.setPattern(pattern);
+		layout.start();
+		return layout;
+	}
+
+	private static String repeat(String value, int times) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			builder.append(value);
+		}
+		return builder.toString();
+	}
+
+	private static Exception deepException(int depth) {
+		if (depth == 0) {
+			return new IllegalStateException("deep");
+		}
+		return deepException(depth - 1);
+	}
+
+	@Test
+	public void testTrimsStackFramesFirst() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		LoggingEvent event = newEvent("msg", new HashMap<String, String>());
+		event.setThrowableProxy(new ThrowableProxy(deepException(200)));
+		layout.start();
+		int originalSize = layout.doLayout(event).getBytes(GelfJsonWriter.UTF_8).length;
+
+		layout.setMaxEncodedSize(originalSize / 2);
+		layout.start();
+		String json = layout.doLayout(event);
+		Assert.assertTrue(json, json.getBytes(GelfJsonWriter.UTF_8).length <= originalSize / 2);
+		Assert.assertTrue(json, json.contains("IllegalStateException: deep"));
+		// Only the top of the stack is left in full_message
+		int frames = json.split("\\\\tat ").length - 1;
+		Assert.assertTrue(json, frames > 2 && frames < 100);
+		Assert.assertTrue(json, json.endsWith(",\"_truncated\":" + originalSize + "}"));
+		Assert.assertEquals(1, layout.getTruncatedMessages());
+	}
+
+	@Test
+	public void testTrimsFullMessageThenMdc() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		layout.setMaxEncodedSize(1000);
+		layout.start();
+
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("small", "kept");
+		mdc.put("big", repeat("b", 2000));
+		LoggingEvent event = newEvent(repeat("m", 400), mdc);
+
+		String json = layout.doLayout(event);
+		Assert.assertTrue(json, json.length() <= 1000);
+		// short_message is untouched, there's no room left for full_message and the big MDC value is cut short
+		Assert.assertTrue(json, json.contains("\"short_message\":\"" + repeat("m", 100) + "\""));
+		Assert.assertFalse(json, json.contains("full_message"));
+		Assert.assertTrue(json, json.contains("\"_small\":\"kept\""));
+		Assert.assertTrue(json, json.contains("\"_big\":\"bbb"));
+		Assert.assertTrue(json, json.contains("\"_truncated\":"));
+	}
+
+	@Test
+	public void testLeavesSmallMessagesAlone() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setMaxEncodedSize(1000);
+		layout.start();
+
+		String json = layout.doLayout(newEvent("msg", new HashMap<String, String>()));
+		Assert.assertFalse(json, json.contains("_truncated"));
+		Assert.assertEquals(0, layout.getTruncatedMessages());
+	}
+
+	@Test
+	public void testCachedStackTracesMatchUncached() {
+		GelfLayout<LoggingEvent> cached = newLayout();
+		cached.start();
+		GelfLayout<LoggingEvent> uncached = newLayout();
+		uncached.setStackTraceCacheSize(0);
+		uncached.start();
+
+		for (int i = 0; i < 3; i++) {
+			LoggingEvent event = newEvent("failed <" + i + ">", new HashMap<String, String>());
+			Exception cause = new IllegalArgumentException("cause");
+			event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("attempt " + i, cause)));
+			Assert.assertEquals(uncached.doLayout(event), cached.doLayout(event));
+			Assert.assertEquals(uncached.doLayout(event), cached.doLayout(event));
+		}
+		Assert.assertEquals(3, cached.getStackTraceCacheHits());
+		Assert.assertEquals(3, cached.getStackTraceCacheMisses());
+		Assert.assertEquals(0, uncached.getStackTraceCacheMisses());
+	}
+
+	@Test
+	public void testFullMessageOnlyWhenItDiffersFromShortMessage() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.start();
+
+		String json = layout.doLayout(newEvent("short", new HashMap<String, String>()));
+		Assert.assertTrue(json, json.contains("\"short_message\":\"short\""));
+		Assert.assertFalse(json, json.contains("full_message"));
+
+		// Like "%.100m", short_message keeps the end of a long message
+		String message = repeat("a", 50) + repeat("b", 100);
+		json = layout.doLayout(newEvent(message, new HashMap<String, String>()));
+		Assert.assertTrue(json, json.contains("\"short_message\":\"" + repeat("b", 100) + "\""));
+		Assert.assertTrue(json, json.contains("\"full_message\":\"" + message + "\""));
+	}
+
+	@Test
+	public void testDefaultPatternsMatchTheirLayouts() {
+		GelfLayout<LoggingEvent> fast = newLayout();
+		fast.start();
+		// Equivalent layouts that aren't recognised as the defaults, so are run
+		GelfLayout<LoggingEvent> slow = newLayout();
+		slow.setShortMessageLayout(patternLayout("%ex{short}%.100m "));
+		slow.setFullMessageLayout(patternLayout("%rEx%m "));
+		slow.start();
+
+		String[] messages = {"msg", repeat("x", 99) + "\"", repeat("y", 250), "tab\there"};
+		for (String message : messages) {
+			for (int i = 0; i < 2; i++) {
+				LoggingEvent event = newEvent(message, new HashMap<String, String>());
+				if (i == 1) {
+					event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("failed", deepException(3))));
+				}
+				Assert.assertEquals(slow.doLayout(event).replace(" \"", "\""), fast.doLayout(event));
+			}
+		}
+	}
+
+	@Test
+	public void testShortMessageDoesNotSplitSurrogatePairs() {
+		String message = "\ud83d\ude00" + repeat("a", 99);
+		Assert.assertEquals(2, GelfFieldPlan.MessageFields.shortMessageStart(message));
+		Assert.assertEquals(0, GelfFieldPlan.MessageFields.shortMessageStart("\ud83d\ude00" + repeat("a", 98)));
+		Assert.assertEquals(1, GelfFieldPlan.MessageFields.shortMessageStart("b\ud83d\ude00" + repeat("a", 98)));
+	}
+
+	@Test
+	public void testCallerData() {
+		// The caller is the frame after the layout's own, which is this test
+		LoggingEvent event = new LoggingEvent(GelfLayout.class.getName(), logger, Level.INFO, "msg",
+				new IllegalStateException("failed"), null);
+
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.start();
+		String json = layout.doLayout(event);
+		Assert.assertTrue(json, json.contains("\"_file\":\"GelfLayoutTest.java\""));
+		Assert.assertTrue(json, json.contains("\"_line\":"));
+
+		layout = newLayout();
+		layout.setUseCallerData(false);
+		layout.start();
+		json = layout.doLayout(event);
+		Assert.assertFalse(json, json.contains("\"_file\":"));
+		Assert.assertFalse(json, json.contains("\"_line\":"));
+	}
+
+	@Test
+	public void testStructuredArguments() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.start();
+		LoggingEvent event = new LoggingEvent("fqcn", logger, Level.INFO, "Handled {} in {}ms", null,
+				new Object[]{StructuredArgument.field("path", "/users"), StructuredArgument.field("latency_ms", 12L),
+						StructuredArgument.field("ratio", 0.5), StructuredArgument.field("cached", true),
+						StructuredArgument.field("count", Integer.valueOf(3)),
+						StructuredArgument.field("missing", (Object) null), "plain"});
+		event.setTimeStamp(1453161600123L);
+
+		Assert.assertEquals("{\"version\":\"1.1\",\"host\":\"Test\",\"short_message\":\"Handled /users in 12ms\"," +
+				"\"timestamp\":1453161600.123,\"level\":6,\"_path\":\"/users\",\"_latency_ms\":12,\"_ratio\":0.5," +
+				"\"_cached\":true,\"_count\":3}", layout.doLayout(event));
+	}
+
+	@Test
+	public void testStructuredArgumentsCannotOverrideReservedFields() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		Field facility = new Field();
+		facility.setKey("_facility");
+		facility.setValue("GELF");
+		layout.addStaticField(facility);
+		layout.start();
+		LoggingEvent event = new LoggingEvent("fqcn", logger, Level.INFO, "msg", null,
+				new Object[]{StructuredArgument.field("facility", "app"), StructuredArgument.field("file", "x"),
+						StructuredArgument.field("user", "bob")});
+
+		String json = layout.doLayout(event);
+		Assert.assertTrue(json, json.contains("\"_facility\":\"GELF\""));
+		Assert.assertFalse(json, json.contains("\"app\""));
+		Assert.assertFalse(json, json.contains("\"_file\""));
+		Assert.assertTrue(json, json.contains("\"_user\":\"bob\""));
+
+		layout = newLayout();
+		layout.setUseStructuredArguments(false);
+		layout.start();
+		json = layout.doLayout(event);
+		Assert.assertFalse(json, json.contains("\"_user\""));
+	}
+
+	private static int occurrences(String json, String name) {
+		int count = 0;
+		for (int i = json.indexOf(name); i >= 0; i = json.indexOf(name, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	@Test
+	public void testStructuredArgumentsDontRepeatFields() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setIncludeFullMDC(true);
+		layout.addAdditionalField("ip:_ip_address");
+		layout.start();
+		Map<String, String> mdc = new HashMap<String, String>();
+		mdc.put("user", "mdc-bob");
+		mdc.put("ip", "127.0.0.1");
+		Object[] arguments = {StructuredArgument.field("user", "arg-bob"), StructuredArgument.field("ip_address", "x"),
+				StructuredArgument.field("latency_ms", 1L), StructuredArgument.field("latency_ms", 2L),
+				StructuredArgument.field("ratio", (Object) null), StructuredArgument.field("ratio", 0.5)};
+		LoggingEvent event = new LoggingEvent("fqcn", logger, Level.INFO, "msg", null, arguments);
+		event.setMDCPropertyMap(mdc);
+
+		// The MDC's fields, then the first argument of each key that has a value
+		String json = layout.doLayout(event);
+		Assert.assertEquals(json, 1, occurrences(json, "\"_user\":"));
+		Assert.assertTrue(json, json.contains("\"_user\":\"mdc-bob\""));
+		Assert.assertEquals(json, 1, occurrences(json, "\"_ip_address\":"));
+		Assert.assertTrue(json, json.contains("\"_ip_address\":\"127.0.0.1\""));
+		Assert.assertEquals(json, 1, occurrences(json, "\"_latency_ms\":"));
+		Assert.assertTrue(json, json.contains("\"_latency_ms\":1"));
+		Assert.assertEquals(json, 1, occurrences(json, "\"_ratio\":"));
+		Assert.assertTrue(json, json.contains("\"_ratio\":0.5"));
+
+		// Without the MDC entries, the arguments are written
+		event = new LoggingEvent("fqcn", logger, Level.INFO, "msg", null, arguments);
+		event.setMDCPropertyMap(new HashMap<String, String>());
+		json = layout.doLayout(event);
+		Assert.assertTrue(json, json.contains("\"_user\":\"arg-bob\""));
+		Assert.assertTrue(json, json.contains("\"_ip_address\":\"x\""));
+	}
+
+	@Test
+	public void testStackHash() {
+		GelfLayout<LoggingEvent> layout = newLayout();
+		layout.setUseStackHash(true);
+		layout.start();
+
+		String[] hashes = new String[2];
+		for (int i = 0; i < 2; i++) {
+			LoggingEvent event = newEvent("msg", new HashMap<String, String>());
+			event.setThrowableProxy(new ThrowableProxy(new IllegalStateException("attempt " + i)));
+			String json = layout.doLayout(event);
+			int start = json.indexOf("\"_stack_hash\":\"");
+			Assert.assertTrue(json, start > 0);
+			hashes[i] = json.substring(start + 15, start + 31);
+			Assert.assertTrue(json, hashes[i].matches("[0-9a-f]{16}"));
+		}
+		// The loop's two exceptions come from the same place
+		Assert.assertEquals(hashes[0], hashes[1]);
+		Assert.assertFalse(layout.doLayout(newEvent("msg", new HashMap<String, String>())).contains("_stack_hash"));
+	}
+}
@@ -0,0 +1,180 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import me.moocar.logbackgelf.GelfOverloadController.Decision;
+import me.moocar.logbackgelf.GelfOverloadController.OverloadLevel;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class GelfOverloadControllerTest {
+
+	private static final byte[] MESSAGE = new byte[10];
+
+	private LoggerContext context;
+	private Logger logger;
+	private GelfMetrics metrics;
+	private GelfRingBuffer queue;
+	private GelfOverloadController controller;
+
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		logger = context.getLogger("test");
+		metrics = new GelfMetrics();
+		queue = new GelfRingBuffer(100, Long.MAX_VALUE);
+		controller = new GelfOverloadController();
+		controller.setContext(context);
+		controller.setRecoveryDelay(0);
+	}
+
+	private LoggingEvent newEvent(Level level) {
+		return new LoggingEvent("fqcn", logger, level, "msg", new IllegalStateException("failed"), null);
+	}
+
+	private void fillTo(int size) {
+		while (queue.size() > size) {
+			queue.poll(null);
+		}
+		while (queue.size() < size) {
+			queue.offer(MESSAGE, MESSAGE.length, Level.INFO_INT, 0);
+		}
+	}
+
+	private OverloadLevel evaluateAt(int size) {
+		fillTo(size);
+		controller.evaluate(System.nanoTime());
+		return controller.getLevel();
+	}
+
+	@Test
+	public void testDegradesProgressively() {
+		controller.start(metrics, queue, "test");
+		// The queue rounds up to 128
+		Assert.assertEquals(OverloadLevel.NORMAL, evaluateAt(32));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.INFO)));
+
+		Assert.assertEquals(OverloadLevel.TRIM, evaluateAt(64));
+		Assert.assertEquals(Decision.TRIM, controller.decide(newEvent(Level.INFO)));
+		Assert.assertEquals(Decision.TRIM, controller.decide(newEvent(Level.DEBUG)));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.WARN)));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.ERROR)));
+
+		Assert.assertEquals(OverloadLevel.SAMPLE, evaluateAt(100));
+		int sent = 0;
+		for (int i = 0; i < 100; i++) {
+			Decision decision = controller.decide(newEvent(Level.INFO));
+			if (decision == Decision.TRIM) {
+				sent++;
+			} else {
+				Assert.assertEquals(Decision.SAMPLE_OUT, decision);
+			}
+		}
+		Assert.assertEquals(10, sent);
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.WARN)));
+
+		Assert.assertEquals(OverloadLevel.SHED, evaluateAt(120));
+		Assert.assertEquals(Decision.SHED, controller.decide(newEvent(Level.INFO)));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.WARN)));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.ERROR)));
+		Assert.assertEquals("SHED", metrics.getOverloadLevel());
+	}
+
+	@Test
+	public void testRecoversWithHysteresis() {
+		controller.start(metrics, queue, "test");
+		Assert.assertEquals(OverloadLevel.SHED, evaluateAt(128));
+		// Below shedAt (0.9), but not by the hysteresis (0.2)
+		Assert.assertEquals(OverloadLevel.SHED, evaluateAt(100));
+		// Back down one level at a time
+		Assert.assertEquals(OverloadLevel.SAMPLE, evaluateAt(0));
+		Assert.assertEquals(OverloadLevel.TRIM, evaluateAt(0));
+		Assert.assertEquals(OverloadLevel.NORMAL, evaluateAt(0));
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.INFO)));
+	}
+
+	@Test
+	public void testHoldsALevelForTheRecoveryDelay() {
+		controller.setRecoveryDelay(TimeUnit.HOURS.toMillis(1));
+		controller.start(metrics, queue, "test");
+		Assert.assertEquals(OverloadLevel.TRIM, evaluateAt(64));
+		Assert.assertEquals(OverloadLevel.TRIM, evaluateAt(0));
+		// Going up isn't delayed
+		Assert.assertEquals(OverloadLevel.SHED, evaluateAt(128));
+	}
+
+	@Test
+	public void testWouldBlockSendsRaisePressure() {
+		controller.start(metrics, null, "test");
+		for (int i = 0; i < 10; i++) {
+			metrics.dropped(GelfMetrics.DropReason.WOULD_BLOCK, 1);
+		}
+		controller.evaluate(System.nanoTime());
+		Assert.assertEquals(OverloadLevel.SHED, controller.getLevel());
+		Assert.assertTrue(controller.getPressure() > 2);
+
+		for (int i = 0; i < 500; i++) {
+			metrics.packetsSent(1, 1000);
+		}
+		for (int i = 0; i < 3; i++) {
+			controller.evaluate(System.nanoTime());
+		}
+		Assert.assertEquals(OverloadLevel.NORMAL, controller.getLevel());
+	}
+
+	@Test
+	public void testSendLatencyRaisesPressure() {
+		controller.setMaxSendLatency(10);
+		controller.start(metrics, null, "test");
+		for (int i = 0; i < 200; i++) {
+			metrics.requestSent(TimeUnit.MILLISECONDS.toNanos(6));
+		}
+		controller.evaluate(System.nanoTime());
+		Assert.assertEquals(OverloadLevel.TRIM, controller.getLevel());
+		Assert.assertEquals(0.6, controller.getPressure(), 0.01);
+	}
+
+	@Test
+	public void testStoppedControllerSendsEverything() {
+		controller.start(metrics, queue, "test");
+		evaluateAt(128);
+		controller.stop(metrics);
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.DEBUG)));
+		Assert.assertEquals("NORMAL", metrics.getOverloadLevel());
+	}
+
+	@Test
+	public void testInvalidThresholdsTurnItOff() {
+		controller.setTrimAt(0.9);
+		controller.setShedAt(0.5);
+		controller.start(metrics, queue, "test");
+		fillTo(128);
+		Assert.assertEquals(Decision.SEND, controller.decide(newEvent(Level.DEBUG)));
+	}
+
+	@Test
+	public void testTrimmedEventsHaveNoFullMessageOrStackTrace() {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		LoggingEvent event = newEvent(Level.INFO);
+		event.setCallerData(new StackTraceElement[]{new StackTraceElement("Test", "test", "Test.java", 1)});
+
+		String json = layout.doLayout(event);
+		Assert.assertTrue(json, json.contains("\"full_message\":"));
+		Assert.assertTrue(json, json.contains("\"_file\":"));
+
+		json = layout.doLayout(new TrimmedEvent(event));
+		Assert.assertTrue(json, json.contains("\"short_message\":\"msg\""));
+		Assert.assertFalse(json, json.contains("\"full_message\":"));
+		Assert.assertFalse(json, json.contains("IllegalStateException"));
+		Assert.assertFalse(json, json.contains("\"_file\":"));
+	}
+}
@@ -0,0 +1,139 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class GelfRingBufferTest {
+
+	private static class Collector implements GelfRingBuffer.Consumer {
+		private final List<String> messages = new ArrayList<String>();
+		private final List<Integer> levels = new ArrayList<Integer>();
+		private final List<Integer> keys = new ArrayList<Integer>();
+
+		public void consume(byte[] message, int length, int level, int key) {
+			messages.add(new String(message, 0, length, GelfJsonWriter.UTF_8));
+			levels.add(level);
+			keys.add(key);
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(GelfJsonWriter.UTF_8);
+	}
+
+	private static boolean offer(GelfRingBuffer buffer, String message) {
+		byte[] bytes = bytes(message);
+		return buffer.offer(bytes, bytes.length, 0, 0);
+	}
+
+	@Test
+	public void testFifo() {
+		GelfRingBuffer buffer = new GelfRingBuffer(4, 1024);
+		byte[] longer = bytes("second-and-ignored");
+		Assert.assertTrue(offer(buffer, "first"));
+		Assert.assertTrue(buffer.offer(longer, 6, 20000, 42));
+		Assert.assertEquals(2, buffer.size());
+		Assert.assertEquals(11, buffer.queuedBytes());
+
+		Collector collector = new Collector();
+		while (buffer.poll(collector)) {
+		}
+		Assert.assertEquals(Arrays.asList("first", "second"), collector.messages);
+		Assert.assertEquals(Arrays.asList(0, 20000), collector.levels);
+		Assert.assertEquals(Arrays.asList(0, 42), collector.keys);
+		Assert.assertTrue(buffer.isEmpty());
+		Assert.assertEquals(0, buffer.queuedBytes());
+	}
+
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		GelfRingBuffer buffer = new GelfRingBuffer(5, 1024);
+		Assert.assertEquals(8, buffer.capacity());
+		for (int i = 0; i < 8; i++) {
+			Assert.assertTrue(offer(buffer, "m" + i));
+		}
+		Assert.assertFalse(offer(buffer, "full"));
+
+		// Discarding the oldest makes room for one more
+		Assert.assertTrue(buffer.poll(null));
+		Assert.assertTrue(offer(buffer, "m8"));
+		Collector collector = new Collector();
+		Assert.assertTrue(buffer.poll(collector));
+		Assert.assertEquals("m1", collector.messages.get(0));
+	}
+
+	@Test
+	public void testBoundedByBytes() {
+		GelfRingBuffer buffer = new GelfRingBuffer(16, 10);
+		Assert.assertTrue(offer(buffer, "12345"));
+		Assert.assertTrue(offer(buffer, "12345"));
+		Assert.assertFalse(offer(buffer, "1"));
+		Assert.assertTrue(buffer.poll(null));
+		Assert.assertTrue(offer(buffer, "1"));
+	}
+
+	@Test
+	public void testOversizedMessageAcceptedWhenEmpty() {
+		GelfRingBuffer buffer = new GelfRingBuffer(16, 10);
+		Assert.assertTrue(offer(buffer, "more than ten bytes"));
+		Assert.assertFalse(offer(buffer, "1"));
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final GelfRingBuffer buffer = new GelfRingBuffer(64, 1024 * 1024);
+		final int producers = 4;
+		final int messagesPerProducer = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < messagesPerProducer; i++) {
+						byte[] message = bytes(producer + ":" + i);
+						while (!buffer.offer(message, message.length, producer, 0)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		final int[] next = new int[producers];
+		GelfRingBuffer.Consumer checker = new GelfRingBuffer.Consumer() {
+			public void consume(byte[] message, int length, int level, int key) {
+				String[] parts = new String(message, 0, length, GelfJsonWriter.UTF_8).split(":");
+				int producer = Integer.parseInt(parts[0]);
+				Assert.assertEquals(producer, level);
+				// Messages from any one producer arrive in the order they were sent
+				Assert.assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+			}
+		};
+		start.countDown();
+		int received = 0;
+		while (received < producers * messagesPerProducer) {
+			if (buffer.poll(checker)) {
+				received++;
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertTrue(buffer.isEmpty());
+		Assert.assertEquals(0, buffer.queuedBytes());
+	}
+}
@@ -0,0 +1,140 @@
+package me.moocar.logbackgelf;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class GelfSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final List<GelfSpool> opened = new ArrayList<GelfSpool>();
+
+	@After
+	public void tearDown() {
+		for (GelfSpool spool : opened) {
+			spool.close();
+		}
+	}
+
+	private GelfSpool open(long maxBytes, int segmentSize) throws IOException {
+		GelfSpool spool = new GelfSpool(folder.getRoot(), maxBytes, segmentSize);
+		spool.open();
+		opened.add(spool);
+		return spool;
+	}
+
+	private static void append(GelfSpool spool, String... messages) throws IOException {
+		for (String message : messages) {
+			byte[] bytes = message.getBytes(GelfJsonWriter.UTF_8);
+			Assert.assertTrue(spool.append(bytes, bytes.length));
+		}
+	}
+
+	private static List<String> drain(GelfSpool spool, int max) {
+		final List<String> messages = new ArrayList<String>();
+		GelfRingBuffer.Consumer consumer = new GelfRingBuffer.Consumer() {
+			public void consume(byte[] message, int length, int level, int key) {
+				messages.add(new String(message, 0, length, GelfJsonWriter.UTF_8));
+			}
+		};
+		while (messages.size() < max && spool.poll(consumer)) {
+		}
+		return messages;
+	}
+
+	@Test
+	public void testFifoAcrossSegments() throws IOException {
+		GelfSpool spool = open(1024 * 1024, 64);
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			expected.add("message number " + i);
+		}
+		append(spool, expected.toArray(new String[expected.size()]));
+		Assert.assertEquals(20, spool.size());
+		Assert.assertEquals(expected, drain(spool, Integer.MAX_VALUE));
+		Assert.assertTrue(spool.isEmpty());
+		// Read segments are deleted, apart from the one still being appended to
+		Assert.assertEquals(1, folder.getRoot().list().length - 1);
+	}
+
+	@Test
+	public void testRejectsMessagesBiggerThanASegment() throws IOException {
+		GelfSpool spool = open(1024 * 1024, 64);
+		Assert.assertFalse(spool.append(new byte[64], 64));
+		Assert.assertTrue(spool.append(new byte[spool.maxMessageSize()], spool.maxMessageSize()));
+	}
+
+	@Test
+	public void testSurvivesReopening() throws IOException {
+		GelfSpool spool = open(1024 * 1024, 128);
+		append(spool, "one", "two", "three", "four", "five");
+		Assert.assertEquals(Arrays.asList("one", "two"), drain(spool, 2));
+		spool.close();
+		opened.clear();
+
+		GelfSpool reopened = new GelfSpool(folder.getRoot(), 1024 * 1024, 128);
+		Assert.assertEquals(3, reopened.open());
+		opened.add(reopened);
+		append(reopened, "six");
+		Assert.assertEquals(Arrays.asList("three", "four", "five", "six"), drain(reopened, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testIgnoresCorruptRecords() throws IOException {
+		GelfSpool spool = open(1024 * 1024, 128);
+		append(spool, "one", "two", "three");
+		spool.close();
+		opened.clear();
+
+		File segment = folder.getRoot().listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".spool");
+			}
+		})[0];
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		try {
+			// The header, then "one" and "two" with their record headers, then the third record's header
+			file.seek(8 + 11 + 11 + 8);
+			file.write('T');
+		} finally {
+			file.close();
+		}
+
+		GelfSpool reopened = open(1024 * 1024, 128);
+		Assert.assertEquals(2, reopened.size());
+		append(reopened, "four");
+		Assert.assertEquals(Arrays.asList("one", "two", "four"), drain(reopened, Integer.MAX_VALUE));
+	}
+
+	@Test
+	public void testDiscardsOldestWhenFull() throws IOException {
+		GelfSpool spool = open(128, 64);
+		// Four 12 byte records fit in a 64 byte segment, and there's room for two segments
+		for (int i = 0; i < 9; i++) {
+			append(spool, "msg" + i);
+		}
+		Assert.assertEquals(4, spool.takeDiscardedRecords());
+		Assert.assertEquals(0, spool.takeDiscardedRecords());
+		Assert.assertEquals(5, spool.size());
+		Assert.assertEquals(Arrays.asList("msg4", "msg5", "msg6", "msg7", "msg8"),
+				drain(spool, Integer.MAX_VALUE));
+	}
+
+	@Test(expected = IOException.class)
+	public void testOneSpoolPerDirectory() throws IOException {
+		open(1024, 64);
+		open(1024, 64);
+	}
+}
@@ -0,0 +1,258 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class GelfTCPAppenderTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private LoggerContext context;
+	private ServerSocket server;
+
+	@Before
+	public void setUp() throws IOException {
+		context = new LoggerContext();
+		server = newServer(0);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		context.stop();
+	}
+
+	private static ServerSocket newServer(int port) throws IOException {
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(InetAddress.getByName("localhost"), port));
+		server.setSoTimeout(5000);
+		return server;
+	}
+
+	private GelfTCPAppender<ILoggingEvent> newAppender(int port) {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		LayoutWrappingEncoder<ILoggingEvent> encoder = new LayoutWrappingEncoder<ILoggingEvent>();
+		encoder.setContext(context);
+		encoder.setLayout(layout);
+		GelfTCPAppender<ILoggingEvent> appender = new GelfTCPAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setPort(port);
+		appender.setEncoder(encoder);
+		return appender;
+	}
+
+	private Logger logger(GelfTCPAppender<ILoggingEvent> appender) {
+		Logger logger = context.getLogger("test");
+		logger.addAppender(appender);
+		return logger;
+	}
+
+	/**
+	 * Reads up to the next null byte
+	 */
+	private static String receive(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) > 0) {
+			out.write(b);
+		}
+		Assert.assertEquals("Connection closed mid message", 0, b);
+		return new String(out.toByteArray(), GelfJsonWriter.UTF_8);
+	}
+
+	private static void waitFor(String description, Condition condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.met()) {
+			Assert.assertTrue("Timed out waiting for " + description, System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private interface Condition {
+		boolean met();
+	}
+
+	@Test
+	public void sendsNullDelimitedMessages() throws Exception {
+		GelfTCPAppender<ILoggingEvent> appender = newAppender(server.getLocalPort());
+		appender.setWriteBufferSize(4096);
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		Logger logger = logger(appender);
+
+		StringBuilder big = new StringBuilder();
+		while (big.length() < 10000) {
+			big.append("big message ");
+		}
+		for (int i = 0; i < 500; i++) {
+			logger.info("message " + i);
+		}
+		logger.info(big.toString());
+		logger.info("last");
+
+		Socket socket = server.accept();
+		try {
+			socket.setSoTimeout(5000);
+			InputStream in = socket.getInputStream();
+			for (int i = 0; i < 500; i++) {
+				String json = receive(in);
+				Assert.assertTrue(json, json.contains("\"short_message\":\"message " + i + "\""));
+			}
+			Assert.assertTrue(receive(in).contains("\"full_message\":\"" + big + "\""));
+			Assert.assertTrue(receive(in).contains("\"short_message\":\"last\""));
+			Assert.assertEquals(502, appender.getSentMessages());
+			Assert.assertEquals(0, appender.getDroppedMessages());
+			Assert.assertEquals(502, appender.getMetrics().getEvents());
+			Assert.assertEquals(502, appender.getMetrics().getLayoutLatency().getCount());
+		} finally {
+			appender.stop();
+			socket.close();
+		}
+	}
+
+	@Test
+	public void stopFlushesCoalescedMessages() throws Exception {
+		GelfTCPAppender<ILoggingEvent> appender = newAppender(server.getLocalPort());
+		appender.setMaxFlushLatency(60000);
+		appender.start();
+		Logger logger = logger(appender);
+		Socket socket = server.accept();
+		try {
+			socket.setSoTimeout(5000);
+			logger.info("waiting for company");
+			appender.stop();
+			Assert.assertTrue(receive(socket.getInputStream()).contains("waiting for company"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void spoolsWhileServerIsDown() throws Exception {
+		final int port = server.getLocalPort();
+		server.close();
+		File spoolDirectory = folder.newFolder("spool");
+		final GelfTCPAppender<ILoggingEvent> appender = newAppender(port);
+		appender.setMinReconnectDelay(10);
+		appender.setMaxReconnectDelay(50);
+		appender.setSpoolDirectory(spoolDirectory.getPath());
+		appender.setSpoolReplayRate(0);
+		appender.start();
+		Logger logger = logger(appender);
+		try {
+			waitFor("circuit to open", new Condition() {
+				public boolean met() {
+					return appender.isCircuitOpen();
+				}
+			});
+			for (int i = 0; i < 3; i++) {
+				logger.info("spooled " + i);
+			}
+			waitFor("messages to be spooled", new Condition() {
+				public boolean met() {
+					return appender.getSpooledMessages() == 3;
+				}
+			});
+			Assert.assertEquals(0, appender.getDroppedMessages());
+
+			server = newServer(port);
+			Socket socket = server.accept();
+			try {
+				socket.setSoTimeout(5000);
+				for (int i = 0; i < 3; i++) {
+					Assert.assertTrue(receive(socket.getInputStream()).contains("spooled " + i));
+				}
+				Assert.assertEquals(0, appender.getSpooledMessages());
+			} finally {
+				socket.close();
+			}
+		} finally {
+			appender.stop();
+		}
+	}
+
+	@Test
+	public void failsFastAndReconnects() throws Exception {
+		final int port = server.getLocalPort();
+		server.close();
+		final GelfTCPAppender<ILoggingEvent> appender = newAppender(port);
+		appender.setMinReconnectDelay(10);
+		appender.setMaxReconnectDelay(50);
+		appender.start();
+		Logger logger = logger(appender);
+		try {
+			waitFor("circuit to open", new Condition() {
+				public boolean met() {
+					return appender.isCircuitOpen();
+				}
+			});
+			logger.info("nobody is listening");
+			Assert.assertEquals(1, appender.getDroppedMessages());
+			Assert.assertEquals(0, appender.getQueueDepth());
+
+			server = newServer(port);
+			Socket socket = server.accept();
+			waitFor("circuit to close", new Condition() {
+				public boolean met() {
+					return appender.isConnected() && !appender.isCircuitOpen();
+				}
+			});
+			socket.setSoTimeout(5000);
+			logger.info("first connection");
+			Assert.assertTrue(receive(socket.getInputStream()).contains("first connection"));
+
+			// Lose the connection. Writes fail once the appender notices, then it reconnects
+			socket.close();
+			server.setSoTimeout(50);
+			Socket second = null;
+			for (int i = 0; second == null && i < 100; i++) {
+				logger.info("lost " + i);
+				try {
+					second = server.accept();
+				} catch (IOException e) {
+					// Not reconnected yet
+				}
+			}
+			Assert.assertNotNull("Appender did not reconnect", second);
+			try {
+				waitFor("circuit to close", new Condition() {
+					public boolean met() {
+						return appender.isConnected() && !appender.isCircuitOpen();
+					}
+				});
+				second.setSoTimeout(5000);
+				logger.info("second connection");
+				String json;
+				do {
+					json = receive(second.getInputStream());
+				} while (!json.contains("second connection"));
+			} finally {
+				second.close();
+			}
+		} finally {
+			appender.stop();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class GelfThrottleTest {
+
+	private LoggerContext context;
+	private GelfThrottle throttle;
+	private final List<ILoggingEvent> summaries = new ArrayList<ILoggingEvent>();
+
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		throttle = new GelfThrottle();
+		throttle.setContext(context);
+	}
+
+	@After
+	public void tearDown() {
+		throttle.stop();
+	}
+
+	private void start() {
+		throttle.start(new GelfThrottle.Sink() {
+			public void append(ILoggingEvent summary) {
+				synchronized (summaries) {
+					summaries.add(summary);
+				}
+			}
+		}, "test");
+	}
+
+	private LoggingEvent event(String logger, Level level, String template, Object arg, long timeStamp) {
+		LoggingEvent event = new LoggingEvent("fqcn", context.getLogger(logger), level, template, null,
+				new Object[]{arg});
+		event.setTimeStamp(timeStamp);
+		return event;
+	}
+
+	@Test
+	public void testCollapsesDuplicates() {
+		throttle.setDedupWindow(60000);
+		start();
+		long now = System.currentTimeMillis();
+		LoggingEvent first = event("dup", Level.ERROR, "failed for {}", 0, now);
+		Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(first));
+		for (int i = 1; i <= 5; i++) {
+			// Same template, different arguments
+			Assert.assertEquals(GelfThrottle.Decision.SUPPRESSED,
+					throttle.decide(event("dup", Level.ERROR, "failed for {}", i, now + i)));
+		}
+		// A different level, logger or template is not a duplicate
+		Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(event("dup", Level.WARN, "failed for {}", 0, now)));
+		Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(event("other", Level.ERROR, "failed for {}", 0, now)));
+		Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(event("dup", Level.ERROR, "failed: {}", 0, now)));
+		Assert.assertTrue(summaries.isEmpty());
+
+		throttle.stop();
+		Assert.assertEquals(1, summaries.size());
+		SuppressedEvents summary = (SuppressedEvents) summaries.get(0);
+		Assert.assertEquals(5, summary.getSuppressedCount());
+		Assert.assertEquals(now, summary.getFirstTimeStamp());
+		Assert.assertEquals(now + 5, summary.getTimeStamp());
+		Assert.assertEquals("failed for 0", summary.getFormattedMessage());
+	}
+
+	@Test
+	public void testSendsSummaryOnceWindowCloses() throws InterruptedException {
+		throttle.setDedupWindow(50);
+		start();
+		long now = System.currentTimeMillis();
+		throttle.decide(event("dup", Level.INFO, "again", null, now));
+		throttle.decide(event("dup", Level.INFO, "again", null, now));
+		long deadline = System.currentTimeMillis() + 5000;
+		while (System.currentTimeMillis() < deadline) {
+			synchronized (summaries) {
+				if (!summaries.isEmpty()) {
+					break;
+				}
+			}
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, summaries.size());
+		// The window has closed, so the next one is sent
+		Assert.assertEquals(GelfThrottle.Decision.SEND,
+				throttle.decide(event("dup", Level.INFO, "again", null, System.currentTimeMillis())));
+	}
+
+	@Test
+	public void testRateLimitsPerKey() {
+		throttle.setRate(0.001);
+		throttle.setBurst(3);
+		throttle.setKeyBy(ThrottleKey.LEVEL);
+		start();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(event("a", Level.DEBUG, "m" + i, null, now)));
+		}
+		Assert.assertEquals(GelfThrottle.Decision.RATE_LIMITED, throttle.decide(event("b", Level.DEBUG, "m", null, now)));
+		Assert.assertEquals(GelfThrottle.Decision.SEND, throttle.decide(event("a", Level.ERROR, "m", null, now)));
+	}
+
+	@Test
+	public void testSummaryFields() {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		SuppressedEvents summary = new SuppressedEvents(event("dup", Level.INFO, "msg", null, 1453161600123L), 7,
+				1453161601456L);
+		Assert.assertEquals("{\"version\":\"1.1\",\"host\":\"Test\",\"short_message\":\"msg\"," +
+				"\"timestamp\":1453161601.456,\"level\":6,\"_suppressed_count\":7,\"_first_timestamp\":1453161600.123," +
+				"\"_last_timestamp\":1453161601.456}", layout.doLayout(summary));
+	}
+
+	@Test
+	public void testSummaryOfAnEventThatWasNeverLaidOut() throws InterruptedException {
+		throttle.setDedupWindow(60000);
+		start();
+		final long now = System.currentTimeMillis();
+		// Decided on but never laid out, as when the overload controller sheds it after the throttle
+		Thread logging = new Thread("logging-thread") {
+			@Override
+			public void run() {
+				MDC.put("requestId", "abc");
+				try {
+					throttle.decide(event("dup", Level.INFO, "msg", null, now));
+					throttle.decide(event("dup", Level.INFO, "msg", null, now + 1));
+				} finally {
+					MDC.clear();
+				}
+			}
+		};
+		logging.start();
+		logging.join();
+
+		// Laid out on another thread, with no MDC
+		throttle.stop();
+		Assert.assertEquals(1, summaries.size());
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.setUseThreadName(true);
+		layout.setIncludeFullMDC(true);
+		layout.start();
+		String json = layout.doLayout(summaries.get(0));
+		Assert.assertTrue(json, json.contains("\"_threadName\":\"logging-thread\""));
+		Assert.assertTrue(json, json.contains("\"_requestId\":\"abc\""));
+	}
+}
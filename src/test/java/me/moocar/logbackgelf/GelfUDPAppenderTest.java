@@ -0,0 +1,406 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+public class GelfUDPAppenderTest {
+
+	private LoggerContext context;
+	private DatagramSocket server;
+
+	@Before
+	public void setUp() throws IOException {
+		context = new LoggerContext();
+		server = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		server.setSoTimeout(5000);
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+		context.stop();
+	}
+
+	private GelfUDPAppender<ILoggingEvent> newAppender(LayoutWrappingEncoder<ILoggingEvent> encoder) {
+		GelfLayout<ILoggingEvent> layout = new GelfLayout<ILoggingEvent>();
+		layout.setContext(context);
+		layout.setHost("Test");
+		layout.start();
+		encoder.setContext(context);
+		encoder.setLayout(layout);
+		encoder.start();
+		GelfUDPAppender<ILoggingEvent> appender = new GelfUDPAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setPort(server.getLocalPort());
+		appender.setEncoder(encoder);
+		appender.setAsync(true);
+		return appender;
+	}
+
+	private static GZIPEncoder<ILoggingEvent> alwaysGzip() {
+		// The default, as it was before CompressionEncoder
+		return new GZIPEncoder<ILoggingEvent>();
+	}
+
+	private String receive(boolean gzipped) throws IOException {
+		return receive(server, gzipped);
+	}
+
+	private static String receive(DatagramSocket server, boolean gzipped) throws IOException {
+		byte[] buf = new byte[8192];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		server.receive(packet);
+		InputStream in = new ByteArrayInputStream(packet.getData(), 0, packet.getLength());
+		if (gzipped) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			out.write(buf, 0, read);
+		}
+		return new String(out.toByteArray(), GelfJsonWriter.UTF_8);
+	}
+
+	@Test
+	public void testAsyncSendsFromSenderThread() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		Logger logger = context.getLogger("async");
+		logger.addAppender(appender);
+
+		Set<String> expected = new HashSet<String>();
+		for (int i = 0; i < 50; i++) {
+			logger.info("message " + i);
+			expected.add("message " + i);
+		}
+		Set<String> received = new HashSet<String>();
+		for (int i = 0; i < 50; i++) {
+			String json = receive(false);
+			Assert.assertTrue(json, json.startsWith("{\"version\":\"1.1\",\"host\":\"Test\",\"short_message\":\"message "));
+			received.add(json.substring(json.indexOf("message "), json.indexOf("\",\"timestamp\"")));
+		}
+		Assert.assertEquals(expected, received);
+		appender.stop();
+		Assert.assertEquals(0, appender.getDroppedMessages());
+	}
+
+	@Test
+	public void testAsyncCompressesOnSenderThread() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(alwaysGzip());
+		appender.start();
+		Logger logger = context.getLogger("async");
+		logger.addAppender(appender);
+
+		logger.warn("compressed");
+		String json = receive(true);
+		Assert.assertTrue(json, json.contains("\"short_message\":\"compressed\""));
+		appender.stop();
+	}
+
+	@Test
+	public void testStopDrainsQueue() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+		appender.setQueueFullPolicy(QueueFullPolicy.BLOCK);
+		appender.setQueueSize(4);
+		appender.start();
+		Logger logger = context.getLogger("async");
+		logger.addAppender(appender);
+
+		for (int i = 0; i < 20; i++) {
+			logger.info("message " + i);
+		}
+		appender.stop();
+		Assert.assertEquals(0, appender.getQueueDepth());
+		Assert.assertEquals(0, appender.getDroppedMessages());
+		for (int i = 0; i < 20; i++) {
+			receive(false);
+		}
+	}
+
+	@Test
+	public void testNioTransport() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(alwaysGzip());
+		appender.setAsync(false);
+		appender.setNio(true);
+		appender.setSendBufferSize(65536);
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		Logger logger = context.getLogger("nio");
+		logger.addAppender(appender);
+
+		logger.info("over a channel");
+		String json = receive(true);
+		Assert.assertTrue(json, json.contains("\"short_message\":\"over a channel\""));
+		appender.stop();
+		Assert.assertEquals(0, appender.getWouldBlockCount());
+	}
+
+	@Test
+	public void testRoundRobinAcrossEndpoints() throws IOException {
+		DatagramSocket second = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		second.setSoTimeout(5000);
+		try {
+			GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+			appender.setAsync(false);
+			appender.setNio(true);
+			appender.addEndpoint("localhost:" + server.getLocalPort());
+			appender.addEndpoint("localhost:" + second.getLocalPort());
+			appender.start();
+			Assert.assertTrue(appender.isStarted());
+			Logger logger = context.getLogger("endpoints");
+			logger.addAppender(appender);
+
+			for (int i = 0; i < 4; i++) {
+				logger.info("message " + i);
+			}
+			for (int i = 0; i < 2; i++) {
+				Assert.assertTrue(receive(false).contains("message "));
+				Assert.assertTrue(receive(second, false).contains("message "));
+			}
+			appender.stop();
+		} finally {
+			second.close();
+		}
+	}
+
+	@Test
+	public void testHashFieldKeepsMessagesTogether() throws IOException {
+		DatagramSocket second = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		second.setSoTimeout(200);
+		server.setSoTimeout(200);
+		try {
+			GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+			appender.addEndpoint("localhost:" + server.getLocalPort());
+			appender.addEndpoint("localhost:" + second.getLocalPort());
+			appender.setHashField("requestId");
+			appender.setMaxPacketSize(64);
+			appender.start();
+			Logger logger = context.getLogger("endpoints");
+			logger.addAppender(appender);
+
+			MDC.put("requestId", "abc");
+			try {
+				for (int i = 0; i < 10; i++) {
+					logger.info("message " + i);
+				}
+			} finally {
+				MDC.remove("requestId");
+			}
+			appender.stop();
+			// Every chunk of every message goes to the same server
+			int first = count(server);
+			int other = count(second);
+			Assert.assertTrue(first + " and " + other, first == 0 ^ other == 0);
+			Assert.assertTrue(Math.max(first, other) > 10);
+		} finally {
+			second.close();
+		}
+	}
+
+	private static int count(DatagramSocket server) throws IOException {
+		byte[] buf = new byte[8192];
+		int count = 0;
+		try {
+			while (true) {
+				server.receive(new DatagramPacket(buf, buf.length));
+				count++;
+			}
+		} catch (SocketTimeoutException e) {
+			return count;
+		}
+	}
+
+	@Test
+	public void testAsyncRequiresGelfLayout() {
+		GelfUDPAppender<ILoggingEvent> appender = new GelfUDPAppender<ILoggingEvent>();
+		appender.setContext(context);
+		appender.setPort(server.getLocalPort());
+		PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+		encoder.setContext(context);
+		encoder.setPattern("%m");
+		encoder.start();
+		appender.setEncoder(encoder);
+		appender.setAsync(true);
+		appender.start();
+		Assert.assertFalse(appender.isStarted());
+	}
+
+	@Test
+	public void testMetricsOverJmx() throws Exception {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+		appender.setName("metrics");
+		appender.setAsync(false);
+		appender.start();
+		Logger logger = context.getLogger("metrics");
+		logger.addAppender(appender);
+
+		StringBuilder big = new StringBuilder();
+		while (big.length() < 1000) {
+			big.append("chunk me ");
+		}
+		logger.info("small");
+		logger.info(big.toString());
+		receive(false);
+
+		GelfMetrics metrics = appender.getMetrics();
+		Assert.assertEquals(2, metrics.getEvents());
+		Assert.assertEquals(1, metrics.getSinglePacketMessages());
+		Assert.assertEquals(1, metrics.getChunkedMessages());
+		Assert.assertEquals(metrics.getUncompressedBytes(), metrics.getEncodedBytes());
+		Assert.assertEquals(2, metrics.getLayoutLatency().getCount());
+		Assert.assertEquals(2, metrics.getEncodeLatency().getCount());
+		Assert.assertEquals(2, metrics.getSendLatency().getCount());
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName("me.moocar.logbackgelf:type=GelfUDPAppender,context=\"default\",name=\"metrics\"");
+		Assert.assertEquals(1L, server.getAttribute(name, "ChunkedMessages"));
+		Assert.assertEquals(metrics.getChunksSent(), server.getAttribute(name, "ChunksSent"));
+		appender.stop();
+		Assert.assertFalse(server.isRegistered(name));
+	}
+
+	@Test
+	public void testTrimsMessagesToChunkBudget() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+		appender.setAsync(false);
+		appender.setMaxPacketSize(512);
+		appender.start();
+		Logger logger = context.getLogger("huge");
+		logger.addAppender(appender);
+
+		// Far more than 128 chunks of 500 bytes
+		StringBuilder huge = new StringBuilder();
+		while (huge.length() < 200000) {
+			huge.append("far too much to send ");
+		}
+		logger.error(huge.toString(), new Exception("with a stack trace"));
+
+		GelfMetrics metrics = appender.getMetrics();
+		Assert.assertEquals(0, metrics.getDroppedMessages(GelfMetrics.DropReason.TOO_LARGE));
+		Assert.assertEquals(1, metrics.getChunkedMessages());
+		Assert.assertTrue(metrics.getChunksSent() <= 128);
+		Assert.assertEquals(1, GelfLayout.of(appender.getEncoder()).getTruncatedMessages());
+		appender.stop();
+	}
+
+	@Test
+	public void testThrottle() throws IOException {
+		GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+		appender.setAsync(false);
+		GelfThrottle throttle = new GelfThrottle();
+		throttle.setContext(context);
+		throttle.setDedupWindow(60000);
+		throttle.setRate(0.001);
+		throttle.setBurst(2);
+		appender.setThrottle(throttle);
+		appender.start();
+		Logger logger = context.getLogger("throttled");
+		logger.addAppender(appender);
+
+		for (int i = 0; i < 10; i++) {
+			logger.warn("repeated");
+		}
+		logger.warn("different");
+		logger.warn("over the limit");
+		Assert.assertTrue(receive(false).contains("\"short_message\":\"repeated\""));
+		Assert.assertTrue(receive(false).contains("\"short_message\":\"different\""));
+
+		GelfMetrics metrics = appender.getMetrics();
+		Assert.assertEquals(12, metrics.getEvents());
+		Assert.assertEquals(9, metrics.getSuppressedMessages());
+		Assert.assertEquals(1, metrics.getDroppedMessages(GelfMetrics.DropReason.RATE_LIMITED));
+		appender.stop();
+		String summary = receive(false);
+		Assert.assertTrue(summary, summary.contains("\"short_message\":\"repeated\""));
+		Assert.assertTrue(summary, summary.contains("\"_suppressed_count\":9"));
+	}
+
+	@Test
+	public void testLanesSendFromManyThreads() throws Exception {
+		final GelfUDPAppender<ILoggingEvent> appender = newAppender(alwaysGzip());
+		appender.setAsync(false);
+		appender.setLanes(4);
+		appender.start();
+		Assert.assertTrue(appender.isStarted());
+		final Logger logger = context.getLogger("lanes");
+		logger.addAppender(appender);
+
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 25; i++) {
+						logger.info("thread " + thread + " message " + i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Set<String> received = new HashSet<String>();
+		for (int i = 0; i < 200; i++) {
+			String json = receive(true);
+			received.add(json.substring(json.indexOf("thread "), json.indexOf("\",\"timestamp\"")));
+		}
+		Assert.assertEquals(200, received.size());
+		Assert.assertTrue(received.contains("thread 7 message 24"));
+		Assert.assertEquals(200, appender.getMetrics().getEvents());
+		appender.stop();
+		Assert.assertFalse(appender.isStarted());
+	}
+
+	@Test
+	public void testStopClosesSockets() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		Assume.assumeTrue(os instanceof com.sun.management.UnixOperatingSystemMXBean);
+		com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean) os;
+		for (int lanes : new int[]{1, 4}) {
+			GelfUDPAppender<ILoggingEvent> appender = newAppender(new GelfEncoder<ILoggingEvent>());
+			appender.setAsync(false);
+			appender.setJmx(false);
+			appender.setLanes(lanes);
+			appender.start();
+			appender.stop();
+			long before = unix.getOpenFileDescriptorCount();
+			// Restarting opens new sockets each time
+			for (int i = 0; i < 20; i++) {
+				appender.start();
+				Assert.assertTrue(appender.isStarted());
+				appender.stop();
+			}
+			long leaked = unix.getOpenFileDescriptorCount() - before;
+			Assert.assertTrue(leaked + " file descriptors leaked with " + lanes + " lanes", leaked < 5);
+		}
+	}
+}
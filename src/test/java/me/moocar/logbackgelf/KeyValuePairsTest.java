@@ -0,0 +1,50 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KeyValuePairsTest {
+
+	// Shaped like org.slf4j.event.KeyValuePair
+	public static class Pair {
+		public final String key;
+		public final Object value;
+
+		Pair(String key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	public static class NotAPair {
+		public final int key = 1;
+		public final Object value = "value";
+	}
+
+	@Test
+	public void testReadsKeyAndValueFields() {
+		Pair pair = new Pair("latency_ms", 12L);
+		Assert.assertEquals("latency_ms", KeyValuePairs.key(pair));
+		Assert.assertEquals(12L, KeyValuePairs.value(pair));
+	}
+
+	@Test
+	public void testIgnoresOtherObjects() {
+		Assert.assertNull(KeyValuePairs.key(new NotAPair()));
+		Assert.assertNull(KeyValuePairs.value(new NotAPair()));
+		Assert.assertNull(KeyValuePairs.key("string"));
+		Assert.assertNull(KeyValuePairs.key(null));
+		// Still reads pairs after seeing other classes
+		Assert.assertEquals("user", KeyValuePairs.key(new Pair("user", "bob")));
+	}
+
+	@Test
+	public void testEventsHaveNoPairsBeforeLogback13() {
+		LoggerContext context = new LoggerContext();
+		LoggingEvent event = new LoggingEvent("fqcn", context.getLogger("test"), Level.INFO, "msg", null, null);
+		Assert.assertNull(KeyValuePairs.of(event));
+	}
+}
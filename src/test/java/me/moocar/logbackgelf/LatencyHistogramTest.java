@@ -0,0 +1,48 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsCoverTheirValues() {
+		long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 100, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+		for (long value : values) {
+			int bucket = LatencyHistogram.bucket(value);
+			Assert.assertTrue(value + " is above its bucket", value <= LatencyHistogram.highestValue(bucket));
+			Assert.assertTrue(value + " is below its bucket",
+					bucket == 0 || value > LatencyHistogram.highestValue(bucket - 1));
+		}
+	}
+
+	@Test
+	public void testPercentilesAreWithinPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 10000; i++) {
+			histogram.record(i * 1000L);
+		}
+		assertWithin(5000000, histogram.percentile(0.5));
+		assertWithin(9900000, histogram.percentile(0.99));
+		LatencySnapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(10000, snapshot.getCount());
+		Assert.assertEquals(10000000, snapshot.getMaxNanos());
+		Assert.assertEquals(10000000, snapshot.getP999Nanos(), 10000000 / 8);
+		Assert.assertEquals(5000500, snapshot.getMeanNanos(), 1);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		Assert.assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected + expected / 8);
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(42);
+		histogram.reset();
+		LatencySnapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(0, snapshot.getCount());
+		Assert.assertEquals(0, snapshot.getP50Nanos());
+		Assert.assertEquals(0, snapshot.getMaxNanos());
+	}
+}
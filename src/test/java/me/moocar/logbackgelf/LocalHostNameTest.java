@@ -0,0 +1,76 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class LocalHostNameTest {
+
+	@Before
+	public void setUp() {
+		LocalHostName.reset();
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty(LocalHostName.PROPERTY);
+		LocalHostName.reset();
+	}
+
+	@Test
+	public void testSystemPropertyComesFirst() {
+		System.setProperty(LocalHostName.PROPERTY, " configured.example.com ");
+		Assert.assertEquals("configured.example.com", LocalHostName.get());
+	}
+
+	@Test
+	public void testLooksUpOnce() throws InterruptedException {
+		final CountDownLatch resolved = new CountDownLatch(1);
+		LocalHostName.whenResolved(new Runnable() {
+			public void run() {
+				resolved.countDown();
+			}
+		});
+		Assert.assertTrue(resolved.await(30, TimeUnit.SECONDS));
+		String name = LocalHostName.get();
+		Assert.assertNotNull(name);
+		Assert.assertFalse(name.isEmpty());
+		Assert.assertSame(name, LocalHostName.get());
+
+		// Already resolved, so not called
+		LocalHostName.whenResolved(new Runnable() {
+			public void run() {
+				Assert.fail();
+			}
+		});
+	}
+
+	@Test
+	public void testGetDoesNotWaitForLongOnTheLookup() {
+		long start = System.nanoTime();
+		Assert.assertNotNull(LocalHostName.get());
+		Assert.assertNotNull(LocalHostName.get());
+		// Only the first call waits, and for no longer than LOOKUP_WAIT_MILLIS
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(LocalHostName.LOOKUP_WAIT_MILLIS + 1000));
+	}
+
+	@Test
+	public void testLayoutDefaultsToTheLocalHostName() {
+		System.setProperty(LocalHostName.PROPERTY, "configured.example.com");
+		LoggerContext context = new LoggerContext();
+		GelfLayout<LoggingEvent> layout = new GelfLayout<LoggingEvent>();
+		layout.setContext(context);
+		layout.start();
+		Assert.assertEquals("configured.example.com", layout.getHost());
+		String json = layout.doLayout(new LoggingEvent("fqcn", context.getLogger("test"), Level.INFO, "msg", null,
+				null));
+		Assert.assertTrue(json, json.contains("\"host\":\"configured.example.com\""));
+	}
+}
@@ -0,0 +1,77 @@
+package me.moocar.logbackgelf;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class MessageIdGeneratorTest {
+
+	private static final int THREADS = 8;
+	private static final int IDS_PER_THREAD = 50000;
+
+	/**
+	 * Generates IDs from many threads at once and returns how many were duplicates
+	 */
+	private static int duplicates(final MessageIdGenerator generator) throws InterruptedException {
+		final long[][] ids = new long[THREADS][IDS_PER_THREAD];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final long[] threadIds = ids[t];
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < IDS_PER_THREAD; i++) {
+						threadIds[i] = generator.nextId();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Set<Long> unique = new HashSet<Long>();
+		int duplicates = 0;
+		for (long[] threadIds : ids) {
+			for (long id : threadIds) {
+				if (!unique.add(id)) {
+					duplicates++;
+				}
+			}
+		}
+		return duplicates;
+	}
+
+	@Test
+	public void testCounterIdsAreUniqueAcrossThreads() throws InterruptedException {
+		Assert.assertEquals(0, duplicates(new CounterMessageIdGenerator()));
+	}
+
+	@Test
+	public void testCounterIdsShareAPrefix() {
+		CounterMessageIdGenerator generator = new CounterMessageIdGenerator();
+		long first = generator.nextId();
+		long second = generator.nextId();
+		Assert.assertEquals(first >>> 32, second >>> 32);
+		Assert.assertEquals(1, (second - first) & 0xffffffffL);
+	}
+
+	@Test
+	public void testProviderIsSafeToShare() throws InterruptedException, NoSuchAlgorithmException {
+		// Concurrent callers can still collide on nanoTime, but must never corrupt the shared digest, which would show
+		// up as an exception or as many duplicates
+		int duplicates = duplicates(new MessageIdProvider("host"));
+		Assert.assertTrue("duplicates: " + duplicates, duplicates < THREADS * IDS_PER_THREAD / 100);
+	}
+}
@@ -0,0 +1,87 @@
+package me.moocar.logbackgelf;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.PatternLayout;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxy;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StackTraceCacheTest {
+
+	private LoggerContext context;
+	private PatternLayout throwableLayout;
+
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		throwableLayout = new PatternLayout();
+		throwableLayout.setContext(context);
+		throwableLayout.setPattern("%rEx");
+		throwableLayout.start();
+	}
+
+	private static Exception fail(String message) {
+		return new IllegalStateException(message, new RuntimeException("cause"));
+	}
+
+	private static Exception failElsewhere(String message) {
+		return new IllegalStateException(message, new RuntimeException("cause"));
+	}
+
+	private ILoggingEvent event(Throwable throwable) {
+		return new LoggingEvent("fqcn", context.getLogger("cache"), Level.ERROR, "msg", throwable, null);
+	}
+
+	private String render(StackTraceCache cache, Throwable throwable) {
+		return new String(cache.get(event(throwable)).full, GelfJsonWriter.UTF_8);
+	}
+
+	@Test
+	public void testFingerprintIgnoresMessages() {
+		Exception[] same = new Exception[2];
+		Exception[] elsewhere = new Exception[2];
+		for (int i = 0; i < 2; i++) {
+			same[i] = fail("attempt " + i);
+			elsewhere[i] = failElsewhere("attempt " + i);
+		}
+		Assert.assertEquals(StackTraceCache.fingerprint(new ThrowableProxy(same[0])),
+				StackTraceCache.fingerprint(new ThrowableProxy(same[1])));
+		Assert.assertFalse(StackTraceCache.fingerprint(new ThrowableProxy(same[0])) ==
+				StackTraceCache.fingerprint(new ThrowableProxy(elsewhere[0])));
+	}
+
+	@Test
+	public void testRendersLikeTheLayout() {
+		StackTraceCache cache = new StackTraceCache(throwableLayout, null, 16);
+		Exception exception = fail("first \"quoted\"");
+		String expected = throwableLayout.doLayout(event(exception)).replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+		Assert.assertEquals(expected, render(cache, exception));
+		Assert.assertEquals(expected, render(cache, exception));
+		// Same stack, different message
+		Assert.assertTrue(render(cache, fail("second")).contains("second"));
+		Assert.assertEquals(1, cache.hits());
+		Assert.assertEquals(2, cache.misses());
+		Assert.assertEquals(0, cache.evictions());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		StackTraceCache cache = new StackTraceCache(throwableLayout, null, 2);
+		Exception a = fail("a");
+		render(cache, a);
+		render(cache, fail("b"));
+		render(cache, a);
+		render(cache, fail("c"));
+		Assert.assertEquals(1, cache.evictions());
+		render(cache, a);
+		Assert.assertEquals(2, cache.hits());
+		render(cache, fail("b"));
+		Assert.assertEquals(2, cache.hits());
+		Assert.assertEquals(2, cache.evictions());
+	}
+}